@@ -0,0 +1,163 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many lookups in parallel through the engine and reports how they went: latency percentiles,
+ * throughput and what the failures were.
+ * <p/>
+ * Meant to be pointed to the stand-in server from lyrics-harness module, which replays recorded
+ * answers with injected latency and faults, to see how timeouts, retries and concurrency limits behave
+ * before users run into them. Every lookup asks for a new song, so nothing is answered from memo.
+ *
+ * @author Kanedias
+ */
+class LoadDriver {
+
+    static final String LOAD_TAG = "load-test";
+
+    private final LyricsEngine mEngine;
+    private final int mLookups;
+    private final int mConcurrency;
+    private final long mTimeout;
+
+    /**
+     * @param engine      engine to run lookups through
+     * @param lookups     number of lookups to run
+     * @param concurrency number of lookups running at once
+     * @param timeoutMs   time limit of each lookup
+     */
+    LoadDriver(LyricsEngine engine, int lookups, int concurrency, long timeoutMs) {
+        this.mEngine = engine;
+        this.mLookups = lookups;
+        this.mConcurrency = concurrency;
+        this.mTimeout = timeoutMs;
+    }
+
+    /**
+     * Run all lookups, blocks until they're done
+     *
+     * @return report of the run
+     * @throws InterruptedException if calling thread is interrupted, running lookups are cancelled then
+     */
+    Report run() throws InterruptedException {
+        final long[] latencies = new long[mLookups];
+        final LyricsResult.Status[] statuses = new LyricsResult.Status[mLookups];
+        final AtomicInteger next = new AtomicInteger();
+        final String run = Integer.toHexString(new Random().nextInt());
+
+        ExecutorService workers = Executors.newFixedThreadPool(mConcurrency);
+        long started = System.nanoTime();
+        for (int w = 0; w < mConcurrency; ++w) {
+            workers.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < mLookups && !Thread.currentThread().isInterrupted()) {
+                    long lookupStarted = System.nanoTime();
+                    LyricsLookup lookup = LyricsLookup.start(mEngine, "Load Artist " + run, "Load Song " + i,
+                            mTimeout, LookupScheduler.Priority.INTERACTIVE, LOAD_TAG);
+                    try {
+                        LyricsResult result = lookup.await();
+                        statuses[i] = result == null ? LyricsResult.Status.CANCELLED : result.status;
+                    } catch (InterruptedException e) {
+                        lookup.cancel();
+                        return;
+                    }
+                    latencies[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lookupStarted);
+                }
+            });
+        }
+
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            LookupScheduler.getInstance().cancelAll(LOAD_TAG);
+            throw e;
+        }
+
+        long wall = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        return new Report(latencies, statuses, wall);
+    }
+
+    /**
+     * Outcome of the load run
+     */
+    static class Report {
+
+        private final long[] mSorted;
+        private final long[] mSortedFound;
+        private final Map<LyricsResult.Status, Integer> mStatuses = new EnumMap<>(LyricsResult.Status.class);
+        private final long mWallMillis;
+
+        private Report(long[] latencies, LyricsResult.Status[] statuses, long wallMillis) {
+            this.mWallMillis = wallMillis;
+
+            long[] done = new long[latencies.length];
+            long[] found = new long[latencies.length];
+            int doneCount = 0;
+            int foundCount = 0;
+            for (int i = 0; i < statuses.length; ++i) {
+                if (statuses[i] == null) {
+                    // never ran, the run was interrupted
+                    continue;
+                }
+
+                Integer count = mStatuses.get(statuses[i]);
+                mStatuses.put(statuses[i], count == null ? 1 : count + 1);
+                done[doneCount++] = latencies[i];
+                if (statuses[i] == LyricsResult.Status.FOUND) {
+                    found[foundCount++] = latencies[i];
+                }
+            }
+
+            mSorted = Arrays.copyOf(done, doneCount);
+            Arrays.sort(mSorted);
+            mSortedFound = Arrays.copyOf(found, foundCount);
+            Arrays.sort(mSortedFound);
+        }
+
+        /**
+         * @return completed lookups per second
+         */
+        double throughput() {
+            return mWallMillis == 0 ? 0 : mSorted.length * 1000.0 / mWallMillis;
+        }
+
+        /**
+         * @return latency at the percentile of sorted latencies, -1 if there are none
+         */
+        private static long percentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return -1;
+            }
+
+            int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.US, "%d lookups in %.1f s, %.1f lookups/s%n",
+                    mSorted.length, mWallMillis / 1000.0, throughput()));
+            report.append(String.format(Locale.US, "all:   p50 %d ms, p95 %d ms, p99 %d ms, max %d ms%n",
+                    percentile(mSorted, 50), percentile(mSorted, 95), percentile(mSorted, 99), percentile(mSorted, 100)));
+            report.append(String.format(Locale.US, "found: p50 %d ms, p95 %d ms, p99 %d ms, max %d ms%n",
+                    percentile(mSortedFound, 50), percentile(mSortedFound, 95), percentile(mSortedFound, 99), percentile(mSortedFound, 100)));
+            for (Map.Entry<LyricsResult.Status, Integer> status : mStatuses.entrySet()) {
+                report.append(String.format(Locale.US, "%s: %d (%.1f%%)%n",
+                        status.getKey(), status.getValue(), status.getValue() * 100.0 / mSorted.length));
+            }
+            return report.toString();
+        }
+    }
+}
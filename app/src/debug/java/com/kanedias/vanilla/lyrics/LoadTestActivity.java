@@ -0,0 +1,83 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.app.Activity;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+import android.widget.TextView;
+
+import java.io.File;
+
+/**
+ * Debug-only screen running synthetic lookup load against the local stand-in server, see lyrics-harness module.
+ * Started from adb, parameters are passed as intent extras:
+ * <pre>
+ * adb shell am start -n com.kanedias.vanilla.lyrics.debug/com.kanedias.vanilla.lyrics.LoadTestActivity \
+ *     --ei lookups 2000 --ei concurrency 16 --el timeout 20000 --ef rate 50
+ * </pre>
+ * Report is shown on screen and written to log when all lookups are done.
+ *
+ * @author Kanedias
+ */
+public class LoadTestActivity extends Activity {
+
+    private static final String TAG = LoadTestActivity.class.getSimpleName();
+
+    private static final int DEFAULT_LOOKUPS = 1000;
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final long DEFAULT_TIMEOUT = 20_000;
+
+    private TextView mReport;
+    private Thread mRunner;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mReport = new TextView(this);
+        setContentView(mReport);
+
+        if (TextUtils.isEmpty(BuildConfig.LYRICS_STAND_IN)) {
+            // never load real providers with this
+            mReport.setText("No stand-in server configured, build with -PlyricsStandIn=http://<host>:<port>");
+            return;
+        }
+
+        final int lookups = getIntent().getIntExtra("lookups", DEFAULT_LOOKUPS);
+        final int concurrency = getIntent().getIntExtra("concurrency", DEFAULT_CONCURRENCY);
+        final long timeout = getIntent().getLongExtra("timeout", DEFAULT_TIMEOUT);
+        final float rate = getIntent().getFloatExtra("rate", 0);
+
+        // throwaway memo, so lookups always search
+        File memoFile = new File(getCacheDir(), "load-test-paths.journal");
+        //noinspection ResultOfMethodCallIgnored
+        memoFile.delete();
+        LyricsEngine engine = LyricsEngines.createNetwork(new SongPathMemo(memoFile, 0));
+        if (rate > 0) {
+            // lift the provider limit, to load the stand-in harder than the real one would allow
+            String host = Uri.parse(BuildConfig.LYRICS_STAND_IN).getHost();
+            HttpTransport.getInstance().setRateLimit(host, rate, (int) Math.ceil(rate));
+        }
+
+        mReport.setText("Running " + lookups + " lookups, " + concurrency + " at once against " + BuildConfig.LYRICS_STAND_IN);
+        final LoadDriver driver = new LoadDriver(engine, lookups, concurrency, timeout);
+        mRunner = new Thread(() -> {
+            try {
+                final LoadDriver.Report report = driver.run();
+                Log.i(TAG, "Load test finished:\n" + report);
+                runOnUiThread(() -> mReport.setText(report.toString()));
+            } catch (InterruptedException e) {
+                Log.i(TAG, "Load test interrupted");
+            }
+        }, "load-test");
+        mRunner.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mRunner != null) {
+            mRunner.interrupt();
+        }
+    }
+}
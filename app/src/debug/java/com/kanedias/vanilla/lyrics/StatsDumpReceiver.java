@@ -0,0 +1,47 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Debug-only receiver writing lookup statistics to file, so they can be pulled from the device:
+ * <pre>
+ * adb shell am broadcast -a com.kanedias.vanilla.lyrics.action.DUMP_STATS -p com.kanedias.vanilla.lyrics.debug
+ * </pre>
+ *
+ * @see LookupStats
+ *
+ * @author Kanedias
+ */
+public class StatsDumpReceiver extends BroadcastReceiver {
+
+    private static final String TAG = StatsDumpReceiver.class.getSimpleName();
+
+    /**
+     * Broadcast action asking to dump statistics to file
+     */
+    public static final String ACTION_DUMP_STATS = "com.kanedias.vanilla.lyrics.action.DUMP_STATS";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_DUMP_STATS.equals(intent.getAction())) {
+            return;
+        }
+
+        Context appCtx = context.getApplicationContext();
+        PendingResult pending = goAsync();
+        FileWrites.EXECUTOR.submit(() -> {
+            try {
+                LookupStats.getInstance().dump(appCtx);
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't write lookup statistics", e);
+            } finally {
+                pending.finish();
+            }
+        });
+    }
+}
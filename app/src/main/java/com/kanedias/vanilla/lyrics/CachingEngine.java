@@ -0,0 +1,93 @@
+package com.kanedias.vanilla.lyrics;
+
+/**
+ * Lyrics engine that remembers lyrics retrieved by the wrapped engine in the on-device cache.
+ * <p/>
+ * Fresh cache entries are returned immediately without touching the network. Expired entries are
+ * refreshed through the wrapped engine, but still returned if it fails, so the lyrics that were
+ * found once stay available offline.
+ * <p/>
+ * Songs the wrapped engine had no lyrics for are remembered too, and are not looked up again
+ * until the miss expires, unless explicitly refreshed.
+ *
+ * @see LyricsCache
+ * @see MissCache
+ *
+ * @author Kanedias
+ */
+public class CachingEngine implements LyricsEngine {
+
+    private final LyricsEngine mDelegate;
+    private final LyricsCache mCache;
+    private final MissCache mMisses;
+    private final LookupStats mStats = LookupStats.getInstance();
+
+    public CachingEngine(LyricsEngine delegate, LyricsCache cache, MissCache misses) {
+        this.mDelegate = delegate;
+        this.mCache = cache;
+        this.mMisses = misses;
+    }
+
+    @Override
+    public LyricsResult getLyrics(String artistName, String songTitle) {
+        SongKey key = SongKey.of(artistName, songTitle);
+        LyricsCache.Entry cached = mCache.get(key);
+        if (cached != null && !cached.expired) {
+            mStats.count("cache/hit");
+            return LyricsResult.found(cached.lyrics);
+        }
+
+        if (mMisses.contains(key)) {
+            // no sense in asking again so soon
+            mStats.count("cache/known-miss");
+            return cached != null ? LyricsResult.found(cached.lyrics) : LyricsResult.notFound();
+        }
+
+        mStats.count(cached != null ? "cache/expired" : "cache/miss");
+        return fetch(key, cached, artistName, songTitle);
+    }
+
+    /**
+     * Check if lyrics provider recently had no lyrics for the song. This is cheap, use it to skip
+     * hopeless songs before even starting a lookup.
+     *
+     * @param artistName band or artist name
+     * @param songTitle  full song title
+     * @return true if the song is known to have no lyrics
+     */
+    public boolean isKnownMiss(String artistName, String songTitle) {
+        return mMisses.contains(SongKey.of(artistName, songTitle));
+    }
+
+    /**
+     * Bypass the cache and retrieve lyrics from the wrapped engine, updating cached entry
+     *
+     * @param artistName band or artist name to search for
+     * @param songTitle  full song title to search for
+     * @return result containing song lyrics if available or the reason why they are not
+     */
+    public LyricsResult refresh(String artistName, String songTitle) {
+        SongKey key = SongKey.of(artistName, songTitle);
+        return fetch(key, mCache.get(key), artistName, songTitle);
+    }
+
+    private LyricsResult fetch(SongKey key, LyricsCache.Entry stale, String artistName, String songTitle) {
+        LyricsResult result = mDelegate.getLyrics(artistName, songTitle);
+        if (result.isFound()) {
+            mCache.put(key, result.lyrics);
+            return result;
+        }
+
+        if (result.status == LyricsResult.Status.NOT_FOUND) {
+            mMisses.add(key);
+        }
+
+        if (stale == null || result.status == LyricsResult.Status.CANCELLED) {
+            return result;
+        }
+
+        // network failed or lyrics are gone, old version is better than nothing
+        mStats.count("cache/stale-served");
+        return LyricsResult.found(stale.lyrics);
+    }
+}
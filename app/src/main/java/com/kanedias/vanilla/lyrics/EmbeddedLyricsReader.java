@@ -0,0 +1,705 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Reader of lyrics embedded into media file tags. Supports:
+ * <ul>
+ *     <li>ID3v2.2-2.4 tags (MP3), USLT and SYLT frames</li>
+ *     <li>Vorbis comments in FLAC and Ogg (Vorbis, Opus) files, LYRICS and UNSYNCEDLYRICS fields</li>
+ *     <li>MP4 (M4A) metadata, <code>&copy;lyr</code> atom</li>
+ * </ul>
+ * <p/>
+ * Only the metadata is read, through positional reads of the file channel. Blocks and frames that
+ * can't contain lyrics, like cover art and audio data itself, are skipped without reading.
+ *
+ * @author Kanedias
+ */
+public class EmbeddedLyricsReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    /**
+     * Guards against corrupted sizes, no sane lyrics field is bigger than this
+     */
+    private static final int MAX_FIELD_SIZE = 1024 * 1024;
+
+    static final int FLAC_VORBIS_COMMENT = 4;
+
+    private EmbeddedLyricsReader() {
+    }
+
+    /**
+     * Quick check, without any I/O, whether lyrics of this file can be read by this reader
+     *
+     * @param media media file
+     * @return true if file format is supported, false otherwise
+     */
+    public static boolean isSupported(File media) {
+        String name = media.getName().toLowerCase(Locale.US);
+        String ext = name.substring(name.lastIndexOf('.') + 1);
+        switch (ext) {
+            case "mp3":
+            case "flac":
+            case "ogg":
+            case "oga":
+            case "opus":
+            case "m4a":
+            case "mp4":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Read lyrics embedded into the media file
+     *
+     * @param media media file to read
+     * @return lyrics or null if there are none or file format is unknown
+     * @throws IOException on read errors or corrupted metadata
+     */
+    public static String readLyrics(File media) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(media, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer magic = read(channel, 0, 12);
+            if (startsWith(magic, 0, "ID3")) {
+                String lyrics = readId3v2(channel);
+                if (lyrics != null) {
+                    return lyrics;
+                }
+
+                // some taggers prepend ID3 to FLAC files
+                long afterId3 = 10 + synchsafe(magic, 6) + ((magic.get(5) & 0x10) != 0 ? 10 : 0);
+                ByteBuffer next = read(channel, afterId3, 4);
+                if (startsWith(next, 0, "fLaC")) {
+                    return readFlac(channel, afterId3);
+                }
+                return null;
+            }
+
+            if (startsWith(magic, 0, "fLaC")) {
+                return readFlac(channel, 0);
+            }
+
+            if (startsWith(magic, 0, "OggS")) {
+                return readOgg(channel);
+            }
+
+            if (startsWith(magic, 4, "ftyp")) {
+                return readMp4(channel);
+            }
+
+            return null;
+        } catch (EOFException e) {
+            // truncated file, metadata is corrupted
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // ---------------------------------------- ID3v2 ----------------------------------------
+
+    private static String readId3v2(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, 10);
+        int version = header.get(3);
+        int flags = header.get(5);
+        int tagSize = synchsafe(header, 6);
+
+        if (version < 2 || version > 4) {
+            // unknown version
+            return null;
+        }
+
+        ByteBuffer tag;
+        if ((flags & 0x80) != 0 && version < 4) {
+            // whole tag is unsynchronized, frame offsets don't map to file offsets, have to read it whole
+            tag = resynchronize(read(channel, 10, tagSize));
+        } else {
+            tag = null;
+        }
+
+        long pos = 0;
+        long end = tag != null ? tag.limit() : tagSize;
+        if ((flags & 0x40) != 0 && version >= 3) {
+            // skip extended header
+            ByteBuffer ext = frameBytes(channel, tag, pos, 4);
+            pos += version == 4 ? synchsafe(ext, 0) : 4 + ext.getInt(0);
+        }
+
+        int idLen = version == 2 ? 3 : 4;
+        int headerLen = version == 2 ? 6 : 10;
+        String syncedLyrics = null;
+        while (pos + headerLen <= end) {
+            ByteBuffer frameHeader = frameBytes(channel, tag, pos, headerLen);
+            if (frameHeader.get(0) == 0) {
+                // padding reached
+                break;
+            }
+
+            String id = new String(frameHeader.array(), frameHeader.arrayOffset(), idLen, ISO_8859_1);
+            int size;
+            int frameFlags = 0;
+            if (version == 2) {
+                size = ((frameHeader.get(3) & 0xFF) << 16) | ((frameHeader.get(4) & 0xFF) << 8) | (frameHeader.get(5) & 0xFF);
+            } else if (version == 3) {
+                size = frameHeader.getInt(4);
+                frameFlags = frameHeader.getShort(8);
+            } else {
+                size = synchsafe(frameHeader, 4);
+                frameFlags = frameHeader.getShort(8);
+            }
+
+            if (size <= 0 || pos + headerLen + size > end) {
+                // corrupted frame
+                break;
+            }
+
+            boolean uslt = id.equals("USLT") || id.equals("ULT");
+            boolean sylt = id.equals("SYLT") || id.equals("SLT");
+            if ((uslt || sylt) && size <= MAX_FIELD_SIZE && !isCompressedOrEncrypted(version, frameFlags)) {
+                ByteBuffer body = frameBytes(channel, tag, pos + headerLen, size);
+                if (version == 4 && (frameFlags & 0x0001) != 0) {
+                    // data length indicator, not needed
+                    body.position(body.position() + 4);
+                    body = body.slice();
+                }
+                if (version == 4 && (frameFlags & 0x0002) != 0) {
+                    body = resynchronize(body);
+                }
+
+                if (uslt) {
+                    String lyrics = parseUslt(body);
+                    if (lyrics != null && !lyrics.isEmpty()) {
+                        return lyrics;
+                    }
+                } else if (syncedLyrics == null) {
+                    syncedLyrics = parseSylt(body);
+                }
+            }
+
+            pos += headerLen + size;
+        }
+
+        // prefer unsynchronized lyrics, they are what Tag Editor writes
+        return syncedLyrics != null && !syncedLyrics.isEmpty() ? syncedLyrics : null;
+    }
+
+    private static boolean isCompressedOrEncrypted(int version, int frameFlags) {
+        if (version == 3) {
+            return (frameFlags & 0x00C0) != 0;
+        }
+        if (version == 4) {
+            return (frameFlags & 0x000C) != 0;
+        }
+        return false;
+    }
+
+    /**
+     * Retrieve frame bytes either from the file directly or from the in-memory tag, if it was unsynchronized
+     */
+    private static ByteBuffer frameBytes(FileChannel channel, ByteBuffer tag, long pos, int len) throws IOException {
+        if (tag == null) {
+            return read(channel, 10 + pos, len);
+        }
+
+        if (pos + len > tag.limit()) {
+            throw new EOFException("Frame crosses the tag boundary");
+        }
+        ByteBuffer dup = tag.duplicate();
+        dup.position((int) pos);
+        dup.limit((int) pos + len);
+        return dup.slice();
+    }
+
+    private static String parseUslt(ByteBuffer body) {
+        if (body.remaining() < 4) {
+            return null;
+        }
+
+        int encoding = body.get();
+        body.position(body.position() + 3); // language
+        readTerminated(body, encoding); // content descriptor
+        return decode(body, body.position(), body.limit(), encoding);
+    }
+
+    /**
+     * Synchronized lyrics are converted to LRC format if timestamps are in milliseconds,
+     * otherwise only text is retained
+     */
+    private static String parseSylt(ByteBuffer body) {
+        if (body.remaining() < 6) {
+            return null;
+        }
+
+        int encoding = body.get();
+        body.position(body.position() + 3); // language
+        int timestampFormat = body.get();
+        body.get(); // content type
+        readTerminated(body, encoding); // content descriptor
+
+        StringBuilder lrc = new StringBuilder();
+        while (body.remaining() > 4) {
+            String text = readTerminated(body, encoding);
+            if (body.remaining() < 4) {
+                break;
+            }
+            long timestamp = body.getInt() & 0xFFFFFFFFL;
+
+            if (timestampFormat == 2) {
+                // absolute time in milliseconds
+                lrc.append(String.format(Locale.US, "[%02d:%02d.%02d]",
+                        timestamp / 60_000, (timestamp / 1000) % 60, (timestamp % 1000) / 10));
+            }
+            // lines usually start with newline character
+            lrc.append(text.startsWith("\n") ? text.substring(1) : text).append('\n');
+        }
+        return lrc.toString().trim();
+    }
+
+    /**
+     * Read string terminated by null character of specified encoding, advance buffer past the terminator
+     */
+    private static String readTerminated(ByteBuffer body, int encoding) {
+        int start = body.position();
+        boolean wide = encoding == 1 || encoding == 2;
+        int i = start;
+        while (wide ? i + 1 < body.limit() : i < body.limit()) {
+            if (body.get(i) == 0 && (!wide || body.get(i + 1) == 0)) {
+                body.position(i + (wide ? 2 : 1));
+                return decode(body, start, i, encoding);
+            }
+            i += wide ? 2 : 1;
+        }
+
+        // no terminator, take everything
+        body.position(body.limit());
+        return decode(body, start, body.limit(), encoding);
+    }
+
+    private static String decode(ByteBuffer buf, int start, int end, int encoding) {
+        Charset charset;
+        switch (encoding) {
+            case 0: charset = ISO_8859_1; break;
+            case 1: charset = UTF_16; break;
+            case 2: charset = UTF_16BE; break;
+            default: charset = UTF_8; break;
+        }
+
+        // strip trailing terminators
+        int step = encoding == 1 || encoding == 2 ? 2 : 1;
+        while (end - step >= start && buf.get(end - step) == 0 && (step == 1 || buf.get(end - 1) == 0)) {
+            end -= step;
+        }
+        return new String(buf.array(), buf.arrayOffset() + start, end - start, charset);
+    }
+
+    /**
+     * Undo ID3 unsynchronization scheme: every 0xFF 0x00 pair is replaced with 0xFF
+     */
+    private static ByteBuffer resynchronize(ByteBuffer data) {
+        byte[] result = new byte[data.remaining()];
+        int len = 0;
+        byte prev = 0;
+        for (int i = data.position(); i < data.limit(); ++i) {
+            byte curr = data.get(i);
+            if (!(prev == (byte) 0xFF && curr == 0)) {
+                result[len++] = curr;
+            }
+            prev = curr;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(result, 0, len).slice();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        return buf;
+    }
+
+    static int synchsafe(ByteBuffer buf, int offset) {
+        return ((buf.get(offset) & 0x7F) << 21)
+                | ((buf.get(offset + 1) & 0x7F) << 14)
+                | ((buf.get(offset + 2) & 0x7F) << 7)
+                | (buf.get(offset + 3) & 0x7F);
+    }
+
+    // ---------------------------------------- FLAC ----------------------------------------
+
+    private static String readFlac(FileChannel channel, long start) throws IOException {
+        long pos = start + 4; // after fLaC marker
+        while (true) {
+            ByteBuffer blockHeader = read(channel, pos, 4);
+            boolean last = (blockHeader.get(0) & 0x80) != 0;
+            int type = blockHeader.get(0) & 0x7F;
+            int length = blockHeader.getInt(0) & 0xFFFFFF;
+
+            if (type == FLAC_VORBIS_COMMENT) {
+                return readVorbisComment(new ChannelStream(channel, pos + 4, length));
+            }
+
+            if (last) {
+                return null;
+            }
+            pos += 4 + length;
+        }
+    }
+
+    // ---------------------------------------- Ogg ----------------------------------------
+
+    private static String readOgg(FileChannel channel) throws IOException {
+        InputStream packet = new OggPacketStream(channel, 1); // second packet is comment header
+        byte[] signature = new byte[8];
+        readFully(packet, signature, 0, 7);
+        if (signature[0] == 3 && new String(signature, 1, 6, ISO_8859_1).equals("vorbis")) {
+            return readVorbisComment(packet);
+        }
+
+        readFully(packet, signature, 7, 1);
+        if (new String(signature, 0, 8, ISO_8859_1).equals("OpusTags")) {
+            return readVorbisComment(packet);
+        }
+
+        // some other codec
+        return null;
+    }
+
+    // ---------------------------------------- Vorbis comment ----------------------------------------
+
+    /**
+     * Read Vorbis comment structure from the stream. Fields that are not lyrics are skipped.
+     */
+    private static String readVorbisComment(InputStream is) throws IOException {
+        long vendorLength = readLittleEndianInt(is);
+        skipFully(is, vendorLength);
+
+        long count = readLittleEndianInt(is);
+        for (long i = 0; i < count; ++i) {
+            long length = readLittleEndianInt(is);
+            if (length <= "LYRICS=".length() || length > MAX_FIELD_SIZE) {
+                // empty or too big to be lyrics
+                skipFully(is, length);
+                continue;
+            }
+
+            byte[] field = new byte[(int) length];
+            readFully(is, field, 0, field.length);
+            int eq = indexOf(field, (byte) '=');
+            if (eq < 0) {
+                continue;
+            }
+
+            String name = new String(field, 0, eq, ISO_8859_1).toUpperCase(Locale.US);
+            if (name.equals("LYRICS") || name.equals("UNSYNCEDLYRICS")) {
+                String value = new String(field, eq + 1, field.length - eq - 1, UTF_8);
+                if (!value.trim().isEmpty()) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    // ---------------------------------------- MP4 ----------------------------------------
+
+    private static final String[] MP4_LYRICS_PATH = {"moov", "udta", "meta", "ilst", "\u00A9lyr", "data"};
+
+    private static String readMp4(FileChannel channel) throws IOException {
+        long pos = 0;
+        long end = channel.size();
+        for (int depth = 0; depth < MP4_LYRICS_PATH.length; ++depth) {
+            long[] atom = findAtom(channel, pos, end, MP4_LYRICS_PATH[depth]);
+            if (atom == null) {
+                return null;
+            }
+
+            pos = atom[0];
+            end = atom[1];
+            if (MP4_LYRICS_PATH[depth].equals("meta")) {
+                // full atom, version and flags precede children
+                pos += 4;
+            }
+        }
+
+        // data atom contents: type indicator, locale, value
+        long length = end - pos - 8;
+        if (length <= 0 || length > MAX_FIELD_SIZE) {
+            return null;
+        }
+
+        ByteBuffer value = read(channel, pos + 8, (int) length);
+        return new String(value.array(), value.arrayOffset(), value.remaining(), UTF_8);
+    }
+
+    /**
+     * Find atom among siblings
+     *
+     * @return start and end of atom contents or null if not found
+     */
+    private static long[] findAtom(FileChannel channel, long pos, long end, String type) throws IOException {
+        while (pos + 8 <= end) {
+            ByteBuffer header = read(channel, pos, 8);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String atomType = new String(header.array(), header.arrayOffset() + 4, 4, ISO_8859_1);
+            int headerLen = 8;
+            if (size == 1) {
+                // 64-bit size follows
+                size = read(channel, pos + 8, 8).getLong(0);
+                headerLen = 16;
+            } else if (size == 0) {
+                // extends to the end of enclosing space
+                size = end - pos;
+            }
+
+            if (size < headerLen || pos + size > end) {
+                // corrupted
+                return null;
+            }
+
+            if (atomType.equals(type)) {
+                return new long[]{pos + headerLen, pos + size};
+            }
+            pos += size;
+        }
+        return null;
+    }
+
+    // ---------------------------------------- utilities ----------------------------------------
+
+    static ByteBuffer read(FileChannel channel, long pos, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, pos + buf.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + (pos + buf.position()));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    static boolean startsWith(ByteBuffer buf, int offset, String prefix) {
+        if (buf.limit() < offset + prefix.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length(); ++i) {
+            if (buf.get(offset + i) != (byte) prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] data, byte needle) {
+        for (int i = 0; i < data.length; ++i) {
+            if (data[i] == needle) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long readLittleEndianInt(InputStream is) throws IOException {
+        byte[] buf = new byte[4];
+        readFully(is, buf, 0, 4);
+        return (buf[0] & 0xFFL) | ((buf[1] & 0xFFL) << 8) | ((buf[2] & 0xFFL) << 16) | ((buf[3] & 0xFFL) << 24);
+    }
+
+    private static void readFully(InputStream is, byte[] buf, int off, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int chunk = is.read(buf, off + read, len - read);
+            if (chunk < 0) {
+                throw new EOFException();
+            }
+            read += chunk;
+        }
+    }
+
+    private static void skipFully(InputStream is, long len) throws IOException {
+        while (len > 0) {
+            long skipped = is.skip(len);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            len -= skipped;
+        }
+    }
+
+    /**
+     * Stream over the region of the file channel, skips are done without reading
+     */
+    private static class ChannelStream extends InputStream {
+
+        private final FileChannel mChannel;
+        private final long mEnd;
+        private long mPos;
+
+        private ChannelStream(FileChannel channel, long start, long length) {
+            this.mChannel = channel;
+            this.mPos = start;
+            this.mEnd = start + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mPos >= mEnd) {
+                return -1;
+            }
+
+            int toRead = (int) Math.min(len, mEnd - mPos);
+            int read = mChannel.read(ByteBuffer.wrap(b, off, toRead), mPos);
+            if (read > 0) {
+                mPos += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.min(n, mEnd - mPos);
+            mPos += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Stream over the contents of one logical packet of Ogg bitstream, reassembled from pages.
+     * Only the first logical bitstream is considered, skipped data is not read.
+     */
+    private static class OggPacketStream extends InputStream {
+
+        private final FileChannel mChannel;
+
+        private long mPagePos;      // position of the current page
+        private byte[] mSegments;   // segment table of current page
+        private int mSegmentIdx;    // index of the next segment in the table
+        private long mDataPos;      // position of the next unread byte of the current segment
+        private int mSegmentLeft;   // bytes left in current segment
+        private boolean mPacketEnded;
+
+        /**
+         * @param channel  channel of the Ogg file
+         * @param packetNo zero-based number of the packet to read
+         */
+        private OggPacketStream(FileChannel channel, int packetNo) throws IOException {
+            this.mChannel = channel;
+            loadPage(0);
+
+            // skip preceding packets
+            int packetsLeft = packetNo;
+            while (packetsLeft > 0) {
+                if (nextSegment() < 255) {
+                    packetsLeft--;
+                }
+                mDataPos += mSegmentLeft;
+                mSegmentLeft = 0;
+            }
+            mPacketEnded = false;
+            advance();
+        }
+
+        private void loadPage(long pos) throws IOException {
+            ByteBuffer header = EmbeddedLyricsReader.read(mChannel, pos, 27);
+            if (!startsWith(header, 0, "OggS")) {
+                throw new IOException("Ogg page expected at " + pos);
+            }
+
+            int segmentCount = header.get(26) & 0xFF;
+            mSegments = EmbeddedLyricsReader.read(mChannel, pos + 27, segmentCount).array();
+            mSegmentIdx = 0;
+            mPagePos = pos;
+            mDataPos = pos + 27 + segmentCount;
+        }
+
+        /**
+         * Move to the next segment, loading next page if needed
+         *
+         * @return size of the segment
+         */
+        private int nextSegment() throws IOException {
+            while (mSegmentIdx >= mSegments.length) {
+                long pageDataLength = 0;
+                for (byte segment : mSegments) {
+                    pageDataLength += segment & 0xFF;
+                }
+                loadPage(mPagePos + 27 + mSegments.length + pageDataLength);
+            }
+
+            mSegmentLeft = mSegments[mSegmentIdx++] & 0xFF;
+            return mSegmentLeft;
+        }
+
+        /**
+         * Make sure current segment has data unless the packet is over
+         */
+        private void advance() throws IOException {
+            while (mSegmentLeft == 0 && !mPacketEnded) {
+                int size = nextSegment();
+                if (size < 255) {
+                    // lacing value less than 255 means this is the last segment of the packet
+                    mPacketEnded = true;
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            advance();
+            if (mSegmentLeft == 0) {
+                return -1;
+            }
+
+            int toRead = Math.min(len, mSegmentLeft);
+            ByteBuffer target = ByteBuffer.wrap(b, off, toRead);
+            while (target.hasRemaining()) {
+                if (mChannel.read(target, mDataPos + target.position() - off) < 0) {
+                    throw new EOFException();
+                }
+            }
+            mDataPos += toRead;
+            mSegmentLeft -= toRead;
+            return toRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                advance();
+                if (mSegmentLeft == 0) {
+                    break;
+                }
+
+                int chunk = (int) Math.min(n - skipped, mSegmentLeft);
+                mDataPos += chunk;
+                mSegmentLeft -= chunk;
+                skipped += chunk;
+            }
+            return skipped;
+        }
+    }
+}
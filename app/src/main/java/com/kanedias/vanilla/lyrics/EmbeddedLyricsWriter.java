@@ -0,0 +1,468 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static com.kanedias.vanilla.lyrics.EmbeddedLyricsReader.FLAC_VORBIS_COMMENT;
+import static com.kanedias.vanilla.lyrics.EmbeddedLyricsReader.read;
+import static com.kanedias.vanilla.lyrics.EmbeddedLyricsReader.startsWith;
+import static com.kanedias.vanilla.lyrics.EmbeddedLyricsReader.synchsafe;
+
+/**
+ * Writer of lyrics into media file tags. Supports ID3v2.3-2.4 tags (MP3), USLT frame
+ * and Vorbis comments of FLAC files, LYRICS field.
+ * <p/>
+ * Whenever possible, tag is updated in place using padding that taggers leave for this purpose,
+ * so only the metadata region of the file is written. If there's not enough room, file is rewritten
+ * to the temporary one, which then replaces the original. Audio data is copied channel-to-channel in this case,
+ * and new tag gets padding of its own, so next write won't need a rewrite.
+ *
+ * @see EmbeddedLyricsReader
+ *
+ * @author Kanedias
+ */
+public class EmbeddedLyricsWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+
+    private static final int FLAC_PADDING = 1;
+    private static final int FLAC_MAX_BLOCK_SIZE = 0xFFFFFF;
+
+    /**
+     * Padding to reserve after the tag when file has to be rewritten
+     */
+    private static final int REWRITE_PADDING = 4096;
+
+    private static final String VENDOR = "Vanilla Lyrics Search";
+
+    private EmbeddedLyricsWriter() {
+    }
+
+    /**
+     * Quick check, without any I/O, whether lyrics can be written to this file by this writer
+     *
+     * @param media media file
+     * @return true if file format is supported, false otherwise
+     */
+    public static boolean isSupported(File media) {
+        String name = media.getName().toLowerCase(Locale.US);
+        return name.endsWith(".mp3") || name.endsWith(".flac");
+    }
+
+    /**
+     * Write lyrics into the media file tag, replacing the ones that are there
+     *
+     * @param media  media file to write into
+     * @param lyrics lyrics to write
+     * @return true if lyrics were written, false if file format or tag version is not supported
+     * @throws IOException on read/write errors or corrupted metadata
+     */
+    public static boolean writeLyrics(File media, String lyrics) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(media, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = read(channel, 0, 10);
+            if (startsWith(header, 0, "fLaC")) {
+                return writeFlac(media, channel, lyrics);
+            }
+
+            if (!media.getName().toLowerCase(Locale.US).endsWith(".mp3")) {
+                return false;
+            }
+
+            if (startsWith(header, 0, "ID3")) {
+                return writeId3v2(media, channel, header, lyrics);
+            }
+
+            // no tag yet, prepend new one
+            byte[] uslt = usltFrame(4, lyrics);
+            rewrite(media, channel, 0, out -> writeId3v2Tag(out, channel, 4, new ArrayList<>(), uslt));
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    // ---------------------------------------- ID3v2 ----------------------------------------
+
+    private static boolean writeId3v2(File media, FileChannel channel, ByteBuffer header, String lyrics) throws IOException {
+        int version = header.get(3);
+        int flags = header.get(5);
+        long tagEnd = 10 + synchsafe(header, 6);
+        boolean hasFooter = version == 4 && (flags & 0x10) != 0;
+
+        if (version < 3 || version > 4 || (flags & 0x80) != 0) {
+            // ID3v2.2 or tag that is unsynchronized as a whole. Frames copied byte for byte would keep
+            // unsynchronization scheme that new tag header doesn't declare, leave it to Tag Editor
+            return false;
+        }
+
+        boolean hasExtHeader = (flags & 0x40) != 0;
+        long pos = 10;
+        if (hasExtHeader) {
+            // it may describe padding and CRC of the tag, it will be dropped
+            ByteBuffer ext = read(channel, pos, 4);
+            pos += version == 4 ? synchsafe(ext, 0) : 4 + ext.getInt(0);
+        }
+
+        // frames to keep, as {position, length including header}
+        List<long[]> frames = new ArrayList<>();
+        long firstLyrics = -1;
+        while (pos + 10 <= tagEnd) {
+            ByteBuffer frameHeader = read(channel, pos, 10);
+            if (frameHeader.get(0) == 0) {
+                // padding reached
+                break;
+            }
+
+            int size = version == 4 ? synchsafe(frameHeader, 4) : frameHeader.getInt(4);
+            if (size < 0 || pos + 10 + size > tagEnd) {
+                // corrupted, don't make it worse
+                return false;
+            }
+
+            String id = new String(frameHeader.array(), 0, 4, ISO_8859_1);
+            if (id.equals("USLT")) {
+                if (firstLyrics < 0) {
+                    firstLyrics = pos;
+                }
+            } else {
+                frames.add(new long[]{pos, 10 + size});
+            }
+            pos += 10 + size;
+        }
+
+        byte[] uslt = usltFrame(version, lyrics);
+
+        // frames before the first lyrics frame stay where they are, the rest is moved
+        long regionStart = firstLyrics >= 0 ? firstLyrics : pos;
+        long needed = uslt.length;
+        for (long[] frame : frames) {
+            if (frame[0] > regionStart) {
+                needed += frame[1];
+            }
+        }
+
+        if (!hasFooter && !hasExtHeader && regionStart + needed <= tagEnd) {
+            // fits into the tag, rest of it becomes padding
+            ByteBuffer region = ByteBuffer.allocate((int) (tagEnd - regionStart));
+            for (long[] frame : frames) {
+                if (frame[0] > regionStart) {
+                    region.put(read(channel, frame[0], (int) frame[1]));
+                }
+            }
+            region.put(uslt);
+            region.rewind();
+            writeFully(channel, region, regionStart);
+            channel.force(false);
+            return true;
+        }
+
+        long audioStart = tagEnd + (hasFooter ? 10 : 0);
+        rewrite(media, channel, audioStart, out -> writeId3v2Tag(out, channel, version, frames, uslt));
+        return true;
+    }
+
+    /**
+     * Write new ID3v2 tag with specified frames and padding. Extended header and footer are not written.
+     */
+    private static void writeId3v2Tag(FileChannel out, FileChannel source, int version,
+                                      List<long[]> frames, byte[] uslt) throws IOException {
+        long tagSize = uslt.length + REWRITE_PADDING;
+        for (long[] frame : frames) {
+            tagSize += frame[1];
+        }
+
+        if (tagSize > 0x0FFFFFFF) {
+            throw new IOException("ID3v2 tag is too big: " + tagSize);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put("ID3".getBytes(ISO_8859_1)).put((byte) version).put((byte) 0).put((byte) 0);
+        header.put(toSynchsafe((int) tagSize));
+        header.flip();
+        writeFully(out, header, out.position());
+
+        for (long[] frame : frames) {
+            transferFully(source, frame[0], frame[1], out);
+        }
+        writeFully(out, ByteBuffer.wrap(uslt), out.position());
+        writeFully(out, ByteBuffer.allocate(REWRITE_PADDING), out.position());
+    }
+
+    /**
+     * Create USLT frame with lyrics, language is always English, content descriptor is empty
+     */
+    private static byte[] usltFrame(int version, String lyrics) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (version == 4) {
+            body.write(3); // UTF-8
+            body.write('e');
+            body.write('n');
+            body.write('g');
+            body.write(0); // empty descriptor
+        } else {
+            body.write(1); // UTF-16 with BOM, ID3v2.3 has no UTF-8
+            body.write('e');
+            body.write('n');
+            body.write('g');
+            body.write(0); // empty descriptor
+            body.write(0);
+        }
+        byte[] text = lyrics.getBytes(version == 4 ? UTF_8 : UTF_16);
+        body.write(text, 0, text.length);
+
+        int size = body.size();
+        ByteBuffer frame = ByteBuffer.allocate(10 + size);
+        frame.put("USLT".getBytes(ISO_8859_1));
+        if (version == 4) {
+            frame.put(toSynchsafe(size));
+        } else {
+            frame.putInt(size);
+        }
+        frame.putShort((short) 0);
+        frame.put(body.toByteArray());
+        return frame.array();
+    }
+
+    private static byte[] toSynchsafe(int value) {
+        return new byte[] {
+                (byte) ((value >> 21) & 0x7F),
+                (byte) ((value >> 14) & 0x7F),
+                (byte) ((value >> 7) & 0x7F),
+                (byte) (value & 0x7F)
+        };
+    }
+
+    // ---------------------------------------- FLAC ----------------------------------------
+
+    private static boolean writeFlac(File media, FileChannel channel, String lyrics) throws IOException {
+        // metadata blocks, as {position, type, length without header}
+        List<long[]> blocks = new ArrayList<>();
+        long pos = 4;
+        boolean last = false;
+        int commentIdx = -1;
+        while (!last) {
+            ByteBuffer blockHeader = read(channel, pos, 4);
+            last = (blockHeader.get(0) & 0x80) != 0;
+            int type = blockHeader.get(0) & 0x7F;
+            int length = blockHeader.getInt(0) & 0xFFFFFF;
+            if (type == FLAC_VORBIS_COMMENT && commentIdx < 0) {
+                commentIdx = blocks.size();
+            }
+            blocks.add(new long[]{pos, type, length});
+            pos += 4 + length;
+        }
+        long audioStart = pos;
+
+        ByteBuffer oldComment = null;
+        if (commentIdx >= 0) {
+            long[] block = blocks.get(commentIdx);
+            oldComment = read(channel, block[0] + 4, (int) block[2]);
+        }
+        byte[] comment = vorbisComment(oldComment, lyrics);
+        if (comment.length > FLAC_MAX_BLOCK_SIZE) {
+            throw new IOException("Vorbis comment is too big: " + comment.length);
+        }
+
+        // look for adjacent padding blocks, along with old comment, that can hold new comment
+        int runStart = -1, runEnd = -1;
+        for (int i = 1; i < blocks.size(); ) { // STREAMINFO must stay first
+            int j = i;
+            long space = 0;
+            boolean hasComment = false;
+            while (j < blocks.size() && (blocks.get(j)[1] == FLAC_PADDING || j == commentIdx)) {
+                space += 4 + blocks.get(j)[2];
+                hasComment |= j == commentIdx;
+                j++;
+            }
+
+            // new comment must fill the space exactly or leave room for padding block header
+            boolean fits = space == 4 + comment.length || space >= 4 + comment.length + 4;
+            if (j > i && fits && (runStart < 0 || hasComment)) {
+                runStart = i;
+                runEnd = j;
+            }
+            i = Math.max(j, i + 1);
+        }
+
+        if (runStart >= 0) {
+            long start = blocks.get(runStart)[0];
+            long[] lastInRun = blocks.get(runEnd - 1);
+            long space = lastInRun[0] + 4 + lastInRun[2] - start;
+            long leftover = space - 4 - comment.length;
+            boolean runIsLast = runEnd == blocks.size();
+
+            ByteBuffer region = ByteBuffer.allocate((int) space);
+            region.put(flacBlockHeader(FLAC_VORBIS_COMMENT, comment.length, runIsLast && leftover == 0));
+            region.put(comment);
+            if (leftover > 0) {
+                region.put(flacBlockHeader(FLAC_PADDING, (int) leftover - 4, runIsLast));
+            }
+            region.rewind();
+            writeFully(channel, region, start);
+
+            if (commentIdx >= 0 && (commentIdx < runStart || commentIdx >= runEnd)) {
+                // old comment is somewhere else, turn it into padding
+                long commentPos = blocks.get(commentIdx)[0];
+                byte flags = read(channel, commentPos, 1).get(0);
+                writeFully(channel, ByteBuffer.wrap(new byte[]{(byte) ((flags & 0x80) | FLAC_PADDING)}), commentPos);
+            }
+            channel.force(false);
+            return true;
+        }
+
+        // no room, rewrite metadata dropping old comment and padding
+        int oldCommentIdx = commentIdx;
+        rewrite(media, channel, audioStart, out -> {
+            writeFully(out, ByteBuffer.wrap("fLaC".getBytes(ISO_8859_1)), out.position());
+            for (int i = 0; i < blocks.size(); ++i) {
+                long[] block = blocks.get(i);
+                if (block[1] == FLAC_PADDING || i == oldCommentIdx) {
+                    continue;
+                }
+                writeFully(out, flacBlockHeader((int) block[1], (int) block[2], false), out.position());
+                transferFully(channel, block[0] + 4, block[2], out);
+            }
+            writeFully(out, flacBlockHeader(FLAC_VORBIS_COMMENT, comment.length, false), out.position());
+            writeFully(out, ByteBuffer.wrap(comment), out.position());
+            writeFully(out, flacBlockHeader(FLAC_PADDING, REWRITE_PADDING, true), out.position());
+            writeFully(out, ByteBuffer.allocate(REWRITE_PADDING), out.position());
+        });
+        return true;
+    }
+
+    private static ByteBuffer flacBlockHeader(int type, int length, boolean last) {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(length);
+        header.put(0, (byte) (type | (last ? 0x80 : 0)));
+        header.rewind();
+        return header;
+    }
+
+    /**
+     * Create Vorbis comment structure with all the fields of old one except lyrics, plus new lyrics field
+     *
+     * @param old    old comment contents or null if there was none
+     * @param lyrics lyrics to add
+     * @return new comment contents
+     */
+    private static byte[] vorbisComment(ByteBuffer old, String lyrics) throws IOException {
+        byte[] vendor = VENDOR.getBytes(UTF_8);
+        List<byte[]> fields = new ArrayList<>();
+        if (old != null) {
+            old.order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                vendor = new byte[old.getInt()];
+                old.get(vendor);
+
+                int count = old.getInt();
+                for (int i = 0; i < count; ++i) {
+                    byte[] field = new byte[old.getInt()];
+                    old.get(field);
+
+                    String name = new String(field, 0, Math.min(field.length, 15), ISO_8859_1).toUpperCase(Locale.US);
+                    if (name.startsWith("LYRICS=") || name.startsWith("UNSYNCEDLYRICS=")) {
+                        continue;
+                    }
+                    fields.add(field);
+                }
+            } catch (RuntimeException e) {
+                // buffer underflow or negative length
+                throw new EOFException("Corrupted Vorbis comment");
+            }
+        }
+        fields.add(("LYRICS=" + lyrics).getBytes(UTF_8));
+
+        int size = 4 + vendor.length + 4;
+        for (byte[] field : fields) {
+            size += 4 + field.length;
+        }
+
+        ByteBuffer comment = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        comment.putInt(vendor.length).put(vendor);
+        comment.putInt(fields.size());
+        for (byte[] field : fields) {
+            comment.putInt(field.length).put(field);
+        }
+        return comment.array();
+    }
+
+    // ---------------------------------------- utilities ----------------------------------------
+
+    /**
+     * Writer of the new metadata region of the file being rewritten
+     */
+    private interface MetadataWriter {
+        void writeTo(FileChannel out) throws IOException;
+    }
+
+    /**
+     * Rewrite the media file through the temporary file: new metadata, then audio data of the original file.
+     * Temporary file replaces the original only when it's completely written and synced.
+     *
+     * @param media      media file to rewrite
+     * @param source     channel of the media file
+     * @param audioStart position of audio data in the media file, everything before is replaced by new metadata
+     * @param metadata   writer of new metadata
+     */
+    private static void rewrite(File media, FileChannel source, long audioStart, MetadataWriter metadata) throws IOException {
+        File tmp = new File(media.getParentFile(), "." + media.getName() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        boolean written = false;
+        try {
+            FileChannel out = fos.getChannel();
+            metadata.writeTo(out);
+            transferFully(source, audioStart, source.size() - audioStart, out);
+            out.force(true);
+            written = true;
+        } finally {
+            fos.close();
+            if (!written) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+
+        if (!tmp.renameTo(media)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Couldn't replace " + media + " with rewritten file");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        long written = 0;
+        while (buf.hasRemaining()) {
+            written += channel.write(buf, pos + written);
+        }
+        if (channel.position() < pos + written) {
+            // positional writes don't move the channel, but sequential callers rely on it
+            channel.position(pos + written);
+        }
+    }
+
+    private static void transferFully(FileChannel source, long pos, long count, FileChannel target) throws IOException {
+        while (count > 0) {
+            long transferred = source.transferTo(pos, count, target);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of file at " + pos);
+            }
+            pos += transferred;
+            count -= transferred;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide executor for writes to app and media files.
+ * <p/>
+ * File writes are serialized, so two of them never rewrite the same file at once, and none of them
+ * is done on the main thread. Only short writes belong here, long-running jobs would hold up the dialog.
+ *
+ * @author Kanedias
+ */
+public final class FileWrites {
+
+    public static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private FileWrites() {
+    }
+}
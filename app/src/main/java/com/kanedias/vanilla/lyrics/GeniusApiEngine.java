@@ -3,22 +3,13 @@ package com.kanedias.vanilla.lyrics;
 import android.net.Uri;
 import android.util.Log;
 
-import com.kanedias.vanilla.plugins.PluginUtils;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.nodes.Node;
-import org.jsoup.nodes.TextNode;
+import com.google.gson.stream.MalformedJsonException;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author Kanedias
@@ -27,130 +18,144 @@ import javax.net.ssl.HttpsURLConnection;
  */
 public class GeniusApiEngine implements LyricsEngine {
 
-    private static final String GENIUS_API_HOST = "api.genius.com";
+    private static final String GENIUS_API_URL = "https://api.genius.com";
     private static final String GENIUS_MAIN_URL = "https://genius.com";
 
     private static final String GENIUS_API_TOKEN = BuildConfig.GENIUS_API_TOKEN;
     private static final String TAG = GeniusApiEngine.class.getSimpleName();
 
-    @Override
-    public String getLyrics(String artistName, String songTitle) {
-        try {
+    /**
+     * Genius doesn't document its limits, this is what it tolerates from one token without throttling
+     */
+    private static final double GENIUS_API_RATE = 5;
+    private static final int GENIUS_API_BURST = 10;
 
-            JSONObject searchReply = makeApiCall(artistName, songTitle);
-            if (searchReply == null) { // no URL in API answer or no correct answer at all
-                return null;
-            }
+    private final HttpTransport mTransport = HttpTransport.getInstance();
+    private final LookupStats mStats = LookupStats.getInstance();
+    private final SongPathMemo mPaths;
+    private final String mApiUrl;
+    private final String mMainUrl;
 
-            // get first match from list
-            JSONArray hits = searchReply.getJSONObject("response").getJSONArray("hits");
-            if (hits == null || hits.length() == 0) {
-                // no hits
-                return null;
-            }
+    /**
+     * @param paths memo of song page paths found by search, so it's not repeated on refresh
+     */
+    public GeniusApiEngine(SongPathMemo paths) {
+        this(paths, GENIUS_API_URL, GENIUS_MAIN_URL);
+    }
+
+    /**
+     * Engine talking to other endpoints than the real Genius, e.g. to a local stand-in server
+     * replaying recorded answers
+     *
+     * @param paths   memo of song page paths found by search, so it's not repeated on refresh
+     * @param apiUrl  base address of the search API, without trailing slash
+     * @param mainUrl base address of song pages, without trailing slash
+     */
+    public GeniusApiEngine(SongPathMemo paths, String apiUrl, String mainUrl) {
+        this.mPaths = paths;
+        this.mApiUrl = apiUrl;
+        this.mMainUrl = mainUrl;
+        mTransport.setRateLimit(Uri.parse(apiUrl).getHost(), GENIUS_API_RATE, GENIUS_API_BURST);
+    }
 
-            for (int i = 0; i < hits.length(); ++i) {
-                JSONObject song = hits.getJSONObject(i);
-                if (!song.getString("type").equals("song")) {
-                    // not a song, skip
-                    continue;
+    @Override
+    public LyricsResult getLyrics(String artistName, String songTitle) {
+        try {
+            SongKey key = SongKey.of(artistName, songTitle);
+            String knownUrl = mPaths.get(key);
+            if (knownUrl != null) {
+                LyricsResult known = timedPage(knownUrl);
+                if (known.status != LyricsResult.Status.NOT_FOUND) {
+                    return known;
                 }
 
-                String lyricsUrl = song.getJSONObject("result").getString("path");
-                return parseFullLyricsPage(lyricsUrl);
+                // page is gone, maybe moved, search again
+                mPaths.remove(key);
             }
 
-            return null;
+            long searchStarted = System.nanoTime();
+            String lyricsUrl = makeApiCall(artistName, songTitle);
+            mStats.recordPhase("genius/search", searchStarted);
+            if (lyricsUrl == null) { // no song in API answer
+                return LyricsResult.notFound();
+            }
 
+            mPaths.put(key, lyricsUrl);
+            return timedPage(lyricsUrl);
+
+        } catch (MalformedJsonException | IllegalStateException e) {
+            Log.w(TAG, "Unexpected structure of API answer", e);
+            return LyricsResult.failed(LyricsResult.Status.PARSE_ERROR);
         } catch (IOException e) {
-            Log.w(TAG, "Couldn't connect to lyrics wiki REST endpoints", e);
-            return null;
-        } catch (JSONException e) {
-            Log.w(TAG, "Couldn't transform API answer to JSON entity", e);
-            return null;
+            Log.w(TAG, "Couldn't connect to Genius REST endpoints", e);
+            return LyricsResult.failed(e);
         }
     }
 
-    private String parseFullLyricsPage(String lyricsUrl) throws IOException {
-        if (lyricsUrl == null)
-            return null;
+    private LyricsResult timedPage(String lyricsUrl) throws IOException {
+        long started = System.nanoTime();
+        LyricsResult result = parseFullLyricsPage(lyricsUrl);
+        mStats.recordPhase("genius/page", started);
+        return result;
+    }
 
-        HttpsURLConnection pageGet = null;
-        try {
-            pageGet = (HttpsURLConnection) new URL(GENIUS_MAIN_URL + lyricsUrl).openConnection();
-            pageGet.setReadTimeout(10_000);
-            pageGet.setConnectTimeout(15_000);
+    private LyricsResult parseFullLyricsPage(String lyricsUrl) throws IOException {
 
-            pageGet.connect();
-            int response = pageGet.getResponseCode();
-            if (response != HttpsURLConnection.HTTP_OK) {
+        HttpTransport.Response pageGet = null;
+        try {
+            pageGet = mTransport.get(mMainUrl + lyricsUrl);
+            if (pageGet.code() != HttpURLConnection.HTTP_OK) {
                 // redirects are handled internally, this is clearly an error
-                return null;
+                return LyricsResult.failed(pageGet.code());
             }
 
-            InputStream is = pageGet.getInputStream();
-            Document page = Jsoup.parse(is, "UTF-8", GENIUS_MAIN_URL);
-            Element lyrics = page.select("div.lyrics p").first();
-
-            if (lyrics == null) {
+            String lyricsHtml = GeniusParser.extractLyricsHtml(new InputStreamReader(pageGet.body(), "UTF-8"));
+            if (lyricsHtml == null) {
                 // page format changed
-                return null;
+                return LyricsResult.failed(LyricsResult.Status.PARSE_ERROR);
             }
 
-            StringBuilder builder = new StringBuilder();
-            for (Node curr : lyrics.childNodes()) {
-                if (curr instanceof Element && ((Element) curr).tagName().equals("br")) {
-                    builder.append("\n");
-                } else if (curr instanceof Element) {
-                    builder.append(((Element) curr).text());
-                } else if (curr instanceof TextNode) {
-                    builder.append(((TextNode) curr).text());
-                }
+            long parseStarted = System.nanoTime();
+            String lyrics = GeniusParser.lyricsToText(lyricsHtml, mMainUrl);
+            mStats.recordPhase("genius/parse", parseStarted);
+            if (lyrics == null) {
+                return LyricsResult.failed(LyricsResult.Status.PARSE_ERROR);
             }
 
-            return builder.toString();
+            return LyricsResult.found(lyrics);
         } finally {
             if (pageGet != null) {
-                pageGet.disconnect();
+                pageGet.close();
             }
         }
     }
 
     /**
      * First call
+     *
+     * @return path of the first song page found, null if no song was found
      */
-    private JSONObject makeApiCall(String artistName, String songTitle) throws IOException, JSONException {
-        HttpsURLConnection apiCall = null;
+    private String makeApiCall(String artistName, String songTitle) throws IOException {
+        HttpTransport.Response apiCall = null;
         try {
             // build query
-            Uri link = new Uri.Builder()
-                    .scheme("https")
-                    .authority(GENIUS_API_HOST)
-                    .path("search")
+            Uri link = Uri.parse(mApiUrl).buildUpon()
+                    .appendPath("search")
                     .appendQueryParameter("q", artistName + " " + songTitle)
                     .build();
 
-            // construct an http request
-            apiCall = (HttpsURLConnection) new URL(link.toString()).openConnection();
-            apiCall.setReadTimeout(10_000);
-            apiCall.setConnectTimeout(15_000);
-
-            apiCall.setRequestProperty("Authorization", "Bearer " + GENIUS_API_TOKEN);
-
             // execute
-            apiCall.connect();
-            int response = apiCall.getResponseCode();
-            if (response != HttpsURLConnection.HTTP_OK) {
+            Map<String, String> auth = Collections.singletonMap("Authorization", "Bearer " + GENIUS_API_TOKEN);
+            apiCall = mTransport.get(link.toString(), auth);
+            if (apiCall.code() != HttpURLConnection.HTTP_OK) {
                 // redirects are handled internally, this is clearly an error
-                return null;
+                throw new HttpTransport.StatusException(apiCall.code());
             }
 
-            InputStream is = apiCall.getInputStream();
-            String reply = new String(PluginUtils.readFully(is), "UTF-8");
-            return new JSONObject(reply);
+            return GeniusParser.findFirstSongPath(new InputStreamReader(apiCall.body(), "UTF-8"));
         } finally {
             if (apiCall != null) {
-                apiCall.disconnect();
+                apiCall.close();
             }
         }
     }
@@ -0,0 +1,275 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Lyrics engine that tracks health of the wrapped engine and stops calling it while it's broken.
+ * <p/>
+ * Outcomes and latencies of the recent calls are kept in a rolling window. After several failures in a row,
+ * or when most of the recent calls fail, the circuit opens: calls fail immediately without touching
+ * the network. After a pause one probe call is let through (half-open state), if it succeeds, the circuit
+ * closes again, otherwise the pause is doubled.
+ * <p/>
+ * Calls are limited by the time derived from the observed 99th percentile of latency, so a provider that
+ * started to hang is given up on long before the overall lookup deadline. The limit is enforced by a timer
+ * of the forked lookup, so a response trickling in slower than socket timeouts notice still counts as failure.
+ *
+ * @author Kanedias
+ */
+public class GuardedEngine implements LyricsEngine {
+
+    private static final String TAG = GuardedEngine.class.getSimpleName();
+
+    /**
+     * Number of recent calls health is judged by
+     */
+    private static final int WINDOW = 64;
+
+    /**
+     * Latency percentiles are not trusted until there's at least this much successful calls
+     */
+    private static final int MIN_LATENCY_SAMPLES = 16;
+
+    private static final int CONSECUTIVE_FAILURES_TO_OPEN = 5;
+    private static final int MIN_CALLS_FOR_RATE = 16;
+    private static final double MIN_SUCCESS_RATE = 0.5;
+
+    private static final long OPEN_PAUSE_MIN = 30_000;
+    private static final long OPEN_PAUSE_MAX = 10 * 60_000;
+
+    /**
+     * Time limit of the call is this many times p99 latency, within the bounds
+     */
+    private static final int TIMEOUT_FACTOR = 2;
+    private static final long TIMEOUT_MIN = 3_000;
+    private static final long TIMEOUT_MAX = 20_000;
+
+    public enum State {
+        /**
+         * Engine is healthy, calls go through
+         */
+        CLOSED,
+
+        /**
+         * Engine is broken, calls fail immediately
+         */
+        OPEN,
+
+        /**
+         * Engine was broken, one probe call is checking if it's fine now
+         */
+        HALF_OPEN
+    }
+
+    private final String mName;
+    private final LyricsEngine mDelegate;
+
+    // health state, guarded by this
+    private final boolean[] mOutcomes = new boolean[WINDOW];
+    private final long[] mLatencies = new long[WINDOW];
+    private int mCalls;
+    private int mSuccesses;
+    private int mConsecutiveFailures;
+
+    private State mState = State.CLOSED;
+    private long mOpenUntil;
+    private long mOpenPause = OPEN_PAUSE_MIN;
+
+    /**
+     * @param name     name of the engine for logs and statistics
+     * @param delegate engine to guard
+     */
+    public GuardedEngine(String name, LyricsEngine delegate) {
+        this.mName = name;
+        this.mDelegate = delegate;
+    }
+
+    @Override
+    public LyricsResult getLyrics(String artistName, String songTitle) {
+        long timeout;
+        synchronized (this) {
+            if (!allowCall()) {
+                return LyricsResult.failed(LyricsResult.Status.NETWORK_ERROR);
+            }
+            timeout = callTimeout();
+        }
+
+        long started = System.currentTimeMillis();
+        LyricsLookup call = LyricsLookup.forkCurrent(timeout);
+        LyricsResult result = call.call(mDelegate, artistName, songTitle);
+        if (result == null) {
+            // parent was preempted, doesn't count
+            result = LyricsResult.failed(LyricsResult.Status.CANCELLED);
+        }
+
+        LyricsLookup parent = LyricsLookup.current();
+        if (result.status == LyricsResult.Status.TIMED_OUT && parent != null && parent.remainingMillis() <= 0) {
+            // it's the whole lookup that ran out of time, not our limit
+            record(null, 0);
+        } else {
+            record(result, System.currentTimeMillis() - started);
+        }
+        return result;
+    }
+
+    /**
+     * @return current state of the circuit
+     */
+    public synchronized State state() {
+        return mState;
+    }
+
+    /**
+     * @return name of the engine
+     */
+    public String name() {
+        return mName;
+    }
+
+    /**
+     * @return share of successful calls among the recent ones, 1 if there were none
+     */
+    public synchronized double successRate() {
+        int calls = Math.min(mCalls, WINDOW);
+        return calls == 0 ? 1 : (double) mSuccesses / calls;
+    }
+
+    /**
+     * @param percentile percentile to compute, from 0 to 100
+     * @return latency of the recent successful calls at the percentile, in milliseconds, -1 if there were none
+     */
+    public synchronized long latencyPercentile(int percentile) {
+        int calls = Math.min(mCalls, WINDOW);
+        long[] samples = new long[calls];
+        int count = 0;
+        for (int i = 0; i < calls; ++i) {
+            if (mOutcomes[i]) {
+                samples[count++] = mLatencies[i];
+            }
+        }
+
+        if (count == 0) {
+            return -1;
+        }
+
+        Arrays.sort(samples, 0, count);
+        int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, rank))];
+    }
+
+    /**
+     * Check if the call may go through, moving from open to half-open state when it's time to probe
+     */
+    private boolean allowCall() {
+        switch (mState) {
+            case OPEN:
+                if (System.currentTimeMillis() < mOpenUntil) {
+                    return false;
+                }
+                Log.i(TAG, "Probing " + mName + " after a pause");
+                mState = State.HALF_OPEN;
+                return true;
+            case HALF_OPEN:
+                // probe is already in flight
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private long callTimeout() {
+        int successes = 0;
+        for (int i = 0; i < Math.min(mCalls, WINDOW); ++i) {
+            if (mOutcomes[i]) {
+                successes++;
+            }
+        }
+
+        if (successes < MIN_LATENCY_SAMPLES) {
+            return TIMEOUT_MAX;
+        }
+        return Math.max(TIMEOUT_MIN, Math.min(TIMEOUT_MAX, latencyPercentile(99) * TIMEOUT_FACTOR));
+    }
+
+    /**
+     * Account for the call outcome
+     *
+     * @param result  result of the call, null if it doesn't tell anything about engine health
+     * @param latency duration of the call
+     */
+    private synchronized void record(LyricsResult result, long latency) {
+        Boolean success = result == null ? null : isSuccess(result.status);
+        if (success == null) {
+            if (mState == State.HALF_OPEN) {
+                // probe was inconclusive, let the next call probe
+                mState = State.OPEN;
+            }
+            return;
+        }
+
+        int slot = mCalls % WINDOW;
+        if (mCalls >= WINDOW && mOutcomes[slot]) {
+            mSuccesses--;
+        }
+        mOutcomes[slot] = success;
+        mLatencies[slot] = latency;
+        mCalls++;
+
+        if (success) {
+            mSuccesses++;
+            mConsecutiveFailures = 0;
+            if (mState == State.HALF_OPEN) {
+                Log.i(TAG, mName + " is back, closing the circuit");
+                mState = State.CLOSED;
+                mOpenPause = OPEN_PAUSE_MIN;
+
+                // failures that opened the circuit are history now
+                mCalls = 1;
+                mSuccesses = 1;
+                mOutcomes[0] = true;
+                mLatencies[0] = latency;
+            }
+            return;
+        }
+
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN) {
+            // still broken, wait longer this time
+            mOpenPause = Math.min(OPEN_PAUSE_MAX, mOpenPause * 2);
+            open();
+            return;
+        }
+
+        int calls = Math.min(mCalls, WINDOW);
+        boolean failing = calls >= MIN_CALLS_FOR_RATE && (double) mSuccesses / calls < MIN_SUCCESS_RATE;
+        if (mConsecutiveFailures >= CONSECUTIVE_FAILURES_TO_OPEN || failing) {
+            open();
+        }
+    }
+
+    private void open() {
+        Log.w(TAG, mName + " is failing, opening the circuit for " + mOpenPause + " ms");
+        mState = State.OPEN;
+        mOpenUntil = System.currentTimeMillis() + mOpenPause;
+    }
+
+    /**
+     * @return true if engine answered, false if it failed, null if the outcome says nothing about its health
+     */
+    private static Boolean isSuccess(LyricsResult.Status status) {
+        switch (status) {
+            case FOUND:
+            case NOT_FOUND:
+                return true;
+            case NETWORK_ERROR:
+            case PARSE_ERROR:
+            case TIMED_OUT:
+                return false;
+            default:
+                // cancelled by the caller or rate limited, engine is fine
+                return null;
+        }
+    }
+}
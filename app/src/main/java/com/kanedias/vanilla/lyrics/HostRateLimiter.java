@@ -0,0 +1,219 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Process-wide limiter of request rate to each host, so that bulk lookups go as fast as the provider allows
+ * but don't get our API token throttled.
+ * <p/>
+ * Every host has a token bucket: requests spend tokens, tokens are refilled at the allowed rate up to the burst
+ * size. When host answers with 429 or 5xx it's put on hold for the time it asked in <code>Retry-After</code> header,
+ * or, if it didn't, for exponentially growing time with random jitter, so that parallel lookups don't come back
+ * all at once.
+ * <p/>
+ * Waiting is bounded by the deadline of the current lookup. If the host won't be available before it,
+ * {@link RateLimitedException} is thrown right away instead of waiting in vain.
+ *
+ * @author Kanedias
+ */
+public class HostRateLimiter {
+
+    private static final String TAG = HostRateLimiter.class.getSimpleName();
+
+    private static final double DEFAULT_RATE = 10;
+    private static final int DEFAULT_BURST = 20;
+
+    private static final long BACKOFF_BASE = 1_000;
+    private static final long BACKOFF_MAX = 5 * 60_000;
+
+    /**
+     * Requests made outside of any lookup don't have a deadline, but shouldn't hang either
+     */
+    private static final long MAX_WAIT = 30_000;
+
+    /**
+     * Waiters re-check their lookup state at least this often
+     */
+    private static final long WAIT_SLICE = 1_000;
+
+    private static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    private final Map<String, Bucket> mBuckets = new HashMap<>();
+    private final Random mJitter = new Random();
+
+    /**
+     * Thrown when host is not going to accept requests before lookup deadline
+     */
+    public static class RateLimitedException extends IOException {
+
+        public RateLimitedException(String host, long waitMillis) {
+            super("Host " + host + " is rate limited for " + waitMillis + " ms");
+        }
+    }
+
+    /**
+     * Set allowed request rate for the host
+     *
+     * @param host      host name
+     * @param perSecond sustained number of requests per second
+     * @param burst     number of requests that can be made at once after a pause
+     */
+    public synchronized void setRate(String host, double perSecond, int burst) {
+        mBuckets.put(host, new Bucket(perSecond, burst));
+    }
+
+    /**
+     * Wait until the request to the host is allowed
+     *
+     * @param host   host to send request to
+     * @param lookup lookup the request is made for, can be null
+     * @throws RateLimitedException if host won't accept requests before lookup deadline
+     * @throws InterruptedIOException if lookup is cancelled while waiting
+     */
+    public void acquire(String host, LyricsLookup lookup) throws IOException {
+        long waitStarted = System.currentTimeMillis();
+        synchronized (this) {
+            Bucket bucket = bucketOf(host);
+            while (true) {
+                if (lookup != null) {
+                    lookup.checkActive();
+                }
+
+                long now = System.currentTimeMillis();
+                long wait = bucket.take(now);
+                if (wait == 0) {
+                    return;
+                }
+
+                long allowed = lookup == null ? MAX_WAIT - (now - waitStarted) : lookup.remainingMillis();
+                if (wait > allowed) {
+                    throw new RateLimitedException(host, wait);
+                }
+
+                try {
+                    wait(Math.max(1, Math.min(wait, WAIT_SLICE)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for rate limit of " + host);
+                }
+            }
+        }
+    }
+
+    /**
+     * Account for the answer from the host, putting it on hold if it's overloaded
+     *
+     * @param host       host that answered
+     * @param code       HTTP response code
+     * @param retryAfter value of Retry-After header, can be null
+     * @return true if request can be retried after waiting, false if answer is final
+     */
+    public synchronized boolean onResponse(String host, int code, String retryAfter) {
+        Bucket bucket = bucketOf(host);
+        if (!isRetryable(code)) {
+            bucket.failures = 0;
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        long hold = parseRetryAfter(retryAfter, now);
+        if (hold < 0) {
+            // 1, 2, 4... seconds, random within the upper half so parallel lookups spread out
+            long backoff = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(bucket.failures, 16));
+            hold = backoff / 2 + (long) (mJitter.nextDouble() * (backoff / 2));
+        }
+        bucket.failures++;
+        bucket.heldUntil = Math.max(bucket.heldUntil, now + Math.min(hold, BACKOFF_MAX));
+        // after the hold, let one request probe the host, the rest follow at the usual rate
+        bucket.tokens = 1;
+
+        Log.w(TAG, "Host " + host + " answered " + code + ", holding requests for " + hold + " ms");
+        return true;
+    }
+
+    private static boolean isRetryable(int code) {
+        return code == 429 || code >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    private Bucket bucketOf(String host) {
+        Bucket bucket = mBuckets.get(host);
+        if (bucket == null) {
+            bucket = new Bucket(DEFAULT_RATE, DEFAULT_BURST);
+            mBuckets.put(host, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * @return milliseconds to wait according to Retry-After header, -1 if it's absent or invalid
+     */
+    private static long parseRetryAfter(String retryAfter, long now) {
+        if (retryAfter == null) {
+            return -1;
+        }
+
+        try {
+            // either delay in seconds...
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException ignored) {
+            // ...or HTTP date
+        }
+
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
+            return Math.max(0, format.parse(retryAfter.trim()).getTime() - now);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Token bucket of one host
+     */
+    private static class Bucket {
+
+        private final double ratePerMs;
+        private final int burst;
+
+        private double tokens;
+        private long refilledAt;
+        private long heldUntil;
+        private int failures;
+
+        private Bucket(double perSecond, int burst) {
+            this.ratePerMs = perSecond / 1000;
+            this.burst = burst;
+            this.tokens = burst;
+            this.refilledAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Take a token if host is available and there's one
+         *
+         * @return 0 if token was taken, otherwise milliseconds until it's worth trying again
+         */
+        private long take(long now) {
+            if (now < heldUntil) {
+                return heldUntil - now;
+            }
+
+            tokens = Math.min(burst, tokens + (now - Math.max(refilledAt, heldUntil)) * ratePerMs);
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / ratePerMs);
+        }
+    }
+}
@@ -0,0 +1,373 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP transport shared by all lyrics engines.
+ * <p/>
+ * Connections are never explicitly disconnected, responses are closed instead. This returns the
+ * underlying socket to the platform keep-alive pool, so the next request to the same host skips
+ * TCP and TLS handshakes entirely. All HTTPS connections share one SSL socket factory with
+ * client session cache, so new connections to already known hosts can resume TLS sessions.
+ * <p/>
+ * Compressed responses are requested and decoded transparently.
+ * <p/>
+ * Number of simultaneous requests to one host is limited by {@link LookupScheduler},
+ * more important lookups get connection slots first. Request rate to each host is limited by
+ * {@link HostRateLimiter}, requests rejected because host is overloaded are retried after a pause.
+ * <p/>
+ * Durations of connection, waiting for the answer and reading it, as well as received bytes are
+ * accounted in {@link LookupStats}.
+ *
+ * @author Kanedias
+ */
+public class HttpTransport {
+
+    private static final String TAG = HttpTransport.class.getSimpleName();
+
+    private static final int CONNECT_TIMEOUT = 15_000;
+    private static final int READ_TIMEOUT = 10_000;
+
+    /**
+     * Retries of requests that got 429 or 5xx answer, if lookup deadline allows
+     */
+    private static final int MAX_RETRIES = 2;
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final int TLS_SESSION_CACHE_SIZE = 32;
+    private static final int TLS_SESSION_TIMEOUT_SEC = 60 * 60;
+
+    private static HttpTransport sInstance;
+
+    private final SSLSocketFactory mSslFactory;
+    private final LookupScheduler mScheduler = LookupScheduler.getInstance();
+    private final HostRateLimiter mLimiter = new HostRateLimiter();
+    private final LookupStats mStats = LookupStats.getInstance();
+
+    private HttpTransport() {
+        // these are read by platform connection pool on first use
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+
+        mSslFactory = createSslFactory();
+    }
+
+    public static synchronized HttpTransport getInstance() {
+        if (sInstance == null) {
+            sInstance = new HttpTransport();
+        }
+        return sInstance;
+    }
+
+    private static SSLSocketFactory createSslFactory() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+
+            SSLSessionContext sessions = context.getClientSessionContext();
+            if (sessions != null) {
+                sessions.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(TLS_SESSION_TIMEOUT_SEC);
+            }
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Couldn't create TLS context, falling back to default", e);
+            return HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+    }
+
+    /**
+     * Limit request rate to the host, e.g. to the documented limits of the API
+     *
+     * @param host      host name
+     * @param perSecond sustained number of requests per second
+     * @param burst     number of requests that can be made at once after a pause
+     */
+    public void setRateLimit(String host, double perSecond, int burst) {
+        mLimiter.setRate(host, perSecond, burst);
+    }
+
+    /**
+     * Perform GET request
+     *
+     * @param url address to retrieve
+     * @return response, must be closed after use
+     * @throws IOException on connection errors
+     */
+    public Response get(String url) throws IOException {
+        return get(url, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Perform GET request with additional headers
+     *
+     * @param url     address to retrieve
+     * @param headers additional request headers
+     * @return response, must be closed after use. If host is overloaded and retries didn't help,
+     *         response with 429 or 5xx code is returned
+     * @throws IOException on connection errors
+     * @throws HostRateLimiter.RateLimitedException if host won't accept requests before lookup deadline
+     */
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        checkInterrupted();
+
+        LyricsLookup lookup = LyricsLookup.current();
+        if (lookup != null) {
+            lookup.checkActive();
+        }
+
+        URL target = new URL(url);
+        String host = target.getHost();
+        for (int attempt = 0; ; ++attempt) {
+            // wait for the rate limit first, so waiting doesn't take connection slot from others
+            mLimiter.acquire(host, lookup);
+
+            Response response;
+            LookupScheduler.HostPermit permit = mScheduler.acquireHost(host);
+            try {
+                response = connect(target, headers, lookup, permit);
+            } catch (IOException | RuntimeException e) {
+                permit.release();
+                throw e;
+            }
+
+            boolean retryable = mLimiter.onResponse(host, response.code(), response.header("Retry-After"));
+            if (!retryable || attempt >= MAX_RETRIES) {
+                return response;
+            }
+
+            // limiter holds the host for a while now, next attempt waits for it
+            response.close();
+        }
+    }
+
+    private Response connect(URL url, Map<String, String> headers, LyricsLookup lookup,
+                             LookupScheduler.HostPermit permit) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (conn instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(mSslFactory);
+        }
+
+        conn.setReadTimeout(withinDeadline(READ_TIMEOUT, lookup));
+        conn.setConnectTimeout(withinDeadline(CONNECT_TIMEOUT, lookup));
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        // cancelling the lookup should abort the socket even if it's blocked on read
+        Closeable abort = conn::disconnect;
+        if (lookup != null) {
+            lookup.register(abort);
+        }
+
+        String phase = "http/" + url.getHost();
+        try {
+            long connectStarted = System.nanoTime();
+            conn.connect();
+            mStats.recordPhase(phase + "/connect", connectStarted);
+
+            // request is actually sent here
+            long requestStarted = System.nanoTime();
+            int code = conn.getResponseCode();
+            mStats.recordPhase(phase + "/first-byte", requestStarted);
+            mStats.count(phase + "/" + code);
+            return new Response(conn, code, lookup, abort, permit, phase);
+        } catch (IOException e) {
+            mStats.count(phase + "/failed");
+            // connection is in unknown state, don't let it back into the pool
+            conn.disconnect();
+            if (lookup != null) {
+                lookup.unregister(abort);
+            }
+            throw e;
+        }
+    }
+
+    private static int withinDeadline(int timeout, LyricsLookup lookup) {
+        if (lookup == null) {
+            return timeout;
+        }
+
+        // zero timeout means infinity, don't let it slip
+        return (int) Math.max(1, Math.min(timeout, lookup.remainingMillis()));
+    }
+
+    /**
+     * Thrown when server answers with unexpected HTTP code
+     */
+    public static class StatusException extends IOException {
+
+        public final int code;
+
+        public StatusException(int code) {
+            super("Unexpected HTTP response code: " + code);
+            this.code = code;
+        }
+    }
+
+    /**
+     * Response to the request. Closing it releases the connection back to the pool.
+     */
+    public static class Response implements Closeable {
+
+        private final HttpURLConnection mConn;
+        private final int mCode;
+        private final LyricsLookup mLookup;
+        private final Closeable mAbort;
+        private final LookupScheduler.HostPermit mPermit;
+        private final String mPhase;
+        private final long mReceivedAt = System.nanoTime();
+        private InterruptibleStream mRaw;
+        private InputStream mBody;
+
+        private Response(HttpURLConnection conn, int code, LyricsLookup lookup, Closeable abort,
+                         LookupScheduler.HostPermit permit, String phase) {
+            this.mConn = conn;
+            this.mCode = code;
+            this.mLookup = lookup;
+            this.mAbort = abort;
+            this.mPermit = permit;
+            this.mPhase = phase;
+        }
+
+        /**
+         * @return HTTP response code
+         */
+        public int code() {
+            return mCode;
+        }
+
+        /**
+         * @param name header name
+         * @return response header value or null if there's no such header
+         */
+        public String header(String name) {
+            return mConn.getHeaderField(name);
+        }
+
+        /**
+         * @return decoded response body, error body for unsuccessful responses
+         * @throws IOException if body can't be retrieved
+         */
+        public InputStream body() throws IOException {
+            if (mBody != null) {
+                return mBody;
+            }
+
+            // interruption is checked and bytes are counted as they come from the wire
+            mRaw = new InterruptibleStream(rawBody());
+            String encoding = mConn.getContentEncoding();
+            if ("gzip".equalsIgnoreCase(encoding)) {
+                mBody = new GZIPInputStream(mRaw);
+            } else if ("deflate".equalsIgnoreCase(encoding)) {
+                mBody = new InflaterInputStream(mRaw);
+            } else {
+                mBody = mRaw;
+            }
+            return mBody;
+        }
+
+        private InputStream rawBody() throws IOException {
+            InputStream raw = mCode < HttpURLConnection.HTTP_BAD_REQUEST ? mConn.getInputStream() : mConn.getErrorStream();
+            if (raw == null) {
+                // no body at all
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return raw;
+        }
+
+        @Override
+        public void close() {
+            LookupStats stats = LookupStats.getInstance();
+            // body is parsed while streamed, so this can't be split into download and parsing
+            stats.recordPhase(mPhase + "/body-and-parse", mReceivedAt);
+            if (mRaw != null) {
+                stats.count(mPhase + "/bytes", mRaw.bytesRead);
+            }
+
+            mPermit.release();
+            if (mLookup != null) {
+                mLookup.unregister(mAbort);
+            }
+
+            if (Thread.currentThread().isInterrupted() || (mLookup != null && (mLookup.isCancelled() || mLookup.root().isPreempted()))) {
+                // request was abandoned midway, the rest of the body is not needed
+                mConn.disconnect();
+                return;
+            }
+
+            try {
+                // closing stream instead of disconnecting keeps the socket alive for reuse
+                InputStream body = mBody != null ? mBody : rawBody();
+                body.close();
+            } catch (IOException e) {
+                mConn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Stream that stops reading as soon as the thread that reads it is interrupted,
+     * e.g. when the lookup it serves is cancelled.
+     */
+    private static class InterruptibleStream extends FilterInputStream {
+
+        private long bytesRead;
+
+        private InterruptibleStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkInterrupted();
+            int read = super.read();
+            if (read != -1) {
+                bytesRead++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkInterrupted();
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                bytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkInterrupted();
+            return super.skip(n);
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Request was cancelled");
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with bounded relative error, in the spirit of HdrHistogram.
+ * <p/>
+ * Values up to 32 are counted exactly, above that every power of two is split into 16 buckets,
+ * so any recorded value is off by at most 1/16 of itself. Recording is a few arithmetic operations,
+ * three uncontended atomic updates and a compare-and-set only when the maximum grows, so it can be done
+ * on every request.
+ *
+ * @author Kanedias
+ */
+public class LatencyHistogram {
+
+    /**
+     * Values below this are counted exactly
+     */
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    /**
+     * Larger values are clamped to this, that's about 19 hours in microseconds
+     */
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param value value to record, negative values are counted as zero
+     */
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(MAX_VALUE, value));
+        mBuckets.incrementAndGet(indexOf(clamped));
+        mCount.incrementAndGet();
+        mSum.addAndGet(clamped);
+
+        long max;
+        while ((max = mMax.get()) < clamped && !mMax.compareAndSet(max, clamped)) {
+            // retry
+        }
+    }
+
+    public long count() {
+        return mCount.get();
+    }
+
+    public long max() {
+        return mMax.get();
+    }
+
+    /**
+     * @return mean of recorded values, 0 if there are none
+     */
+    public long mean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percentile percentile to compute, from 0 to 100
+     * @return upper bound of the bucket the percentile falls into, 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < mBuckets.length(); ++i) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * @return number of buckets, for iterating over them
+     */
+    public int bucketCount() {
+        return mBuckets.length();
+    }
+
+    /**
+     * @return number of values recorded into the bucket
+     */
+    public long countAt(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /**
+     * @return largest value that falls into the bucket
+     */
+    public static long highestValueAt(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int magnitude = bucket / HALF_SUB_BUCKETS - 1;
+        long sub = bucket % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((sub + 1) << magnitude) - 1;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        // shift the value so only its top SUB_BITS bits are left, this is the bucket within the power of two
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return magnitude * HALF_SUB_BUCKETS + (int) (value >>> magnitude);
+    }
+}
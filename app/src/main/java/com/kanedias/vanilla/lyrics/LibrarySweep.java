@@ -0,0 +1,326 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sweep over the whole media library that fetches lyrics for every track that doesn't have them yet.
+ * <p/>
+ * Tracks are enumerated from MediaStore in order of their ids. Tracks having lyrics in the cache, in the file tag
+ * or in companion file are skipped, as well as tracks known to have no lyrics online. The rest are looked up
+ * in the bulk lane of {@link LookupScheduler}, a few at a time, through {@link PendingLookups}, so the sweep
+ * shares lookups with the dialog and prefetch instead of repeating them. Found lyrics end up in the cache.
+ * <p/>
+ * Progress is checkpointed as the id of the last track below which everything is processed, so the sweep
+ * that was stopped or killed resumes from where it was. Tracks added to the library later are picked up
+ * by the next sweep, as their ids are larger. Tracks without lyrics online are checkpointed past too,
+ * so when {@link MissCache} forgets old misses, the sweep starts over from the beginning of the library.
+ *
+ * @see LibrarySweepJob
+ *
+ * @author Kanedias
+ */
+public class LibrarySweep {
+
+    private static final String TAG = LibrarySweep.class.getSimpleName();
+
+    /**
+     * Tag of sweep lookups in the scheduler
+     */
+    public static final String SWEEP_TAG = "sweep";
+
+    private static final String PREF_SWEEP_CHECKPOINT = "sweep_checkpoint";
+    private static final String PREF_SWEEP_REMAINING = "sweep_remaining";
+    private static final String PREF_SWEEP_RATE = "sweep_rate";
+    private static final String PREF_SWEEP_MISS_GENERATION = "sweep_miss_generation";
+
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.DATA
+    };
+
+    /**
+     * Lookups queued at once, slightly more than bulk lane runs so it never starves
+     */
+    private static final int MAX_IN_FLIGHT = 4;
+
+    /**
+     * Bulk lookups may wait behind interactive ones, so give them more time
+     */
+    private static final long SWEEP_LOOKUP_TIMEOUT = 60_000;
+
+    /**
+     * Persist progress every this many processed tracks
+     */
+    private static final int CHECKPOINT_INTERVAL = 20;
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+    private final Semaphore mWindow = new Semaphore(MAX_IN_FLIGHT);
+
+    // sweep state, guarded by this
+    private final TreeSet<Long> mInFlight = new TreeSet<>();
+    private final Map<Long, LyricsLookup> mRetained = new HashMap<>();
+    private long mMissGeneration;
+    private long mLastScanned;
+    private int mRemaining;
+    private int mProcessed;
+    private int mSinceCheckpoint;
+    private long mStartedAt;
+
+    private volatile boolean mStopped;
+    private volatile Thread mRunner;
+
+    public LibrarySweep(Context ctx) {
+        this.mContext = ctx.getApplicationContext();
+        this.mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    /**
+     * Progress of the sweep, as of the last checkpoint
+     */
+    public static class Progress {
+
+        /**
+         * Tracks not processed yet, or -1 if sweep never started
+         */
+        public final int remaining;
+
+        /**
+         * Throughput of the last sweep run
+         */
+        public final float songsPerMinute;
+
+        Progress(int remaining, float songsPerMinute) {
+            this.remaining = remaining;
+            this.songsPerMinute = songsPerMinute;
+        }
+    }
+
+    public static Progress getProgress(Context ctx) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        return new Progress(prefs.getInt(PREF_SWEEP_REMAINING, -1), prefs.getFloat(PREF_SWEEP_RATE, 0));
+    }
+
+    /**
+     * Run the sweep on the current thread, starting from the last checkpoint
+     *
+     * @return true if every track in the library was processed, false if sweep was stopped
+     * or lookups started failing and it should be retried later
+     */
+    public boolean run() {
+        mRunner = Thread.currentThread();
+        long generation = MissCache.getInstance(mContext).generation();
+        long checkpoint = mPrefs.getLong(PREF_SWEEP_CHECKPOINT, -1);
+        if (mPrefs.getLong(PREF_SWEEP_MISS_GENERATION, generation) != generation) {
+            // some misses are forgotten, tracks skipped for them deserve another look
+            checkpoint = -1;
+        }
+        String selection = MediaStore.Audio.Media.IS_MUSIC + " != 0 AND " + MediaStore.Audio.Media._ID + " > ?";
+        Cursor cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                selection, new String[]{String.valueOf(checkpoint)}, MediaStore.Audio.Media._ID + " ASC");
+        if (cursor == null) {
+            // media storage is not available
+            return false;
+        }
+
+        OfflineLyricsEngine engine = LyricsEngines.getDefault(mContext);
+        LyricsCache cache = LyricsCache.getInstance(mContext);
+        try {
+            synchronized (this) {
+                mMissGeneration = generation;
+                mLastScanned = checkpoint;
+                mRemaining = cursor.getCount();
+                mStartedAt = System.currentTimeMillis();
+            }
+            Log.i(TAG, "Sweep started after track " + checkpoint + ", " + mRemaining + " tracks to go");
+
+            int idCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media._ID);
+            int artistCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+            int titleCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+            int dataCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA);
+            while (!mStopped && cursor.moveToNext()) {
+                long id = cursor.getLong(idCol);
+                String artist = cursor.getString(artistCol);
+                String title = cursor.getString(titleCol);
+                String path = cursor.getString(dataCol);
+
+                if (TextUtils.isEmpty(artist) || MediaStore.UNKNOWN_STRING.equals(artist) || TextUtils.isEmpty(title)
+                        || engine.isKnownMiss(artist, title) || hasLyrics(cache, artist, title, path)) {
+                    // nothing to search for, nothing to find or nothing to do
+                    onProcessed(id, false);
+                    continue;
+                }
+
+                mWindow.acquire();
+                if (mStopped) {
+                    mWindow.release();
+                    break;
+                }
+
+                LyricsLookup lookup = PendingLookups.join(false, engine, artist, title, SWEEP_LOOKUP_TIMEOUT,
+                        LookupScheduler.Priority.BULK, SWEEP_TAG);
+                if (!track(id, lookup)) {
+                    // stopped meanwhile
+                    lookup.release();
+                    mWindow.release();
+                    break;
+                }
+                lookup.observe(result -> onLookupCompleted(id, result));
+            }
+
+            // wait for the tail, cancelled lookups never complete but then we're stopped and interrupted anyway
+            mWindow.acquire(MAX_IN_FLIGHT);
+            mWindow.release(MAX_IN_FLIGHT);
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Sweep interrupted");
+        } finally {
+            cursor.close();
+            mRunner = null;
+            checkpoint();
+        }
+
+        return !mStopped;
+    }
+
+    /**
+     * Stop the sweep, lookups in flight are released and will be retried on the next run.
+     * Lookups nobody else is interested in are cancelled.
+     */
+    public void stop() {
+        List<LyricsLookup> retained;
+        synchronized (this) {
+            mStopped = true;
+            retained = new ArrayList<>(mRetained.values());
+            mRetained.clear();
+        }
+
+        Thread runner = mRunner;
+        if (runner != null) {
+            runner.interrupt();
+        }
+        for (LyricsLookup lookup : retained) {
+            lookup.release();
+        }
+    }
+
+    /**
+     * Remember the lookup of the track as in flight, unless the sweep is stopped
+     *
+     * @return true if lookup is tracked, false if sweep is stopped and lookup should be released
+     */
+    private synchronized boolean track(long id, LyricsLookup lookup) {
+        if (mStopped) {
+            return false;
+        }
+
+        mInFlight.add(id);
+        mRetained.put(id, lookup);
+        mLastScanned = id;
+        return true;
+    }
+
+    private boolean hasLyrics(LyricsCache cache, String artist, String title, String path) {
+        if (cache.get(SongKey.of(artist, title)) != null) {
+            // even expired entry is good enough, sweep is for songs that have nothing at all
+            return true;
+        }
+
+        if (path == null) {
+            return false;
+        }
+
+        File media = new File(path);
+        if (SidecarIndex.getInstance().find(media) != null) {
+            return true;
+        }
+
+        if (!EmbeddedLyricsReader.isSupported(media)) {
+            return false;
+        }
+
+        try {
+            String embedded = EmbeddedLyricsReader.readLyrics(media);
+            return embedded != null && !embedded.trim().isEmpty();
+        } catch (IOException e) {
+            // no access to the file, lyrics will be cached at least
+            return false;
+        }
+    }
+
+    private void onLookupCompleted(long id, LyricsResult result) {
+        LyricsLookup lookup;
+        synchronized (this) {
+            lookup = mRetained.remove(id);
+        }
+        if (lookup == null) {
+            // shared lookup outlived the stopped sweep, track is left for the next run
+            return;
+        }
+        lookup.release();
+
+        switch (result.status) {
+            case NETWORK_ERROR:
+            case TIMED_OUT:
+            case RATE_LIMITED:
+                // no sense in hammering the provider now, leave this track for the next run
+                Log.w(TAG, "Sweep lookup failed with " + result.status + ", stopping until next run");
+                stop();
+                break;
+            case CANCELLED:
+                // given up by the engine, e.g. prefetch budget, leave this track for the next run
+                break;
+            default:
+                // found or definitely not there, either way it's done
+                onProcessed(id, true);
+        }
+        mWindow.release();
+    }
+
+    private synchronized void onProcessed(long id, boolean looked) {
+        if (looked) {
+            mInFlight.remove(id);
+        } else {
+            mLastScanned = id;
+        }
+
+        mRemaining--;
+        mProcessed++;
+        if (++mSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Persist progress: everything below the earliest lookup in flight is processed
+     */
+    private synchronized void checkpoint() {
+        mSinceCheckpoint = 0;
+
+        long safe = mInFlight.isEmpty() ? mLastScanned : mInFlight.first() - 1;
+        long elapsed = System.currentTimeMillis() - mStartedAt;
+        float rate = elapsed > 0 ? mProcessed * 60_000f / elapsed : 0;
+        mPrefs.edit()
+                .putLong(PREF_SWEEP_CHECKPOINT, safe)
+                .putLong(PREF_SWEEP_MISS_GENERATION, mMissGeneration)
+                .putInt(PREF_SWEEP_REMAINING, mRemaining)
+                .putFloat(PREF_SWEEP_RATE, rate)
+                .apply();
+    }
+}
@@ -0,0 +1,98 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.preference.PreferenceManager;
+
+import androidx.annotation.RequiresApi;
+
+/**
+ * Job running {@link LibrarySweep} in background, while device is charging and on unmetered network.
+ * <p/>
+ * Job is periodic, so tracks added to the library later get their lyrics too. If system stops the job
+ * midway, it's rescheduled and sweep resumes from the last checkpoint.
+ *
+ * @author Kanedias
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+public class LibrarySweepJob extends JobService {
+
+    private static final int JOB_ID = 1;
+
+    private static final String PREF_SWEEP_ENABLED = "sweep_enabled";
+
+    private static final long SWEEP_PERIOD = 24 * 60 * 60 * 1000L;
+
+    private volatile LibrarySweep mSweep;
+
+    /**
+     * @return true if library sweep can run on this device
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    public static boolean isEnabled(Context ctx) {
+        return PreferenceManager.getDefaultSharedPreferences(ctx).getBoolean(PREF_SWEEP_ENABLED, false);
+    }
+
+    /**
+     * Schedule or cancel periodic library sweep
+     *
+     * @param ctx     context to get scheduler from
+     * @param enabled true to schedule the sweep, false to cancel it
+     */
+    public static void setEnabled(Context ctx, boolean enabled) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit().putBoolean(PREF_SWEEP_ENABLED, enabled).apply();
+
+        JobScheduler scheduler = (JobScheduler) ctx.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+
+        if (!enabled) {
+            // stops running job too
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+
+        JobInfo sweep = new JobInfo.Builder(JOB_ID, new ComponentName(ctx, LibrarySweepJob.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setPeriodic(SWEEP_PERIOD)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(sweep);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        LibrarySweep sweep = new LibrarySweep(this);
+        mSweep = sweep;
+        new Thread(() -> {
+            sweep.run();
+            if (sweep == mSweep) {
+                // not stopped by the system, report ourselves. Job is periodic, rescheduling is not allowed
+                // for it, unfinished sweep resumes from the checkpoint in the next period
+                jobFinished(params, false);
+            }
+        }, "LibrarySweep").start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        LibrarySweep sweep = mSweep;
+        mSweep = null;
+        if (sweep != null) {
+            sweep.stop();
+        }
+        // constraints are not met anymore, resume from the checkpoint when they are
+        return true;
+    }
+}
@@ -0,0 +1,80 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.kanedias.vanilla.plugins.PluginUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Lyrics engine that looks for lyrics on the device, near the media file itself.
+ * Lyrics embedded into the file tag are tried first, then companion *.lrc or *.txt file nearby.
+ * <p/>
+ * Artist and song title are ignored, everything is derived from the media file.
+ *
+ * @see EmbeddedLyricsReader
+ * @see SidecarIndex
+ *
+ * @author Kanedias
+ */
+public class LocalLyricsEngine implements LyricsEngine {
+
+    private static final String TAG = LocalLyricsEngine.class.getSimpleName();
+
+    private final File mMedia;
+    private final boolean mReadTag;
+
+    /**
+     * @param media   media file lyrics are requested for
+     * @param readTag true if file tag should be checked, false if it was already checked elsewhere
+     */
+    public LocalLyricsEngine(File media, boolean readTag) {
+        this.mMedia = media;
+        this.mReadTag = readTag;
+    }
+
+    @Override
+    public LyricsResult getLyrics(String artistName, String songTitle) {
+        if (mReadTag) {
+            try {
+                String embedded = EmbeddedLyricsReader.readLyrics(mMedia);
+                if (embedded != null && !embedded.trim().isEmpty()) {
+                    return LyricsResult.found(embedded);
+                }
+            } catch (IOException e) {
+                // no access or corrupted tag, companion file may still be there
+                Log.w(TAG, "Failed to read lyrics tag from " + mMedia, e);
+            }
+        }
+
+        File lyricsFile = SidecarIndex.getInstance().find(mMedia);
+        if (lyricsFile == null) {
+            return LyricsResult.notFound();
+        }
+
+        try {
+            return LyricsResult.found(new String(PluginUtils.readFully(new FileInputStream(lyricsFile)), "UTF-8"));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read lyrics text from file!", e);
+            return LyricsResult.failed(LyricsResult.Status.PARSE_ERROR);
+        }
+    }
+
+    /**
+     * Retrieves companion name for lyrics file from media passed
+     *
+     * @param mediaFile - original media file that the lyrics was requested for
+     * @return string representing name with extension for lyrics companion file
+     */
+    @NonNull
+    static String lyricsForFile(File mediaFile) {
+        String mfName = mediaFile.getName();
+        return mfName.indexOf(".") > 0
+                ? mfName.substring(0, mfName.lastIndexOf(".")) + ".lrc"
+                : mfName + ".lrc";
+    }
+}
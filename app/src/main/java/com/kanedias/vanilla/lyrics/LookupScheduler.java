@@ -0,0 +1,334 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process-wide scheduler of lyrics lookups and the network requests they make.
+ * <p/>
+ * Lookups are queued in priority lanes: interactive lookups for the song the user is looking at
+ * start immediately, prefetch and bulk lookups run with limited concurrency, and bulk ones are held back
+ * while anything interactive is running.
+ * <p/>
+ * Requests to the same host are limited too. When interactive request can't get a connection slot because
+ * background lookups took them all, one of those is preempted: its connections are aborted and it's
+ * put back into its lane to be restarted later from scratch, so it doesn't fail because of that.
+ *
+ * @author Kanedias
+ */
+public class LookupScheduler {
+
+    /**
+     * Lanes of the scheduler, in order of importance
+     */
+    public enum Priority {
+        /**
+         * User is waiting for the result right now
+         */
+        INTERACTIVE,
+
+        /**
+         * Result will be needed soon, e.g. for the next track
+         */
+        PREFETCH,
+
+        /**
+         * Result may be needed some time, e.g. library sweep
+         */
+        BULK
+    }
+
+    private static final int[] MAX_RUNNING = {Integer.MAX_VALUE, 2, 2};
+
+    /**
+     * Maximum number of simultaneous requests to one host, shouldn't exceed the size of connection pool
+     */
+    private static final int MAX_PER_HOST = 4;
+
+    /**
+     * Host waiters re-check their lookup state at least this often
+     */
+    private static final long HOST_WAIT_SLICE = 1_000;
+
+    private static LookupScheduler sInstance;
+
+    private final ExecutorService mWorkers = Executors.newCachedThreadPool();
+
+    // lookup state, guarded by this
+    private final List<Deque<LyricsLookup>> mLanes = new ArrayList<>();
+    private final int[] mRunning = new int[Priority.values().length];
+    private final Set<LyricsLookup> mActive = new HashSet<>();
+
+    // host state, guarded by mHosts
+    private final Map<String, HostState> mHosts = new HashMap<>();
+    private long mWaiterSeq;
+
+    private LookupScheduler() {
+        for (int i = 0; i < Priority.values().length; ++i) {
+            mLanes.add(new ArrayDeque<>());
+        }
+    }
+
+    public static synchronized LookupScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new LookupScheduler();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue the lookup into the lane of its priority
+     *
+     * @param lookup lookup to run
+     */
+    synchronized void submit(LyricsLookup lookup) {
+        mActive.add(lookup);
+        mLanes.get(lookup.priority().ordinal()).addLast(lookup);
+        dispatch();
+    }
+
+    /**
+     * Raise priority of the lookup, e.g. when user starts waiting for the song that was being prefetched
+     *
+     * @param lookup   root lookup to promote
+     * @param priority new priority, ignored if it's lower than the current one
+     */
+    public synchronized void promote(LyricsLookup lookup, Priority priority) {
+        Priority current = lookup.priority();
+        if (priority.ordinal() >= current.ordinal()) {
+            return;
+        }
+
+        lookup.setPriority(priority);
+        if (mLanes.get(current.ordinal()).remove(lookup)) {
+            // still queued, jump to the new lane
+            mLanes.get(priority.ordinal()).addFirst(lookup);
+            dispatch();
+        }
+    }
+
+    /**
+     * Cancel all queued and running lookups with the specified tag
+     *
+     * @param tag tag lookups were started with
+     */
+    public void cancelAll(String tag) {
+        List<LyricsLookup> tagged = new ArrayList<>();
+        synchronized (this) {
+            for (LyricsLookup lookup : mActive) {
+                if (tag.equals(lookup.tag())) {
+                    tagged.add(lookup);
+                }
+            }
+        }
+
+        for (LyricsLookup lookup : tagged) {
+            lookup.cancel();
+        }
+    }
+
+    /**
+     * Start as many queued lookups as lane limits allow, more important lanes first
+     */
+    private synchronized void dispatch() {
+        for (Priority lane : Priority.values()) {
+            Deque<LyricsLookup> queue = mLanes.get(lane.ordinal());
+            while (!queue.isEmpty() && mRunning[lane.ordinal()] < MAX_RUNNING[lane.ordinal()]) {
+                if (lane == Priority.BULK && mRunning[Priority.INTERACTIVE.ordinal()] > 0) {
+                    // don't compete with the user
+                    return;
+                }
+
+                LyricsLookup lookup = queue.pollFirst();
+                if (lookup.isDone()) {
+                    // cancelled while queued
+                    mActive.remove(lookup);
+                    continue;
+                }
+
+                mRunning[lane.ordinal()]++;
+                mWorkers.execute(() -> run(lookup, lane));
+            }
+        }
+    }
+
+    private void run(LyricsLookup lookup, Priority lane) {
+        try {
+            lookup.execute();
+        } finally {
+            synchronized (this) {
+                mRunning[lane.ordinal()]--;
+                if (lookup.clearPreempted()) {
+                    // gave way to more important lookup, will be restarted first in its lane
+                    mLanes.get(lookup.priority().ordinal()).addFirst(lookup);
+                } else {
+                    mActive.remove(lookup);
+                }
+                dispatch();
+            }
+
+            // worker may be reused, don't let cancellation of this lookup leak into the next one
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Wait for a free connection slot to the host. Interactive requests are served ahead of others
+     * and preempt background lookups if there are no free slots.
+     *
+     * @param host host to connect to
+     * @return permit that must be released after request is complete
+     * @throws InterruptedIOException if current lookup is cancelled or its deadline passes while waiting
+     */
+    HostPermit acquireHost(String host) throws InterruptedIOException {
+        LyricsLookup lookup = LyricsLookup.current();
+        LyricsLookup holder = lookup == null ? null : lookup.root();
+        Priority priority = holder == null ? Priority.INTERACTIVE : holder.priority();
+
+        // cancellation of the lookup should wake us up
+        Closeable wakeUp = () -> {
+            synchronized (mHosts) {
+                mHosts.notifyAll();
+            }
+        };
+        if (lookup != null) {
+            lookup.register(wakeUp);
+        }
+
+        try {
+            synchronized (mHosts) {
+                HostState state = mHosts.get(host);
+                if (state == null) {
+                    state = new HostState();
+                    mHosts.put(host, state);
+                }
+
+                long[] waiter = {priority.ordinal(), mWaiterSeq++};
+                state.waiters.add(waiter);
+                try {
+                    boolean preempted = false;
+                    while (true) {
+                        if (lookup != null) {
+                            lookup.checkActive();
+                        }
+
+                        if (state.holders.size() < MAX_PER_HOST && state.isNext(waiter)) {
+                            state.holders.add(holder);
+                            return new HostPermit(host, holder);
+                        }
+
+                        if (priority == Priority.INTERACTIVE && !preempted) {
+                            preempted = state.preemptBackground();
+                        }
+
+                        long remaining = lookup == null ? HOST_WAIT_SLICE : lookup.remainingMillis();
+                        mHosts.wait(Math.max(1, Math.min(remaining, HOST_WAIT_SLICE)));
+                    }
+                } finally {
+                    state.waiters.remove(waiter);
+                    // others may be able to go now
+                    mHosts.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for connection to " + host);
+        } finally {
+            if (lookup != null) {
+                lookup.unregister(wakeUp);
+            }
+        }
+    }
+
+    /**
+     * Connection slot to the host
+     */
+    class HostPermit {
+
+        private final String mHost;
+        private final LyricsLookup mHolder;
+        private boolean mReleased;
+
+        private HostPermit(String host, LyricsLookup holder) {
+            this.mHost = host;
+            this.mHolder = holder;
+        }
+
+        /**
+         * Give the slot back, it's safe to call this several times
+         */
+        void release() {
+            synchronized (mHosts) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+
+                HostState state = mHosts.get(mHost);
+                state.holders.remove(mHolder);
+                if (state.holders.isEmpty() && state.waiters.isEmpty()) {
+                    mHosts.remove(mHost);
+                }
+                mHosts.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Requests in flight and waiting for one host
+     */
+    private static class HostState {
+
+        /**
+         * Root lookups holding connection slots, null for requests made outside of any lookup
+         */
+        private final List<LyricsLookup> holders = new ArrayList<>();
+
+        /**
+         * Waiting requests as {priority, sequence number}
+         */
+        private final List<long[]> waiters = new ArrayList<>();
+
+        /**
+         * @return true if there's no waiter that is more important or came earlier with the same priority
+         */
+        private boolean isNext(long[] waiter) {
+            for (long[] other : waiters) {
+                if (other[0] < waiter[0] || (other[0] == waiter[0] && other[1] < waiter[1])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Preempt the least important background lookup holding the slot
+         *
+         * @return true if some lookup was preempted
+         */
+        private boolean preemptBackground() {
+            LyricsLookup victim = null;
+            for (LyricsLookup holder : holders) {
+                if (holder == null || holder.priority() == Priority.INTERACTIVE || holder.isPreempted()) {
+                    continue;
+                }
+
+                if (victim == null || holder.priority().ordinal() > victim.priority().ordinal()) {
+                    victim = holder;
+                }
+            }
+            return victim != null && victim.preempt();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide statistics of lookups, for setting timeouts and budgets from field data instead of guessing.
+ * <p/>
+ * Durations of lookup phases are kept in {@link LatencyHistogram}s, in microseconds, named by the phase:
+ * <ul>
+ *     <li>engine/&lt;engine class&gt; - whole engine call, for each engine in the stack</li>
+ *     <li>http/&lt;host&gt;/connect - DNS, TCP and TLS handshakes, near zero when connection is reused</li>
+ *     <li>http/&lt;host&gt;/first-byte - from request sent to response headers received</li>
+ *     <li>http/&lt;host&gt;/body-and-parse - from response headers received to response closed. Parsers consume
+ *     the body as it arrives, so this is download and parsing together, as far as the body was read</li>
+ *     <li>genius/search, genius/page, genius/parse - steps of Genius lookup</li>
+ * </ul>
+ * Counters are kept for cache hits and misses, bytes received and lookup outcomes. Everything lives
+ * in memory only and is dumped to JSON on request.
+ *
+ * @author Kanedias
+ */
+public class LookupStats {
+
+    private static final String TAG = LookupStats.class.getSimpleName();
+
+    private static final String DUMP_FILE = "lookup-stats.json";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final double[] REPORTED_PERCENTILES = {50, 90, 95, 99};
+
+    private static LookupStats sInstance;
+
+    private final long mStartedAt = SystemClock.elapsedRealtime();
+    private final ConcurrentMap<String, LatencyHistogram> mHistograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> mCounters = new ConcurrentHashMap<>();
+
+    private LookupStats() {
+    }
+
+    public static synchronized LookupStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new LookupStats();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Record duration of the phase that is just finished
+     *
+     * @param phase        name of the phase
+     * @param startedNanos {@link System#nanoTime()} when the phase started
+     */
+    public void recordPhase(String phase, long startedNanos) {
+        histogram(phase).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedNanos));
+    }
+
+    /**
+     * @param counter name of the counter to increment
+     */
+    public void count(String counter) {
+        count(counter, 1);
+    }
+
+    /**
+     * @param counter name of the counter to increase
+     * @param delta   amount to add
+     */
+    public void count(String counter, long delta) {
+        AtomicLong value = mCounters.get(counter);
+        if (value == null) {
+            mCounters.putIfAbsent(counter, new AtomicLong());
+            value = mCounters.get(counter);
+        }
+        value.addAndGet(delta);
+    }
+
+    private LatencyHistogram histogram(String phase) {
+        LatencyHistogram histogram = mHistograms.get(phase);
+        if (histogram == null) {
+            mHistograms.putIfAbsent(phase, new LatencyHistogram());
+            histogram = mHistograms.get(phase);
+        }
+        return histogram;
+    }
+
+    /**
+     * Write statistics as JSON into app-specific external storage, where they can be pulled from with adb
+     *
+     * @param ctx context to resolve storage directory with
+     * @return file statistics were written to
+     * @throws IOException if file couldn't be written
+     */
+    public File dump(Context ctx) throws IOException {
+        File dir = ctx.getExternalFilesDir(null);
+        if (dir == null) {
+            // external storage is not mounted
+            dir = ctx.getFilesDir();
+        }
+
+        File target = new File(dir, DUMP_FILE);
+        File temp = new File(dir, DUMP_FILE + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(fos, Charset.forName("UTF-8")));
+            writer.setIndent("  ");
+            writeJson(writer);
+            writer.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!temp.renameTo(target)) {
+                throw new IOException("Couldn't rename " + temp + " to " + target);
+            }
+            Log.i(TAG, "Lookup statistics written to " + target);
+            return target;
+        } finally {
+            closeQuietly(fos);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("uptime_ms").value(SystemClock.elapsedRealtime() - mStartedAt);
+
+        writer.name("counters").beginObject();
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(mCounters).entrySet()) {
+            writer.name(counter.getKey()).value(counter.getValue().get());
+        }
+        writer.endObject();
+
+        writer.name("histograms_us").beginObject();
+        for (Map.Entry<String, LatencyHistogram> phase : new TreeMap<>(mHistograms).entrySet()) {
+            LatencyHistogram histogram = phase.getValue();
+            writer.name(phase.getKey()).beginObject();
+            writer.name("count").value(histogram.count());
+            writer.name("mean").value(histogram.mean());
+            for (double percentile : REPORTED_PERCENTILES) {
+                writer.name("p" + (int) percentile).value(histogram.percentile(percentile));
+            }
+            writer.name("max").value(histogram.max());
+
+            // non-empty buckets as [highest value, count] pairs, to rebuild the distribution offline
+            writer.name("buckets").beginArray();
+            for (int i = 0; i < histogram.bucketCount(); ++i) {
+                long count = histogram.countAt(i);
+                if (count > 0) {
+                    writer.beginArray().value(LatencyHistogram.highestValueAt(i)).value(count).endArray();
+                }
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endObject();
+
+        writer.endObject();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
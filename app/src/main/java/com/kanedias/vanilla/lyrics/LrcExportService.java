@@ -0,0 +1,117 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Foreground service exporting cached lyrics of the whole library to *.lrc files.
+ * <p/>
+ * Export of a big library takes minutes, so it runs on its own thread instead of holding up file writes
+ * of the dialog, and in foreground service with progress, so the process isn't killed midway
+ * when the dialog is closed.
+ *
+ * @see LrcExporter#exportLibrary(LrcExporter.ProgressListener)
+ *
+ * @author Kanedias
+ */
+public class LrcExportService extends Service {
+
+    private static final String TAG = LrcExportService.class.getSimpleName();
+
+    private static final int NOTIFICATION_ID = 2;
+    private static final String CHANNEL_ID = "export";
+
+    /**
+     * Two exports would only write the same files twice
+     */
+    private static final ExecutorService EXPORT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Start export of the library
+     *
+     * @param ctx context to start service from
+     */
+    public static void start(Context ctx) {
+        Intent export = new Intent(ctx, LrcExportService.class);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ctx.startForegroundService(export);
+        } else {
+            ctx.startService(export);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification(0, 0));
+
+        Context appCtx = getApplicationContext();
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        EXPORT_EXECUTOR.submit(() -> {
+            String summary = appCtx.getString(R.string.error_writing_file);
+            try {
+                LrcExporter.Stats stats = new LrcExporter(appCtx).exportLibrary(
+                        (processed, total) -> manager.notify(NOTIFICATION_ID, buildNotification(processed, total)));
+                summary = appCtx.getString(R.string.export_lrc_done, stats.written, stats.unchanged, stats.failed);
+            } catch (RuntimeException e) {
+                // media storage may go away midway, report and stop anyway
+                Log.e(TAG, "Couldn't export library lyrics", e);
+                summary += e.getLocalizedMessage();
+            } finally {
+                String message = summary;
+                mHandler.post(() -> {
+                    Toast.makeText(appCtx, message, Toast.LENGTH_LONG).show();
+                    if (stopSelfResult(startId)) {
+                        stopForeground(true);
+                    }
+                });
+            }
+        });
+
+        // user can start the export again if we're killed, don't restart it on our own
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    /**
+     * @param processed number of tracks processed
+     * @param total     number of tracks in the library, 0 if not known yet
+     */
+    private Notification buildNotification(int processed, int total) {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.export_channel), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            //noinspection deprecation
+            builder = new Notification.Builder(this);
+        }
+
+        return builder.setSmallIcon(R.drawable.icon)
+                .setContentTitle(getString(R.string.export_lrc))
+                .setContentText(getString(R.string.export_lrc_started))
+                .setProgress(total, processed, total == 0)
+                .setOngoing(true)
+                .build();
+    }
+}
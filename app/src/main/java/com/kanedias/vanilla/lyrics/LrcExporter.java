@@ -0,0 +1,401 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.documentfile.provider.DocumentFile;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.kanedias.vanilla.plugins.PluginConstants.PREF_SDCARD_URI;
+import static com.kanedias.vanilla.plugins.saf.SafUtils.findInDocumentTree;
+import static com.kanedias.vanilla.plugins.saf.SafUtils.isSafNeeded;
+
+/**
+ * Writer of companion *.lrc files, for one song or for many songs at once.
+ * <p/>
+ * Every file is written to the temporary file first, synced and renamed to the final name, so interrupted
+ * write never leaves truncated lyrics behind. Files that already have the same content are not touched.
+ * <p/>
+ * Locating a file through SAF means walking document tree from the SD card root, with a query per path segment,
+ * so exporter remembers directories it has found, along with the listing of the last one. Export of the whole
+ * album folder then costs a single tree walk. Create new exporter for each batch, cached listings are not
+ * refreshed.
+ *
+ * @author Kanedias
+ */
+public class LrcExporter {
+
+    private static final String TAG = LrcExporter.class.getSimpleName();
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Directories are resolved once per batch, but big libraries have thousands of them
+     */
+    private static final int MAX_CACHED_DIRS = 64;
+
+    /**
+     * Library export reports progress once per this number of tracks
+     */
+    private static final int PROGRESS_STEP = 50;
+
+    private static final String[] PROJECTION = {
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.DATA
+    };
+
+    /**
+     * Result of exporting one file
+     */
+    public enum Outcome {
+        /**
+         * File was created or its content was replaced
+         */
+        WRITTEN,
+
+        /**
+         * File already had the same content
+         */
+        UNCHANGED
+    }
+
+    /**
+     * Listener of library export progress
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param processed number of tracks processed so far
+         * @param total     number of tracks in the library
+         */
+        void onProgress(int processed, int total);
+    }
+
+    /**
+     * Totals of exporting many files
+     */
+    public static class Stats {
+        public int written;
+        public int unchanged;
+        public int failed;
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mPrefs;
+
+    /**
+     * Absolute directory path -> its document in SAF tree
+     */
+    private final Map<String, DocumentFile> mDirs = new LinkedHashMap<String, DocumentFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DocumentFile> eldest) {
+            return size() > MAX_CACHED_DIRS;
+        }
+    };
+
+    // listing of the last SAF directory written to, batches go directory by directory
+    private String mListedDir;
+    private DocumentFile mListedDirRef;
+    private Map<String, DocumentFile> mListing;
+
+    public LrcExporter(Context ctx) {
+        this.mContext = ctx.getApplicationContext();
+        this.mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+    }
+
+    /**
+     * Write lyrics to the companion *.lrc file of the media file, replacing it if it exists
+     *
+     * @param media  media file lyrics are for
+     * @param lyrics lyrics text
+     * @return outcome of the export
+     * @throws IOException if file couldn't be written, or it's on SD card and SAF access is not granted
+     */
+    public Outcome export(File media, String lyrics) throws IOException {
+        byte[] data = lyrics.getBytes(Charset.forName("UTF-8"));
+        String name = LocalLyricsEngine.lyricsForFile(media);
+        if (isSafNeeded(media, mContext)) {
+            return exportThroughSaf(media.getParentFile(), name, data);
+        }
+        return exportThroughFile(new File(media.getParentFile(), name), data);
+    }
+
+    /**
+     * Export cached lyrics of every track in the library that has them. Tracks are processed
+     * folder by folder, failures are counted and skipped.
+     * <p/>
+     * This takes minutes on big libraries, so it must run on its own thread. Each file is still written
+     * through {@link FileWrites#EXECUTOR}, so the export never races with a write from the dialog,
+     * and the dialog waits for one file at most.
+     *
+     * @param listener listener of export progress, called on the exporting thread
+     * @return export totals
+     */
+    public Stats exportLibrary(ProgressListener listener) {
+        Stats stats = new Stats();
+        Cursor cursor = mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                MediaStore.Audio.Media.IS_MUSIC + " != 0", null, MediaStore.Audio.Media.DATA + " ASC");
+        if (cursor == null) {
+            // media storage is not available
+            return stats;
+        }
+
+        LyricsCache cache = LyricsCache.getInstance(mContext);
+        try {
+            int artistCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.ARTIST);
+            int titleCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.TITLE);
+            int dataCol = cursor.getColumnIndexOrThrow(MediaStore.Audio.Media.DATA);
+            int total = cursor.getCount();
+            for (int processed = 1; cursor.moveToNext(); ++processed) {
+                if (processed % PROGRESS_STEP == 0) {
+                    listener.onProgress(processed, total);
+                }
+
+                String path = cursor.getString(dataCol);
+                if (path == null) {
+                    continue;
+                }
+
+                LyricsCache.Entry cached = cache.get(SongKey.of(cursor.getString(artistCol), cursor.getString(titleCol)));
+                if (cached == null) {
+                    continue;
+                }
+
+                try {
+                    if (exportSerialized(new File(path), cached.lyrics) == Outcome.WRITTEN) {
+                        stats.written++;
+                    } else {
+                        stats.unchanged++;
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Couldn't export lyrics for " + path, e);
+                    stats.failed++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Log.i(TAG, "Exported " + stats.written + " files, " + stats.unchanged + " up to date, " + stats.failed + " failed");
+        return stats;
+    }
+
+    /**
+     * Export on the file writes executor, waiting for the result
+     */
+    private Outcome exportSerialized(File media, String lyrics) throws IOException {
+        Future<Outcome> outcome = FileWrites.EXECUTOR.submit(() -> export(media, lyrics));
+        try {
+            return outcome.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Outcome exportThroughFile(File target, byte[] data) throws IOException {
+        if (target.exists() && target.length() == data.length && sameContent(new FileInputStream(target), data)) {
+            return Outcome.UNCHANGED;
+        }
+
+        File temp = new File(target.getParentFile(), "." + target.getName() + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            fos.write(data);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!temp.renameTo(target)) {
+                throw new IOException("Couldn't rename " + temp + " to " + target);
+            }
+        } catch (IOException e) {
+            closeQuietly(fos);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        } finally {
+            // coarse directory mtime on FAT cards may not reflect the change
+            SidecarIndex.getInstance().invalidate(target.getParentFile());
+        }
+        return Outcome.WRITTEN;
+    }
+
+    /**
+     * Write the file through SAF. There's no way to replace a document atomically, so old file is deleted
+     * just before the temporary one is renamed, and only after new content is safely on the disk.
+     */
+    private Outcome exportThroughSaf(File dir, String name, byte[] data) throws IOException {
+        Map<String, DocumentFile> listing = listSafDir(dir);
+        ContentResolver resolver = mContext.getContentResolver();
+
+        DocumentFile existing = listing.get(name);
+        if (existing != null && existing.length() == data.length
+                && sameContent(resolver.openInputStream(existing.getUri()), data)) {
+            return Outcome.UNCHANGED;
+        }
+
+        String tempName = "." + name + TEMP_SUFFIX;
+        DocumentFile stale = listing.remove(tempName);
+        if (stale != null) {
+            // left from interrupted export
+            stale.delete();
+        }
+
+        // mime type which is not guessed from the name, otherwise SAF appends its own extension
+        DocumentFile temp = mListedDirRef.createFile("image/*", tempName);
+        if (temp == null) {
+            throw new IOException("Couldn't create " + tempName + " in " + dir);
+        }
+
+        FileOutputStream fos = null;
+        try {
+            ParcelFileDescriptor pfd = resolver.openFileDescriptor(temp.getUri(), "w");
+            if (pfd == null) {
+                throw new IOException("SAF provided incorrect URI " + temp.getUri());
+            }
+
+            fos = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+            fos.write(data);
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+        } catch (IOException e) {
+            closeQuietly(fos);
+            temp.delete();
+            throw e;
+        }
+
+        if (existing != null && !existing.delete()) {
+            temp.delete();
+            throw new IOException("Couldn't replace " + name + " in " + dir);
+        }
+        listing.remove(name);
+
+        if (!temp.renameTo(name)) {
+            throw new IOException("Couldn't rename " + tempName + " to " + name + " in " + dir);
+        }
+        listing.put(name, temp);
+        SidecarIndex.getInstance().invalidate(dir);
+        return Outcome.WRITTEN;
+    }
+
+    /**
+     * @return name -> document map of the directory contents, directory itself is cached in {@link #mDirs}
+     */
+    private Map<String, DocumentFile> listSafDir(File dir) throws IOException {
+        String path = dir.getAbsolutePath();
+        if (path.equals(mListedDir)) {
+            return mListing;
+        }
+
+        DocumentFile dirRef = mDirs.get(path);
+        if (dirRef == null) {
+            dirRef = resolveSafDir(dir);
+            mDirs.put(path, dirRef);
+        }
+
+        Map<String, DocumentFile> listing = new HashMap<>();
+        for (DocumentFile child : dirRef.listFiles()) {
+            listing.put(child.getName(), child);
+        }
+
+        mListedDir = path;
+        mListedDirRef = dirRef;
+        mListing = listing;
+        return listing;
+    }
+
+    private DocumentFile resolveSafDir(File dir) throws IOException {
+        if (!mPrefs.contains(PREF_SDCARD_URI)) {
+            throw new IOException("No SAF access granted for " + dir);
+        }
+
+        // parent is likely to be resolved already for sibling folders, one listing is cheaper than a tree walk
+        File parent = dir.getParentFile();
+        DocumentFile parentRef = parent == null ? null : mDirs.get(parent.getAbsolutePath());
+        if (parentRef != null) {
+            DocumentFile found = parentRef.findFile(dir.getName());
+            if (found != null) {
+                return found;
+            }
+        }
+
+        // /storage/volume/Music/Album will become [storage, volume, Music, Album]
+        List<String> pathSegments = new ArrayList<>(Arrays.asList(dir.getAbsolutePath().split("/")));
+        Uri allowedSdRoot = Uri.parse(mPrefs.getString(PREF_SDCARD_URI, ""));
+        DocumentFile found = findInDocumentTree(DocumentFile.fromTreeUri(mContext, allowedSdRoot), pathSegments);
+        if (found == null) {
+            throw new IOException("Couldn't find " + dir + " in SAF tree " + allowedSdRoot);
+        }
+        return found;
+    }
+
+    /**
+     * Compare stream content with the data by hash, stream is closed afterwards
+     */
+    private static boolean sameContent(InputStream is, byte[] data) throws IOException {
+        if (is == null) {
+            return false;
+        }
+
+        try {
+            MessageDigest existing = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                existing.update(buffer, 0, read);
+            }
+            return MessageDigest.isEqual(existing.digest(), MessageDigest.getInstance("SHA-1").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is mandatory for every JVM and Android implementation
+            throw new IllegalStateException(e);
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
@@ -31,10 +31,7 @@ import org.jsoup.nodes.TextNode;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.util.zip.GZIPInputStream;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.net.HttpURLConnection;
 
 /**
  * Implementation of lyrics engine based on LyricsWiki API.
@@ -54,23 +51,25 @@ public class LyricWikiEngine implements LyricsEngine {
 
     private static final String TAG = LyricWikiEngine.class.getSimpleName();
 
+    private final HttpTransport mTransport = HttpTransport.getInstance();
+
     @Override
-    public String getLyrics(String artistName, String songTitle) {
+    public LyricsResult getLyrics(String artistName, String songTitle) {
         try {
 
             String lyricsUrl = makeApiCall(artistName, songTitle);
-            if (lyricsUrl == null) { // no URL in API answer or no correct answer at all
-                return null;
+            if (lyricsUrl == null) { // no URL in API answer
+                return LyricsResult.notFound();
             }
 
             return parseFullLyricsPage(lyricsUrl);
 
         } catch (IOException e) {
             Log.w(TAG, "Couldn't connect to lyrics wiki REST endpoints", e);
-            return null;
+            return LyricsResult.failed(e);
         } catch (JSONException e) {
             Log.w(TAG, "Couldn't transform API answer to JSON entity", e);
-            return null;
+            return LyricsResult.failed(LyricsResult.Status.PARSE_ERROR);
         }
     }
 
@@ -78,7 +77,7 @@ public class LyricWikiEngine implements LyricsEngine {
      * First call
      */
     private String makeApiCall(String artistName, String songTitle) throws IOException, JSONException {
-        HttpsURLConnection apiCall = null;
+        HttpTransport.Response apiCall = null;
         try {
             // build query
             // e.g. https://lyrics.wikia.com/api.php?func=getSong&artist=The%20Beatle&song=Girl&fmt=realjson
@@ -92,33 +91,21 @@ public class LyricWikiEngine implements LyricsEngine {
                     .appendQueryParameter("song", songTitle)
                     .build();
 
-            // construct an http request
-            apiCall = (HttpsURLConnection) new URL(link.toString()).openConnection();
-            apiCall.setRequestProperty("Accept-Encoding", "gzip");
-            apiCall.setReadTimeout(10_000);
-            apiCall.setConnectTimeout(15_000);
-
             // execute
-            apiCall.connect();
-            int response = apiCall.getResponseCode();
-            if (response != HttpsURLConnection.HTTP_OK) {
+            apiCall = mTransport.get(link.toString());
+            if (apiCall.code() != HttpURLConnection.HTTP_OK) {
                 // redirects are handled internally, this is clearly an error
-                return null;
+                throw new HttpTransport.StatusException(apiCall.code());
             }
 
-            InputStream is;
-            if ("gzip".equals(apiCall.getContentEncoding())) {
-                is = new GZIPInputStream(apiCall.getInputStream());
-            } else {
-                is = apiCall.getInputStream();
-            }
+            InputStream is = apiCall.body();
             String reply = new String(PluginUtils.readFully(is), "UTF-8");
             JSONObject getSongAnswer = new JSONObject(reply);
 
             return getLyricsUrl(getSongAnswer);
         } finally {
             if (apiCall != null) {
-                apiCall.disconnect();
+                apiCall.close();
             }
         }
     }
@@ -126,11 +113,21 @@ public class LyricWikiEngine implements LyricsEngine {
     /**
      * Second call
      */
-    private String parseFullLyricsPage(String lyricsUrl) throws IOException {
-        Document page = Jsoup.parse(new URL(lyricsUrl), 10_000);
+    private LyricsResult parseFullLyricsPage(String lyricsUrl) throws IOException {
+        Document page;
+        HttpTransport.Response pageGet = mTransport.get(lyricsUrl);
+        try {
+            if (pageGet.code() != HttpURLConnection.HTTP_OK) {
+                return LyricsResult.failed(pageGet.code());
+            }
+            page = Jsoup.parse(pageGet.body(), "UTF-8", lyricsUrl);
+        } finally {
+            pageGet.close();
+        }
+
         Element lyricsBox = page.select("div.lyricbox").first();
         if (lyricsBox == null) { // no lyrics frame on page
-            return null;
+            return LyricsResult.failed(LyricsResult.Status.PARSE_ERROR);
         }
 
         // remove unneeded elements
@@ -147,7 +144,7 @@ public class LyricWikiEngine implements LyricsEngine {
             }
         }
 
-        return builder.toString();
+        return LyricsResult.found(builder.toString());
     }
 
     private static String getLyricsUrl(JSONObject getSongAnswer) {
@@ -0,0 +1,96 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Disk-backed cache of retrieved lyrics, kept in a single compact {@link LyricsStore} file.
+ * <p/>
+ * Entries are evicted in least-recently-used order as soon as total size exceeds the limit.
+ * Entries older than TTL are still returned, but marked as expired, so callers can use them
+ * when network is not available.
+ *
+ * @author Kanedias
+ */
+public class LyricsCache {
+
+    private static final String STORE_FILE = "lyrics.store";
+
+    private static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024; // 16 MiB, tens of thousands of songs
+    private static final long DEFAULT_TTL = 30L * 24 * 60 * 60 * 1000; // 30 days
+
+    private static LyricsCache sInstance;
+
+    private final LyricsStore mStore;
+    private final long mTtl;
+
+    /**
+     * @param storeFile file to keep lyrics in
+     * @param maxSize   size limit of the store
+     * @param ttl       time after which entries are considered expired
+     */
+    public LyricsCache(File storeFile, long maxSize, long ttl) {
+        this.mStore = new LyricsStore(storeFile, maxSize);
+        this.mTtl = ttl;
+    }
+
+    public static synchronized LyricsCache getInstance(Context ctx) {
+        if (sInstance == null) {
+            File cacheDir = ctx.getApplicationContext().getCacheDir();
+            sInstance = new LyricsCache(new File(cacheDir, STORE_FILE), DEFAULT_MAX_SIZE, DEFAULT_TTL);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Cached lyrics along with time of retrieval
+     */
+    public static class Entry {
+
+        public final String lyrics;
+        public final long storedAt;
+        public final boolean expired;
+
+        Entry(String lyrics, long storedAt, boolean expired) {
+            this.lyrics = lyrics;
+            this.storedAt = storedAt;
+            this.expired = expired;
+        }
+    }
+
+    /**
+     * Retrieve cached lyrics for the song
+     *
+     * @param key song to retrieve lyrics for
+     * @return cached entry, possibly expired, or null if nothing is cached
+     */
+    public synchronized Entry get(SongKey key) {
+        LyricsStore.Stored stored = mStore.get(key.digest());
+        if (stored == null) {
+            return null;
+        }
+
+        boolean expired = System.currentTimeMillis() - stored.storedAt > mTtl;
+        return new Entry(stored.lyrics, stored.storedAt, expired);
+    }
+
+    /**
+     * Store lyrics for the song, replacing previous entry if it exists
+     *
+     * @param key    song to store lyrics for
+     * @param lyrics lyrics text, must not be empty
+     */
+    public synchronized void put(SongKey key, String lyrics) {
+        mStore.put(key.digest(), System.currentTimeMillis(), lyrics);
+    }
+
+    /**
+     * Forget cached lyrics for the song
+     *
+     * @param key song to drop lyrics for
+     */
+    public synchronized void remove(SongKey key) {
+        mStore.remove(key.digest());
+    }
+}
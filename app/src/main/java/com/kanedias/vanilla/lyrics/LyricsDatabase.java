@@ -0,0 +1,572 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Read-only on-device database of lyrics, imported once from a bulk dump.
+ * <p/>
+ * Dump is a ZIP archive of *.lrc or *.txt files, as community lyrics collections are usually shared.
+ * Song is identified by [ar:] and [ti:] tags of the file, or by its name if it's "Artist - Title".
+ * <p/>
+ * Database file consists of header, lyrics records and index sorted by {@link SongKey} digest:
+ * <pre>
+ * header: magic, version, song count, index offset
+ * record: key digest (20 bytes), compressed length, deflated lyrics
+ * index:  first 8 bytes of key digest, record offset - 16 bytes per song
+ * </pre>
+ * Index is memory-mapped and binary-searched in place, so nothing is loaded into heap on open
+ * and millions of songs are answered in microseconds, with a single read of the record.
+ * Records are read with plain file reads, as interrupt of the reading thread would close file channel
+ * for every other lookup.
+ *
+ * @author Kanedias
+ */
+public class LyricsDatabase {
+
+    private static final String TAG = LyricsDatabase.class.getSimpleName();
+
+    private static final int MAGIC = 0x4c594442; // LYDB
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+
+    private static final int DIGEST_SIZE = 20;
+    private static final int RECORD_HEADER_SIZE = DIGEST_SIZE + 4;
+    private static final int INDEX_ENTRY_SIZE = 8 + 8;
+
+    /**
+     * Whole index must fit into a single mapping
+     */
+    private static final int MAX_SONGS = Integer.MAX_VALUE / INDEX_ENTRY_SIZE;
+
+    /**
+     * Anything bigger is not lyrics
+     */
+    private static final int MAX_LYRICS_SIZE = 256 * 1024;
+
+    private static final String DATABASE_FILE = "lyrics.db";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final Pattern TAG_PATTERN = Pattern.compile("^\\s*\\[(ar|ti):(.*)]\\s*$", Pattern.MULTILINE);
+    private static final Pattern NAME_PATTERN = Pattern.compile("^(.+?) - (.+)\\.(lrc|txt)$", Pattern.CASE_INSENSITIVE);
+
+    private static LyricsDatabase sInstance;
+
+    private final File mFile;
+
+    /**
+     * Currently open database, replaced as a whole on import
+     */
+    private Snapshot mSnapshot;
+    private boolean mOpened;
+
+    /**
+     * Thrown when file name in the dump is not valid in the charset it's read with
+     */
+    public static class MalformedNameException extends IOException {
+
+        public MalformedNameException(Throwable cause) {
+            super("Malformed file name in the dump", cause);
+        }
+    }
+
+    private static class Snapshot {
+
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer index;
+        private final int count;
+
+        private Snapshot(RandomAccessFile raf, MappedByteBuffer index, int count) {
+            this.raf = raf;
+            this.index = index;
+            this.count = count;
+        }
+    }
+
+    public LyricsDatabase(File file) {
+        this.mFile = file;
+    }
+
+    public static synchronized LyricsDatabase getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new LyricsDatabase(new File(ctx.getApplicationContext().getFilesDir(), DATABASE_FILE));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return number of songs in the database, 0 if nothing was imported
+     */
+    public int size() {
+        Snapshot snapshot = open();
+        return snapshot == null ? 0 : snapshot.count;
+    }
+
+    /**
+     * Find lyrics for the song
+     *
+     * @param key song to find lyrics for
+     * @return lyrics or null if database doesn't have them
+     * @throws IOException if database couldn't be read
+     */
+    public String find(SongKey key) throws IOException {
+        return lookup(key, true);
+    }
+
+    /**
+     * Check if the database has lyrics for the song, without decompressing them
+     *
+     * @param key song to check
+     * @return true if database has lyrics for the song
+     * @throws IOException if database couldn't be read
+     */
+    public boolean contains(SongKey key) throws IOException {
+        return lookup(key, false) != null;
+    }
+
+    /**
+     * @param inflate true to return lyrics, false to return just any non-null value if they're there
+     */
+    private String lookup(SongKey key, boolean inflate) throws IOException {
+        Snapshot snapshot = open();
+        if (snapshot == null) {
+            return null;
+        }
+
+        byte[] digest = hexToBytes(key.digest());
+        long prefix = ByteBuffer.wrap(digest).getLong();
+
+        // lower bound: first entry with the same prefix
+        int low = 0, high = snapshot.count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (snapshot.index.getLong(mid * INDEX_ENTRY_SIZE) < prefix) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        // prefixes may collide, full digest in the record tells
+        for (int i = low; i < snapshot.count && snapshot.index.getLong(i * INDEX_ENTRY_SIZE) == prefix; ++i) {
+            String lyrics = readRecord(snapshot, snapshot.index.getLong(i * INDEX_ENTRY_SIZE + 8), digest, inflate);
+            if (lyrics != null) {
+                return lyrics;
+            }
+        }
+        return null;
+    }
+
+    private static String readRecord(Snapshot snapshot, long offset, byte[] digest, boolean inflate) throws IOException {
+        // plain file reads, not channel ones: these are not interruptible, and lookups are interrupted
+        // on cancellation all the time, which would close the file for everyone
+        byte[] stored = new byte[DIGEST_SIZE];
+        byte[] compressed;
+        synchronized (snapshot.raf) {
+            snapshot.raf.seek(offset);
+            snapshot.raf.readFully(stored);
+            if (!Arrays.equals(stored, digest)) {
+                return null;
+            }
+            if (!inflate) {
+                return "";
+            }
+
+            int length = snapshot.raf.readInt();
+            if (length < 0 || length > MAX_LYRICS_SIZE) {
+                throw new IOException("Corrupted record at " + offset);
+            }
+
+            compressed = new byte[length];
+            snapshot.raf.readFully(compressed);
+        }
+        return inflate(compressed);
+    }
+
+    /**
+     * Open database file if it's not yet open. Only the header is read, index is mapped.
+     *
+     * @return open database or null if there's none
+     */
+    private synchronized Snapshot open() {
+        if (mOpened) {
+            return mSnapshot;
+        }
+        mOpened = true;
+
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "r");
+            if (raf.readInt() != MAGIC || raf.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown database format");
+            }
+
+            int count = raf.readInt();
+            long indexOffset = raf.readLong();
+            if (count < 0 || count > MAX_SONGS || indexOffset + (long) count * INDEX_ENTRY_SIZE != raf.length()) {
+                throw new IOException("Corrupted database header");
+            }
+
+            MappedByteBuffer index = mapIndex(raf, indexOffset, count);
+            mSnapshot = new Snapshot(raf, index, count);
+            Log.i(TAG, "Opened lyrics database with " + count + " songs");
+            return mSnapshot;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't open lyrics database " + mFile, e);
+            closeQuietly(raf);
+            if (e instanceof ClosedChannelException) {
+                // interrupted while mapping, database is fine, try again next time
+                mOpened = false;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Map the index with interrupt flag cleared, as interrupt during mapping closes the file
+     */
+    private static MappedByteBuffer mapIndex(RandomAccessFile raf, long indexOffset, int count) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) count * INDEX_ENTRY_SIZE);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replace the database with songs from the dump. Lookups keep using the previous database until
+     * import is complete. If some song is in the dump several times, first one wins.
+     *
+     * @param dump stream of ZIP archive with lyrics files
+     * @return number of songs imported
+     * @throws MalformedNameException if some file name in the dump is not UTF-8
+     * @throws IOException if dump couldn't be read or database couldn't be written
+     */
+    public int importDump(InputStream dump) throws IOException {
+        return importDump(new ZipInputStream(new BufferedInputStream(dump, 64 * 1024)));
+    }
+
+    /**
+     * Same as {@link #importDump(InputStream)}, for dumps with file names in legacy encoding
+     *
+     * @param dump  stream of ZIP archive with lyrics files
+     * @param names charset of file names that are not marked as UTF-8 in the archive
+     * @return number of songs imported
+     * @throws IOException if dump couldn't be read or database couldn't be written
+     */
+    @RequiresApi(Build.VERSION_CODES.N)
+    public int importDump(InputStream dump, Charset names) throws IOException {
+        return importDump(new ZipInputStream(new BufferedInputStream(dump, 64 * 1024), names));
+    }
+
+    private int importDump(ZipInputStream zis) throws IOException {
+        File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        File indexTemp = new File(mFile.getPath() + INDEX_SUFFIX + TEMP_SUFFIX);
+
+        DataOutputStream data = null;
+        DataOutputStream index = null;
+        RandomAccessFile raf = null;
+        try {
+            // records and index entries are written sequentially to separate files,
+            // index is then appended to records and sorted in place
+            data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+            index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTemp), 64 * 1024));
+            data.write(new byte[HEADER_SIZE]); // filled in when index is ready
+
+            int count = 0;
+            long position = HEADER_SIZE;
+            for (ZipEntry entry; (entry = nextEntry(zis)) != null; ) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                String text = readEntry(zis);
+                SongKey key = text == null ? null : keyOf(entry.getName(), text);
+                if (key == null) {
+                    continue;
+                }
+
+                if (count == MAX_SONGS) {
+                    throw new IOException("Dump has too many songs, only " + MAX_SONGS + " are supported");
+                }
+
+                byte[] digest = hexToBytes(key.digest());
+                byte[] compressed = deflate(text.getBytes(Charset.forName("UTF-8")));
+                index.write(digest, 0, 8);
+                index.writeLong(position);
+
+                data.write(digest);
+                data.writeInt(compressed.length);
+                data.write(compressed);
+                position += RECORD_HEADER_SIZE + compressed.length;
+
+                if (++count % 10000 == 0) {
+                    Log.i(TAG, "Imported " + count + " songs");
+                }
+            }
+
+            long indexOffset = position;
+            data.close();
+            data = null;
+            index.close();
+            index = null;
+
+            raf = new RandomAccessFile(temp, "rw");
+            appendFile(raf, indexTemp, indexOffset);
+
+            MappedByteBuffer sorted = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, indexOffset, (long) count * INDEX_ENTRY_SIZE);
+            sortIndex(sorted, count);
+            sorted.force();
+
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(FORMAT_VERSION);
+            raf.writeInt(count);
+            raf.writeLong(indexOffset);
+            raf.getFD().sync();
+            raf.close();
+            raf = null;
+
+            synchronized (this) {
+                if (!temp.renameTo(mFile)) {
+                    throw new IOException("Couldn't rename " + temp + " to " + mFile);
+                }
+
+                // lookups running right now may fail, they'll be retried through network engines
+                Snapshot previous = mSnapshot;
+                mSnapshot = null;
+                mOpened = false;
+                if (previous != null) {
+                    closeQuietly(previous.raf);
+                }
+            }
+
+            Log.i(TAG, "Imported lyrics database with " + count + " songs");
+            return count;
+        } finally {
+            closeQuietly(zis);
+            closeQuietly(data);
+            closeQuietly(index);
+            closeQuietly(raf);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            //noinspection ResultOfMethodCallIgnored
+            indexTemp.delete();
+        }
+    }
+
+    private static ZipEntry nextEntry(ZipInputStream zis) throws IOException {
+        try {
+            return zis.getNextEntry();
+        } catch (IllegalArgumentException e) {
+            // name can't be decoded, stream is broken from here on
+            throw new MalformedNameException(e);
+        }
+    }
+
+    /**
+     * @return text of the current ZIP entry, or null if it's not lyrics
+     */
+    private static String readEntry(ZipInputStream zis) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = zis.read(buffer)) != -1) {
+            if (bytes.size() + read > MAX_LYRICS_SIZE) {
+                return null;
+            }
+            bytes.write(buffer, 0, read);
+        }
+
+        String text = new String(bytes.toByteArray(), Charset.forName("UTF-8"));
+        if (text.startsWith("\uFEFF")) {
+            text = text.substring(1);
+        }
+        return text.trim().isEmpty() ? null : text;
+    }
+
+    /**
+     * Derive song identity from lyrics tags, falling back to file name
+     *
+     * @param path path of the file in the dump
+     * @param text content of the file
+     * @return key of the song or null if it can't be determined
+     */
+    static SongKey keyOf(String path, String text) {
+        String artist = null, title = null;
+        Matcher tags = TAG_PATTERN.matcher(text);
+        while (tags.find() && (artist == null || title == null)) {
+            if (tags.group(1).equals("ar")) {
+                artist = tags.group(2).trim();
+            } else {
+                title = tags.group(2).trim();
+            }
+        }
+
+        if (artist == null || title == null || artist.isEmpty() || title.isEmpty()) {
+            Matcher name = NAME_PATTERN.matcher(path.substring(path.lastIndexOf('/') + 1));
+            if (!name.matches()) {
+                return null;
+            }
+            artist = name.group(1);
+            title = name.group(2);
+        }
+        return SongKey.of(artist, title);
+    }
+
+    private static void appendFile(RandomAccessFile raf, File source, long at) throws IOException {
+        FileInputStream fis = new FileInputStream(source);
+        try {
+            raf.seek(at);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = fis.read(buffer)) != -1) {
+                raf.write(buffer, 0, read);
+            }
+        } finally {
+            closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Heapsort of index entries right in the mapped file, so import doesn't need heap for millions of them.
+     * Entries are ordered by key prefix, then by record offset, so first imported song wins.
+     */
+    private static void sortIndex(MappedByteBuffer index, int count) {
+        for (int i = count / 2 - 1; i >= 0; --i) {
+            siftDown(index, i, count);
+        }
+        for (int end = count - 1; end > 0; --end) {
+            swap(index, 0, end);
+            siftDown(index, 0, end);
+        }
+    }
+
+    private static void siftDown(MappedByteBuffer index, int root, int count) {
+        while (true) {
+            int child = root * 2 + 1;
+            if (child >= count) {
+                return;
+            }
+            if (child + 1 < count && compare(index, child + 1, child) > 0) {
+                child++;
+            }
+            if (compare(index, child, root) <= 0) {
+                return;
+            }
+            swap(index, root, child);
+            root = child;
+        }
+    }
+
+    private static int compare(MappedByteBuffer index, int i, int j) {
+        long k1 = index.getLong(i * INDEX_ENTRY_SIZE), k2 = index.getLong(j * INDEX_ENTRY_SIZE);
+        if (k1 != k2) {
+            return k1 < k2 ? -1 : 1;
+        }
+        long o1 = index.getLong(i * INDEX_ENTRY_SIZE + 8), o2 = index.getLong(j * INDEX_ENTRY_SIZE + 8);
+        return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+    }
+
+    private static void swap(MappedByteBuffer index, int i, int j) {
+        int a = i * INDEX_ENTRY_SIZE, b = j * INDEX_ENTRY_SIZE;
+        long key = index.getLong(a), offset = index.getLong(a + 8);
+        index.putLong(a, index.getLong(b));
+        index.putLong(a + 8, index.getLong(b + 8));
+        index.putLong(b, key);
+        index.putLong(b + 8, offset);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated lyrics record");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return new String(out.toByteArray(), Charset.forName("UTF-8"));
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted lyrics record", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
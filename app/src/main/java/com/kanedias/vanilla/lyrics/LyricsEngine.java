@@ -16,8 +16,6 @@
  */
 package com.kanedias.vanilla.lyrics;
 
-import android.content.Loader;
-import android.os.HandlerThread;
 /**
  * Interface for various engines for lyrics extraction
  *
@@ -26,12 +24,12 @@ import android.os.HandlerThread;
 public interface LyricsEngine {
 
     /**
-     * Synchronous call to engine to retrieve lyrics. Most likely to be used in {@link HandlerThread}
-     * or {@link Loader}
+     * Synchronous call to engine to retrieve lyrics. Most likely to be used through {@link LyricsLookup},
+     * which provides deadline and cancellation for the network requests engine makes.
      *
      * @param artistName band or artist name to search for
      * @param songTitle  full song title to search for
-     * @return string containing song lyrics if available, null if nothing found
+     * @return result containing song lyrics if available or the reason why they are not
      */
-    String getLyrics(String artistName, String songTitle);
+    LyricsResult getLyrics(String artistName, String songTitle);
 }
@@ -0,0 +1,48 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+/**
+ * Holder of the engine stack shared by everything that looks up lyrics in this process:
+ * the dialog, prefetch and background jobs.
+ *
+ * @author Kanedias
+ */
+public class LyricsEngines {
+
+    private static OfflineLyricsEngine sDefault;
+
+    private LyricsEngines() {
+    }
+
+    /**
+     * @param ctx context to get cache directory from
+     * @return engine querying imported lyrics database and then all known lyrics providers,
+     *         the latter backed by on-device cache of hits and misses
+     */
+    public static synchronized OfflineLyricsEngine getDefault(Context ctx) {
+        if (sDefault == null) {
+            LyricsEngine network = createNetwork(SongPathMemo.getInstance(ctx));
+            CachingEngine cached = new CachingEngine(network, LyricsCache.getInstance(ctx), MissCache.getInstance(ctx));
+            sDefault = new OfflineLyricsEngine(LyricsDatabase.getInstance(ctx), cached);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Create engine querying lyrics providers directly, without any cache. Debug builds can be pointed
+     * to the local stand-in server instead of real providers, see lyrics-harness module.
+     * <p/>
+     * Genius is the only provider alive, once there's another one, hedge them with {@link RacingEngine}.
+     *
+     * @param paths memo of song page paths found by search
+     * @return engine querying all known lyrics providers
+     */
+    static LyricsEngine createNetwork(SongPathMemo paths) {
+        GeniusApiEngine genius = TextUtils.isEmpty(BuildConfig.LYRICS_STAND_IN)
+                ? new GeniusApiEngine(paths)
+                : new GeniusApiEngine(paths, BuildConfig.LYRICS_STAND_IN, BuildConfig.LYRICS_STAND_IN);
+        return new GuardedEngine("genius", genius);
+    }
+}
@@ -0,0 +1,148 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Foreground service importing lyrics dump into {@link LyricsDatabase}.
+ * <p/>
+ * Import of a big dump takes minutes, so it runs on its own thread instead of holding up file writes
+ * of the dialog, and in foreground service, so the process isn't killed midway when the dialog is closed.
+ *
+ * @author Kanedias
+ */
+public class LyricsImportService extends Service {
+
+    private static final String TAG = LyricsImportService.class.getSimpleName();
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String CHANNEL_ID = "import";
+
+    /**
+     * Imports replace the whole database, there's no sense in running two of them at once
+     */
+    private static final ExecutorService IMPORT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Start import of the dump
+     *
+     * @param ctx     context to start service from
+     * @param dumpUri content URI of the ZIP archive with lyrics files
+     */
+    public static void start(Context ctx, Uri dumpUri) {
+        Intent importDump = new Intent(ctx, LyricsImportService.class);
+        importDump.setData(dumpUri);
+        importDump.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            ctx.startForegroundService(importDump);
+        } else {
+            ctx.startService(importDump);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        startForeground(NOTIFICATION_ID, buildNotification());
+
+        Uri dumpUri = intent == null ? null : intent.getData();
+        if (dumpUri == null) {
+            stopSelf(startId);
+            return START_NOT_STICKY;
+        }
+
+        Context appCtx = getApplicationContext();
+        IMPORT_EXECUTOR.submit(() -> {
+            String summary = appCtx.getString(R.string.import_database_failed);
+            try {
+                int count = importDump(appCtx, dumpUri);
+                summary = appCtx.getString(R.string.import_database_done, count);
+            } catch (IOException | RuntimeException e) {
+                // access to URI may be revoked, dump may be broken in many ways, report and stop anyway
+                Log.e(TAG, "Couldn't import lyrics database from " + dumpUri, e);
+                summary += e.getLocalizedMessage();
+            } finally {
+                String message = summary;
+                mHandler.post(() -> {
+                    Toast.makeText(appCtx, message, Toast.LENGTH_LONG).show();
+                    if (stopSelfResult(startId)) {
+                        stopForeground(true);
+                    }
+                });
+            }
+        });
+
+        // user can pick the dump again if we're killed, don't restart it on our own
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Import the dump, reading it again with legacy encoding of file names if they're not UTF-8.
+     * Archives made on Windows usually have names in DOS code page and no UTF-8 flag.
+     */
+    private static int importDump(Context ctx, Uri dumpUri) throws IOException {
+        LyricsDatabase database = LyricsDatabase.getInstance(ctx);
+        try {
+            return database.importDump(openDump(ctx, dumpUri));
+        } catch (LyricsDatabase.MalformedNameException e) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+                // no way to choose file name charset
+                throw e;
+            }
+
+            Log.w(TAG, "File names in " + dumpUri + " are not UTF-8, retrying with CP437", e);
+            return database.importDump(openDump(ctx, dumpUri), Charset.forName("CP437"));
+        }
+    }
+
+    private static InputStream openDump(Context ctx, Uri dumpUri) throws IOException {
+        InputStream dump = ctx.getContentResolver().openInputStream(dumpUri);
+        if (dump == null) {
+            throw new IOException("Couldn't open " + dumpUri);
+        }
+        return dump;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private Notification buildNotification() {
+        Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.import_channel), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, CHANNEL_ID);
+        } else {
+            //noinspection deprecation
+            builder = new Notification.Builder(this);
+        }
+
+        return builder.setSmallIcon(R.drawable.icon)
+                .setContentTitle(getString(R.string.import_database))
+                .setContentText(getString(R.string.import_database_started))
+                .setProgress(0, 0, true)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,573 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle to the lyrics lookup, asynchronous and cancellable.
+ * <p/>
+ * Lookup has an overall deadline covering every request the engine makes while serving it.
+ * While lookup is running, it is available to engines and transport through {@link #current()}:
+ * the transport limits its timeouts to the time left and registers in-flight connections here,
+ * so {@link #cancel()} or deadline expiration closes the sockets immediately instead of waiting
+ * for the read timeout.
+ * <p/>
+ * Composite engines can {@link #fork()} the current lookup to run several engines in parallel, children
+ * share the deadline of the parent and are cancelled along with it.
+ * <p/>
+ * Lookups are run by {@link LookupScheduler} according to their priority. Deadline starts ticking
+ * when lookup actually starts, not when it's queued.
+ *
+ * @author Kanedias
+ */
+public class LyricsLookup {
+
+    private static final String TAG = LyricsLookup.class.getSimpleName();
+
+    private static final ThreadLocal<LyricsLookup> CURRENT = new ThreadLocal<>();
+
+    private static final ScheduledExecutorService DEADLINE_TIMER = Executors.newSingleThreadScheduledExecutor();
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callback for lookup completion, called on the main thread
+     */
+    public interface Callback {
+        void onResult(LyricsResult result);
+    }
+
+    private final LyricsLookup mParent;
+    private final String mTag;
+    private final long mTimeout;
+
+    // engine call, only for root lookups
+    private LyricsEngine mEngine;
+    private String mArtistName;
+    private String mSongTitle;
+
+    private volatile long mDeadline;
+    private volatile LookupScheduler.Priority mPriority;
+    private final List<Closeable> mInFlight = new ArrayList<>();
+    private final List<LyricsLookup> mChildren = new ArrayList<>();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private volatile boolean mCancelled;
+    private volatile boolean mExpired;
+    private volatile LyricsResult mResult;
+    private volatile long mCompletedAt;
+    private volatile boolean mPreempted;
+
+    private final List<Callback> mCallbacks = new ArrayList<>();
+    private Thread mRunner;
+    private Future<?> mDeadlineTask;
+    private int mSubscribers;
+
+    private LyricsLookup(LyricsLookup parent, long deadline, long timeout,
+                         LookupScheduler.Priority priority, String tag) {
+        this.mParent = parent;
+        this.mDeadline = deadline;
+        this.mTimeout = timeout;
+        this.mPriority = priority;
+        this.mTag = tag;
+    }
+
+    /**
+     * Start interactive lookup in background
+     *
+     * @param engine     engine to use for the lookup
+     * @param artistName band or artist name to search for
+     * @param songTitle  full song title to search for
+     * @param timeoutMs  overall time limit for the lookup, in milliseconds
+     * @param callback   callback to be notified on the main thread when lookup is completed or its deadline
+     *                   passes, it's not called if lookup is cancelled, can be null
+     * @return handle of the started lookup
+     */
+    public static LyricsLookup start(LyricsEngine engine, String artistName, String songTitle,
+                                     long timeoutMs, Callback callback) {
+        LyricsLookup lookup = start(engine, artistName, songTitle, timeoutMs, LookupScheduler.Priority.INTERACTIVE, null);
+        if (callback != null) {
+            lookup.observe(callback);
+        }
+        return lookup;
+    }
+
+    /**
+     * Queue lookup to be run in background
+     *
+     * @param engine     engine to use for the lookup
+     * @param artistName band or artist name to search for
+     * @param songTitle  full song title to search for
+     * @param timeoutMs  overall time limit for the lookup once it's started, in milliseconds
+     * @param priority   scheduler lane to run the lookup in
+     * @param tag        tag to cancel lookups by, can be null
+     * @return handle of the queued lookup
+     * @see LookupScheduler#cancelAll(String)
+     */
+    public static LyricsLookup start(LyricsEngine engine, String artistName, String songTitle,
+                                     long timeoutMs, LookupScheduler.Priority priority, String tag) {
+        LyricsLookup lookup = new LyricsLookup(null, Long.MAX_VALUE, timeoutMs, priority, tag);
+        lookup.mEngine = engine;
+        lookup.mArtistName = artistName;
+        lookup.mSongTitle = songTitle;
+        LookupScheduler.getInstance().submit(lookup);
+        return lookup;
+    }
+
+    /**
+     * Run queued lookup on the current thread, called by the scheduler
+     */
+    void execute() {
+        synchronized (this) {
+            if (mResult != null) {
+                // cancelled while queued
+                return;
+            }
+
+            mRunner = Thread.currentThread();
+            if (mDeadlineTask == null) {
+                // first start, not a restart after preemption
+                mDeadline = System.currentTimeMillis() + mTimeout;
+                mDeadlineTask = DEADLINE_TIMER.schedule(this::expire, mTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        try {
+            call(mEngine, mArtistName, mSongTitle);
+        } finally {
+            synchronized (this) {
+                mRunner = null;
+            }
+        }
+    }
+
+    /**
+     * Subscribe to the result of already started lookup. If lookup is already completed,
+     * callback is notified right away.
+     *
+     * @param callback callback to be notified on the main thread when lookup is completed or its deadline
+     *                 passes, it's not called if lookup is cancelled
+     */
+    public synchronized void observe(Callback callback) {
+        if (mResult == null) {
+            mCallbacks.add(callback);
+            return;
+        }
+
+        if (!mCancelled || mExpired) {
+            LyricsResult result = mResult;
+            MAIN_HANDLER.post(() -> callback.onResult(result));
+        }
+    }
+
+    /**
+     * Unsubscribe from the result of the lookup. Callback won't be called after this,
+     * lookup itself continues to run.
+     *
+     * @param callback callback previously passed to {@link #observe(Callback)}
+     */
+    public synchronized void removeObserver(Callback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * @return lookup current thread is working on or null if current thread is not serving any
+     */
+    public static LyricsLookup current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Fork lookup the current thread is serving. If there's no such, new lookup without deadline is created.
+     *
+     * @return child lookup sharing deadline with the current one
+     */
+    public static LyricsLookup forkCurrent() {
+        LyricsLookup current = current();
+        if (current == null) {
+            return new LyricsLookup(null, Long.MAX_VALUE, Long.MAX_VALUE, LookupScheduler.Priority.INTERACTIVE, null);
+        }
+        return current.fork();
+    }
+
+    /**
+     * Fork lookup the current thread is serving, with a tighter time limit. Child expires when its time limit
+     * passes, closing its connections, even if the engine is stuck in a read that never checks the deadline.
+     *
+     * @param timeoutMs time limit of the child, in milliseconds. Parent deadline still applies if it's earlier
+     * @return child lookup with its own deadline
+     */
+    public static LyricsLookup forkCurrent(long timeoutMs) {
+        LyricsLookup current = current();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        LyricsLookup child = current == null
+                ? new LyricsLookup(null, deadline, timeoutMs, LookupScheduler.Priority.INTERACTIVE, null)
+                : current.fork(deadline, timeoutMs);
+        child.scheduleDeadline(timeoutMs);
+        return child;
+    }
+
+    private synchronized void scheduleDeadline(long timeoutMs) {
+        if (mResult == null) {
+            mDeadlineTask = DEADLINE_TIMER.schedule(this::expire, timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return child lookup that shares the deadline and is cancelled when this one is
+     */
+    public LyricsLookup fork() {
+        return fork(mDeadline, mTimeout);
+    }
+
+    private synchronized LyricsLookup fork(long deadline, long timeout) {
+        LyricsLookup child = new LyricsLookup(this, Math.min(deadline, mDeadline), timeout, mPriority, mTag);
+        if (mCancelled || mPreempted) {
+            child.mCancelled = true;
+            child.mExpired = mExpired;
+        } else {
+            mChildren.add(child);
+        }
+        return child;
+    }
+
+    /**
+     * Run the engine synchronously in the context of this lookup
+     *
+     * @param engine     engine to use for the lookup
+     * @param artistName band or artist name to search for
+     * @param songTitle  full song title to search for
+     * @return lookup result
+     */
+    public LyricsResult call(LyricsEngine engine, String artistName, String songTitle) {
+        LyricsLookup previous = CURRENT.get();
+        CURRENT.set(this);
+        long started = System.nanoTime();
+        try {
+            LyricsResult result = isCancelled() ? null : engine.getLyrics(artistName, songTitle);
+            if (mPreempted && !isCancelled()) {
+                // whatever engine returned doesn't count, lookup will be restarted
+                return null;
+            }
+
+            if (isCancelled()) {
+                // whatever engine returned, it's a consequence of cancellation
+                result = LyricsResult.failed(mExpired ? LyricsResult.Status.TIMED_OUT : LyricsResult.Status.CANCELLED);
+            }
+            record(engine, started, result);
+            return complete(result);
+        } catch (RuntimeException e) {
+            if (mPreempted && !isCancelled()) {
+                return null;
+            }
+
+            Log.e(TAG, "Lyrics engine crashed", e);
+            LyricsResult crashed = LyricsResult.failed(LyricsResult.Status.PARSE_ERROR);
+            record(engine, started, crashed);
+            return complete(crashed);
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    private static void record(LyricsEngine engine, long startedNanos, LyricsResult result) {
+        String phase = "engine/" + engine.getClass().getSimpleName();
+        LookupStats stats = LookupStats.getInstance();
+        stats.recordPhase(phase, startedNanos);
+        stats.count(phase + "/" + result.status.name().toLowerCase(Locale.US));
+    }
+
+    /**
+     * Set the result of the lookup if it's not yet set
+     *
+     * @param result result to set
+     * @return actual result of the lookup
+     */
+    private synchronized LyricsResult complete(LyricsResult result) {
+        if (mResult == null) {
+            mCompletedAt = System.currentTimeMillis();
+            mResult = result;
+            mDone.countDown();
+
+            if (mDeadlineTask != null) {
+                mDeadlineTask.cancel(false);
+            }
+
+            if (!mCancelled || mExpired) {
+                for (Callback callback : mCallbacks) {
+                    MAIN_HANDLER.post(() -> callback.onResult(result));
+                }
+            }
+            mCallbacks.clear();
+        }
+        return mResult;
+    }
+
+    /**
+     * Cancel the lookup, closing all connections it has open.
+     * Callback of the lookup won't be called after this.
+     */
+    public void cancel() {
+        abort(false);
+    }
+
+    private void expire() {
+        abort(true);
+    }
+
+    private void abort(boolean expired) {
+        List<Closeable> connections;
+        List<LyricsLookup> children;
+        synchronized (this) {
+            if (mCancelled || mResult != null) {
+                return;
+            }
+            mCancelled = true;
+            mExpired = expired;
+
+            connections = new ArrayList<>(mInFlight);
+            children = new ArrayList<>(mChildren);
+            mInFlight.clear();
+
+            if (mRunner != null) {
+                mRunner.interrupt();
+            }
+
+            // don't make anyone wait for the engine to notice cancellation
+            complete(LyricsResult.failed(expired ? LyricsResult.Status.TIMED_OUT : LyricsResult.Status.CANCELLED));
+        }
+
+        for (LyricsLookup child : children) {
+            child.abort(expired);
+        }
+        closeAll(connections);
+    }
+
+    private static void closeAll(List<Closeable> connections) {
+        for (Closeable conn : connections) {
+            try {
+                conn.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't abort connection", e);
+            }
+        }
+    }
+
+    /**
+     * Make running lookup give way to more important one. Its connections are aborted and forks are cancelled,
+     * what engine returns after that is ignored, and the scheduler runs the lookup again later.
+     *
+     * @return true if lookup was preempted, false if it's not running or already preempted
+     */
+    boolean preempt() {
+        List<Closeable> connections;
+        List<LyricsLookup> children;
+        synchronized (this) {
+            if (mRunner == null || mPreempted || mCancelled || mResult != null) {
+                return false;
+            }
+            mPreempted = true;
+
+            connections = new ArrayList<>(mInFlight);
+            children = new ArrayList<>(mChildren);
+            mInFlight.clear();
+            mChildren.clear();
+            mRunner.interrupt();
+        }
+
+        for (LyricsLookup child : children) {
+            child.cancel();
+        }
+        closeAll(connections);
+        return true;
+    }
+
+    boolean isPreempted() {
+        return mPreempted;
+    }
+
+    /**
+     * Reset preemption after the lookup gave way, called by the scheduler
+     *
+     * @return true if lookup was preempted and has to be restarted
+     */
+    synchronized boolean clearPreempted() {
+        boolean restart = mPreempted && mResult == null;
+        mPreempted = false;
+        return restart;
+    }
+
+    /**
+     * @return root lookup this one was forked from or this lookup if it's not a fork
+     */
+    public LyricsLookup root() {
+        LyricsLookup lookup = this;
+        while (lookup.mParent != null) {
+            lookup = lookup.mParent;
+        }
+        return lookup;
+    }
+
+    /**
+     * @return priority of the lookup, forks share priority of the root
+     */
+    public LookupScheduler.Priority priority() {
+        return mParent == null ? mPriority : root().mPriority;
+    }
+
+    void setPriority(LookupScheduler.Priority priority) {
+        this.mPriority = priority;
+    }
+
+    /**
+     * @return tag of the lookup or null if it has none
+     */
+    public String tag() {
+        return mTag;
+    }
+
+    /**
+     * Declare interest in the result of the lookup. Lookup shared by several callers
+     * is only cancelled when every one of them {@link #release() releases} it.
+     */
+    public synchronized void retain() {
+        mSubscribers++;
+    }
+
+    /**
+     * Withdraw interest in the result of the lookup, cancel it if nobody else is interested
+     */
+    public void release() {
+        synchronized (this) {
+            if (--mSubscribers > 0) {
+                return;
+            }
+            mSubscribers = 0;
+        }
+        cancel();
+    }
+
+    /**
+     * @return true if somebody {@link #retain() retained} this lookup and didn't release it yet
+     */
+    public synchronized boolean hasSubscribers() {
+        return mSubscribers > 0;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return true if lookup was cancelled because its deadline passed
+     */
+    public boolean isExpired() {
+        return mExpired;
+    }
+
+    public boolean isDone() {
+        return mResult != null;
+    }
+
+    /**
+     * @return result of the completed lookup or null if it's not completed yet
+     */
+    public LyricsResult result() {
+        return mResult;
+    }
+
+    /**
+     * @return milliseconds passed since the lookup was completed or 0 if it's not completed yet
+     */
+    public long millisSinceCompleted() {
+        return isDone() ? System.currentTimeMillis() - mCompletedAt : 0;
+    }
+
+    /**
+     * Wait for lookup to complete
+     *
+     * @return result of the lookup
+     * @throws InterruptedException if waiting thread is interrupted
+     */
+    public LyricsResult await() throws InterruptedException {
+        mDone.await();
+        return mResult;
+    }
+
+    /**
+     * @return milliseconds left until the deadline
+     */
+    public long remainingMillis() {
+        if (mDeadline == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return mDeadline - System.currentTimeMillis();
+    }
+
+    /**
+     * Throws if there's no sense in doing any more work for this lookup
+     *
+     * @throws InterruptedIOException if lookup is cancelled or its deadline passed
+     */
+    public void checkActive() throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException(mExpired ? "Lookup deadline passed" : "Lookup was cancelled");
+        }
+
+        if (root().mPreempted) {
+            throw new InterruptedIOException("Lookup was preempted");
+        }
+
+        if (remainingMillis() <= 0) {
+            expire();
+            throw new InterruptedIOException("Lookup deadline passed");
+        }
+    }
+
+    /**
+     * Register connection that should be closed if lookup is cancelled
+     *
+     * @param connection connection to register
+     * @throws InterruptedIOException if lookup is already cancelled or preempted
+     */
+    public void register(Closeable connection) throws InterruptedIOException {
+        synchronized (this) {
+            if (!mCancelled && !mPreempted) {
+                mInFlight.add(connection);
+                return;
+            }
+        }
+
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // we're throwing anyway
+        }
+        checkActive();
+    }
+
+    /**
+     * Forget connection that was completed
+     *
+     * @param connection connection registered previously
+     */
+    public synchronized void unregister(Closeable connection) {
+        mInFlight.remove(connection);
+    }
+}
@@ -0,0 +1,24 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receiver of prefetch announcements. It's separate from {@link PluginQueryBroadcastReceiver},
+ * as plugin queries must stay open to any player, while prefetch spends user's traffic
+ * and only accepts senders declaring {@link LyricsPrefetcher#PERMISSION_PREFETCH_LYRICS}.
+ *
+ * @see LyricsPrefetcher
+ *
+ * @author Kanedias
+ */
+public class LyricsPrefetchReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (LyricsPrefetcher.ACTION_PREFETCH_LYRICS.equals(intent.getAction())) {
+            LyricsPrefetcher.handlePrefetch(context, intent, this);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.kanedias.vanilla.plugins.PluginConstants.EXTRA_PARAM_SONG_ARTIST;
+import static com.kanedias.vanilla.plugins.PluginConstants.EXTRA_PARAM_SONG_TITLE;
+
+/**
+ * Opt-in prefetch of lyrics for upcoming tracks, so they're already in the cache when the user opens the dialog.
+ * <p/>
+ * Player announces upcoming track by broadcasting {@link #ACTION_PREFETCH_LYRICS} with the usual song
+ * title and artist extras. Sender must declare {@link #PERMISSION_PREFETCH_LYRICS}, so prefetching is
+ * a deliberate choice of the player. The permission can't be restricted to the player itself, as it's
+ * signed by another developer, so prefetch is opt-in for the user and the real abuse limit is the daily
+ * budget: prefetch runs in the low-priority lane of {@link LookupScheduler}, unrestricted on unmetered
+ * networks and limited by the budget on metered ones.
+ *
+ * @author Kanedias
+ */
+public class LyricsPrefetcher {
+
+    private static final String TAG = LyricsPrefetcher.class.getSimpleName();
+
+    /**
+     * Broadcast action announcing the track that will likely be played soon
+     */
+    public static final String ACTION_PREFETCH_LYRICS = "com.kanedias.vanilla.lyrics.action.PREFETCH_LYRICS";
+
+    /**
+     * Permission required to send {@link #ACTION_PREFETCH_LYRICS}, granted to any app that declares it
+     */
+    public static final String PERMISSION_PREFETCH_LYRICS = "com.kanedias.vanilla.lyrics.permission.PREFETCH_LYRICS";
+
+    /**
+     * Tag of prefetch lookups in the scheduler
+     */
+    public static final String PREFETCH_TAG = "prefetch";
+
+    private static final String PREF_PREFETCH_ENABLED = "prefetch_enabled";
+    private static final String PREF_METERED_BUDGET_DAY = "prefetch_metered_day";
+    private static final String PREF_METERED_BUDGET_USED = "prefetch_metered_used";
+
+    /**
+     * Lookups allowed per day on metered networks. One lookup is a search API call plus a lyrics page,
+     * around 100-200 KB, so this is a couple of megabytes at most.
+     */
+    private static final int METERED_DAILY_BUDGET = 15;
+
+    /**
+     * Prefetch is not urgent, but there's no sense in it if it takes longer than a track
+     */
+    private static final long PREFETCH_TIMEOUT = 60_000;
+
+    /**
+     * Broadcasts are not allowed to run longer than 10 seconds
+     */
+    private static final long MAX_BROADCAST_HOLD = 9_000;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Cache and database checks before the lookup touch disk, they're kept off the main thread
+     */
+    private static final ExecutorService PREFETCH_CHECKS = Executors.newSingleThreadExecutor();
+
+    private LyricsPrefetcher() {
+    }
+
+    public static boolean isEnabled(Context ctx) {
+        return PreferenceManager.getDefaultSharedPreferences(ctx).getBoolean(PREF_PREFETCH_ENABLED, false);
+    }
+
+    public static void setEnabled(Context ctx, boolean enabled) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit().putBoolean(PREF_PREFETCH_ENABLED, enabled).apply();
+        if (!enabled) {
+            LookupScheduler.getInstance().cancelAll(PREFETCH_TAG);
+        }
+    }
+
+    /**
+     * Handle prefetch broadcast. Checks and lookup run in background, receiver is kept alive until they complete.
+     *
+     * @param ctx      context of the receiver
+     * @param intent   prefetch intent with song title and artist
+     * @param receiver receiver that got the broadcast
+     */
+    public static void handlePrefetch(Context ctx, Intent intent, BroadcastReceiver receiver) {
+        String title = intent.getStringExtra(EXTRA_PARAM_SONG_TITLE);
+        String artist = intent.getStringExtra(EXTRA_PARAM_SONG_ARTIST);
+        if (TextUtils.isEmpty(title) || TextUtils.isEmpty(artist)) {
+            return;
+        }
+
+        // don't let the process die while we're fetching, but don't hold the broadcast for too long either
+        BroadcastReceiver.PendingResult pending = receiver.goAsync();
+        AtomicBoolean finished = new AtomicBoolean();
+        Runnable finish = () -> {
+            if (finished.compareAndSet(false, true)) {
+                pending.finish();
+            }
+        };
+        new Handler(Looper.getMainLooper()).postDelayed(finish, MAX_BROADCAST_HOLD);
+
+        Context appCtx = ctx.getApplicationContext();
+        PREFETCH_CHECKS.submit(() -> {
+            LyricsLookup lookup = startPrefetch(appCtx, artist, title);
+            if (lookup == null) {
+                finish.run();
+                return;
+            }
+
+            lookup.observe(result -> finish.run());
+        });
+    }
+
+    /**
+     * Start prefetch lookup if the song needs it. Checks here read preferences, cache and database,
+     * so this must not be called on the main thread.
+     *
+     * @return started or joined lookup, or null if there's nothing to fetch
+     */
+    private static LyricsLookup startPrefetch(Context ctx, String artist, String title) {
+        if (!isEnabled(ctx)) {
+            return null;
+        }
+
+        SongKey key = SongKey.of(artist, title);
+        LyricsCache.Entry cached = LyricsCache.getInstance(ctx).get(key);
+        if (cached != null && !cached.expired) {
+            // nothing to do
+            return null;
+        }
+
+        try {
+            if (LyricsDatabase.getInstance(ctx).contains(key)) {
+                // always available offline
+                return null;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read lyrics database", e);
+        }
+
+        OfflineLyricsEngine engine = LyricsEngines.getDefault(ctx);
+        if (engine.isKnownMiss(artist, title)) {
+            // hopeless, don't waste the budget
+            return null;
+        }
+
+        // budget is charged only when the lookup actually runs, joining one that is in flight is free
+        return PendingLookups.start(false, new MeteredEngine(ctx, engine), artist, title, PREFETCH_TIMEOUT,
+                LookupScheduler.Priority.PREFETCH, PREFETCH_TAG);
+    }
+
+    /**
+     * Engine that goes to network only while metered network budget allows it. If prefetch
+     * was promoted by interactive request before it started, it runs regardless of the budget.
+     */
+    private static final class MeteredEngine implements LyricsEngine {
+
+        private final Context mContext;
+        private final LyricsEngine mDelegate;
+
+        private MeteredEngine(Context ctx, LyricsEngine delegate) {
+            this.mContext = ctx;
+            this.mDelegate = delegate;
+        }
+
+        @Override
+        public LyricsResult getLyrics(String artistName, String songTitle) {
+            LyricsLookup current = LyricsLookup.current();
+            boolean prefetch = current == null || current.priority() == LookupScheduler.Priority.PREFETCH;
+            if (prefetch && !takeNetworkAllowance(mContext)) {
+                Log.d(TAG, "Prefetch skipped, metered network budget is exhausted");
+                return LyricsResult.failed(LyricsResult.Status.CANCELLED);
+            }
+
+            return mDelegate.getLyrics(artistName, songTitle);
+        }
+    }
+
+    /**
+     * Check if network can be used for prefetch right now, accounting for the use
+     *
+     * @return true if prefetch is allowed, false otherwise
+     */
+    private static synchronized boolean takeNetworkAllowance(Context ctx) {
+        ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo active = cm == null ? null : cm.getActiveNetworkInfo();
+        if (active == null || !active.isConnected()) {
+            return false;
+        }
+
+        if (!isMetered(cm, active)) {
+            return true;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        long today = System.currentTimeMillis() / DAY_MILLIS;
+        int used = prefs.getLong(PREF_METERED_BUDGET_DAY, 0) == today ? prefs.getInt(PREF_METERED_BUDGET_USED, 0) : 0;
+        if (used >= METERED_DAILY_BUDGET) {
+            return false;
+        }
+
+        prefs.edit()
+                .putLong(PREF_METERED_BUDGET_DAY, today)
+                .putInt(PREF_METERED_BUDGET_USED, used + 1)
+                .apply();
+        return true;
+    }
+
+    private static boolean isMetered(ConnectivityManager cm, NetworkInfo active) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return cm.isActiveNetworkMetered();
+        }
+
+        // best guess for older devices
+        int type = active.getType();
+        return type != ConnectivityManager.TYPE_WIFI && type != ConnectivityManager.TYPE_ETHERNET;
+    }
+}
@@ -0,0 +1,136 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Outcome of the lyrics lookup. Either the lyrics themselves or the reason why they couldn't be retrieved.
+ *
+ * @author Kanedias
+ */
+public class LyricsResult {
+
+    public enum Status {
+        /**
+         * Lyrics were found, {@link #lyrics} contains them
+         */
+        FOUND,
+
+        /**
+         * Lyrics provider answered that there are no lyrics for this song
+         */
+        NOT_FOUND,
+
+        /**
+         * Lyrics provider couldn't be reached or answered with an error
+         */
+        NETWORK_ERROR,
+
+        /**
+         * Lyrics provider answered with something we couldn't understand, most likely format changed
+         */
+        PARSE_ERROR,
+
+        /**
+         * Lyrics provider refused to answer because we're asking too often
+         */
+        RATE_LIMITED,
+
+        /**
+         * Lookup deadline passed before the answer was retrieved
+         */
+        TIMED_OUT,
+
+        /**
+         * Lookup was cancelled by the caller
+         */
+        CANCELLED
+    }
+
+    public final Status status;
+    public final String lyrics;
+
+    private LyricsResult(Status status, String lyrics) {
+        this.status = status;
+        this.lyrics = lyrics;
+    }
+
+    /**
+     * @param lyrics retrieved lyrics, empty lyrics mean nothing was found
+     * @return successful result with lyrics or not found result
+     */
+    public static LyricsResult found(String lyrics) {
+        if (TextUtils.isEmpty(lyrics)) {
+            return notFound();
+        }
+        return new LyricsResult(Status.FOUND, lyrics);
+    }
+
+    public static LyricsResult notFound() {
+        return new LyricsResult(Status.NOT_FOUND, null);
+    }
+
+    /**
+     * @param status reason of failure
+     * @return failed result
+     */
+    public static LyricsResult failed(Status status) {
+        return new LyricsResult(status, null);
+    }
+
+    /**
+     * Classify connection error that occurred during lookup
+     *
+     * @param e exception thrown by the transport
+     * @return failed result with the most specific status possible
+     */
+    public static LyricsResult failed(IOException e) {
+        LyricsLookup current = LyricsLookup.current();
+        if (current != null && current.isCancelled()) {
+            return failed(current.isExpired() ? Status.TIMED_OUT : Status.CANCELLED);
+        }
+
+        if (e instanceof HostRateLimiter.RateLimitedException) {
+            return failed(Status.RATE_LIMITED);
+        }
+
+        if (e instanceof HttpTransport.StatusException) {
+            return failed(((HttpTransport.StatusException) e).code);
+        }
+
+        if (e instanceof SocketTimeoutException) {
+            return failed(Status.TIMED_OUT);
+        }
+
+        return failed(Status.NETWORK_ERROR);
+    }
+
+    /**
+     * Classify unsuccessful HTTP answer
+     *
+     * @param httpCode HTTP response code
+     * @return failed result with status corresponding to the code
+     */
+    public static LyricsResult failed(int httpCode) {
+        switch (httpCode) {
+            case 404:
+                return notFound();
+            case 429:
+            case 503:
+                return failed(Status.RATE_LIMITED);
+            default:
+                return failed(Status.NETWORK_ERROR);
+        }
+    }
+
+    public boolean isFound() {
+        return status == Status.FOUND;
+    }
+
+    @Override
+    public String toString() {
+        return isFound() ? "FOUND(" + lyrics.length() + " chars)" : status.name();
+    }
+}
@@ -23,9 +23,9 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -39,26 +39,20 @@ import android.widget.Toast;
 import android.widget.ViewSwitcher;
 
 import androidx.annotation.NonNull;
-import androidx.documentfile.provider.DocumentFile;
 
 import com.kanedias.vanilla.plugins.DialogActivity;
-import com.kanedias.vanilla.plugins.PluginUtils;
 import com.kanedias.vanilla.plugins.saf.SafPermissionHandler;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import static android.Manifest.permission.WRITE_EXTERNAL_STORAGE;
 import static com.kanedias.vanilla.plugins.PluginConstants.*;
 import static com.kanedias.vanilla.plugins.PluginUtils.checkAndRequestPermissions;
 import static com.kanedias.vanilla.plugins.PluginUtils.havePermissions;
-import static com.kanedias.vanilla.plugins.saf.SafUtils.findInDocumentTree;
 import static com.kanedias.vanilla.plugins.saf.SafUtils.isSafNeeded;
 
 /**
@@ -94,6 +88,41 @@ public class LyricsShowActivity extends DialogActivity {
 
     private static final String PLUGIN_TAG_EDIT_PKG = "com.kanedias.vanilla.audiotag";
 
+    /**
+     * Overall time limit for the network lookup, including all requests engines make
+     */
+    private static final long LOOKUP_TIMEOUT = 20_000;
+
+    /**
+     * Time limit for reading lyrics from the file tag and companion *.lrc file
+     */
+    private static final long LOCAL_LOOKUP_TIMEOUT = 5_000;
+
+    /**
+     * File writes are serialized, so two of them never rewrite the same file at once
+     */
+    private static final ExecutorService FILE_WRITE_EXECUTOR = FileWrites.EXECUTOR;
+
+    /**
+     * Background writes outlive the activity, their results are reported from here
+     */
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Request code for picking lyrics dump to import
+     */
+    private static final int IMPORT_DUMP_REQUEST = 0x1d8;
+
+    /**
+     * Actions that need storage permission, they continue once it's granted
+     */
+    private static final int PENDING_NONE = 0;
+    private static final int PENDING_WRITE_LRC = 1;
+    private static final int PENDING_EXPORT_LIBRARY = 2;
+    private static final int PENDING_ENABLE_SWEEP = 3;
+
+    private static final String STATE_PENDING_ACTION = "pending_action";
+
     private SharedPreferences mPrefs;
 
     private TextView mLyricsText;
@@ -101,12 +130,28 @@ public class LyricsShowActivity extends DialogActivity {
     private Button mOkButton, mWriteButton;
 
     private SafPermissionHandler mSafHandler;
-    private LyricsEngine mEngine = new GeniusApiEngine();
+    private OfflineLyricsEngine mEngine;
+    private LyricsLookup mLookup;
+    private LyricsLookup.Callback mLookupCallback;
+    private LyricsLookup mLocalLookup;
+    private boolean mLocalPending;
+
+    /**
+     * Network answer without lyrics, not shown until local sources are checked
+     */
+    private LyricsResult mHeldNetworkResult;
+
+    /**
+     * Action that waits for storage permission, one of PENDING_* constants
+     */
+    private int mPendingAction = PENDING_NONE;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        mEngine = LyricsEngines.getDefault(this);
+
         if (handleLaunchPlugin()) {
             // no UI was required for handling the intent
             return;
@@ -123,6 +168,29 @@ public class LyricsShowActivity extends DialogActivity {
         mOkButton = findViewById(R.id.ok_button);
 
         setupUI();
+
+        if (savedInstanceState != null) {
+            // permission dialog may outlive this instance
+            mPendingAction = savedInstanceState.getInt(STATE_PENDING_ACTION, PENDING_NONE);
+        }
+
+        // lookup of the previous instance destroyed due to configuration change, it's retained for us
+        LyricsLookup inherited = (LyricsLookup) getLastNonConfigurationInstance();
+        if (inherited != null) {
+            observeLookup(inherited);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_PENDING_ACTION, mPendingAction);
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        // hand the lookup over to the next instance, it's not released in onDestroy
+        return mLookup;
     }
 
     @Override
@@ -141,6 +209,18 @@ public class LyricsShowActivity extends DialogActivity {
                     // show only when loading is complete
                     item.setVisible(mSwitcher.getDisplayedChild() == 1);
                     continue;
+                case R.id.prefetch_option:
+                    item.setChecked(LyricsPrefetcher.isEnabled(this));
+                    continue;
+                case R.id.sweep_option:
+                    item.setVisible(LibrarySweepJob.isSupported());
+                    item.setChecked(LibrarySweepJob.isSupported() && LibrarySweepJob.isEnabled(this));
+                    item.setTitle(sweepTitle(item.isChecked()));
+                    continue;
+                case R.id.stats_option:
+                    // for developers only
+                    item.setVisible(BuildConfig.DEBUG);
+                    continue;
                 default:
                     break;
             }
@@ -156,10 +236,50 @@ public class LyricsShowActivity extends DialogActivity {
                 mSwitcher.setDisplayedChild(0);
                 handleUiIntent(false);
                 return true;
+            case R.id.prefetch_option:
+                LyricsPrefetcher.setEnabled(this, !item.isChecked());
+                item.setChecked(!item.isChecked());
+                return true;
+            case R.id.sweep_option:
+                // sweep needs to read the tracks to know which ones have lyrics already
+                if (!item.isChecked() && !requestStoragePermission(PENDING_ENABLE_SWEEP)) {
+                    return true;
+                }
+
+                LibrarySweepJob.setEnabled(this, !item.isChecked());
+                item.setChecked(!item.isChecked());
+                item.setTitle(sweepTitle(item.isChecked()));
+                return true;
+            case R.id.export_option:
+                if (requestStoragePermission(PENDING_EXPORT_LIBRARY)) {
+                    exportLibrary();
+                }
+                return true;
+            case R.id.stats_option:
+                dumpStats();
+                return true;
+            case R.id.import_option:
+                Intent pickDump = new Intent(Intent.ACTION_GET_CONTENT);
+                pickDump.addCategory(Intent.CATEGORY_OPENABLE);
+                pickDump.setType("application/zip");
+                startActivityForResult(pickDump, IMPORT_DUMP_REQUEST);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * @param enabled true if library sweep is enabled
+     * @return title of library sweep menu option, with progress if the sweep was ever run
+     */
+    private String sweepTitle(boolean enabled) {
+        LibrarySweep.Progress progress = LibrarySweep.getProgress(this);
+        if (!enabled || progress.remaining < 0) {
+            return getString(R.string.sweep_library);
+        }
+        return getString(R.string.sweep_progress, progress.remaining, progress.songsPerMinute);
+    }
+
     /**
      * Handle incoming intent that may possible be ping, other plugin request or user-interactive plugin request
      * @return true if intent was handled internally, false if activity startup is required
@@ -172,8 +292,8 @@ public class LyricsShowActivity extends DialogActivity {
             return true;
         }
 
-        if (pluginInstalled(this, PLUGIN_TAG_EDIT_PKG) && !getIntent().hasExtra(EXTRA_PARAM_P2P)) {
-            // it's user-requested, try to retrieve lyrics from the tag first
+        if (pluginInstalled(this, PLUGIN_TAG_EDIT_PKG) && !getIntent().hasExtra(EXTRA_PARAM_P2P) && !canReadTag()) {
+            // it's user-requested, we can't read the tag ourselves, ask Tag Editor to do it
             Intent readLyrics = new Intent(ACTION_LAUNCH_PLUGIN);
             readLyrics.setPackage(PLUGIN_TAG_EDIT_PKG);
             readLyrics.putExtra(EXTRA_PARAM_URI, (Uri) getIntent().getParcelableExtra(EXTRA_PARAM_URI));
@@ -181,6 +301,13 @@ public class LyricsShowActivity extends DialogActivity {
             readLyrics.putExtra(EXTRA_PARAM_P2P, P2P_READ_TAG);
             readLyrics.putExtra(EXTRA_PARAM_P2P_KEY, new String[]{"LYRICS"}); // tag name
             readLyrics.putExtras(getIntent());
+
+            // don't wait for Tag Editor round trip, start network lookup right away.
+            // Activity re-created by Tag Editor answer will join it if there are no lyrics in the tag
+            String title = getIntent().getStringExtra(EXTRA_PARAM_SONG_TITLE);
+            String artist = getIntent().getStringExtra(EXTRA_PARAM_SONG_ARTIST);
+            PendingLookups.start(false, mEngine, artist, title, LOOKUP_TIMEOUT);
+
             startActivity(readLyrics);
             finish(); // end this activity instance, it will be re-created by incoming intent from Tag Editor
             return true;
@@ -197,10 +324,32 @@ public class LyricsShowActivity extends DialogActivity {
         handleUiIntent(true);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (mLookup != null) {
+            // don't leak this instance through callback, lookup may outlive it
+            mLookup.removeObserver(mLookupCallback);
+            if (!isChangingConfigurations()) {
+                // nobody is interested in the result anymore
+                mLookup.release();
+            }
+            mLookup = null;
+        }
+
+        if (mLocalLookup != null) {
+            mLocalLookup.cancel();
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
 
+        int action = mPendingAction;
+        mPendingAction = PENDING_NONE;
+
         // we only request one permission
         if (!havePermissions(this, WRITE_EXTERNAL_STORAGE)) {
             // user denied our request, leave activity as-is
@@ -210,15 +359,57 @@ public class LyricsShowActivity extends DialogActivity {
         for (int i = 0; i < permissions.length; ++i) {
             if (TextUtils.equals(permissions[i], WRITE_EXTERNAL_STORAGE)
                     && grantResults[i] == PackageManager.PERMISSION_GRANTED) {
+                // continue the action permission was requested for
+                runPendingAction(action);
+            }
+        }
+    }
+
+    /**
+     * Check storage permission and request it if it's not granted yet
+     *
+     * @param action action to continue with when permission is granted, one of PENDING_* constants
+     * @return true if permission is granted already and action can be done right away
+     */
+    private boolean requestStoragePermission(int action) {
+        if (checkAndRequestPermissions(this, WRITE_EXTERNAL_STORAGE)) {
+            return true;
+        }
+
+        mPendingAction = action;
+        return false;
+    }
+
+    private void runPendingAction(int action) {
+        switch (action) {
+            case PENDING_WRITE_LRC:
                 // continue persist process started in Write... -> *.lrc file
                 persistAsLrcFile();
-            }
+                break;
+            case PENDING_EXPORT_LIBRARY:
+                exportLibrary();
+                break;
+            case PENDING_ENABLE_SWEEP:
+                LibrarySweepJob.setEnabled(this, true);
+                // menu shows sweep state
+                invalidateOptionsMenu();
+                break;
+            default:
+                break;
         }
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == IMPORT_DUMP_REQUEST) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                LyricsImportService.start(this, data.getData());
+                Toast.makeText(this, R.string.import_database_started, Toast.LENGTH_SHORT).show();
+            }
+            return;
+        }
+
         if (mSafHandler.onActivityResult(requestCode, resultCode, data)) {
             persistAsLrcFile();
         }
@@ -229,29 +420,108 @@ public class LyricsShowActivity extends DialogActivity {
      * @param useLocal true if tag info or *.lrc file can be used to retrieve lyrics, false if only network is allowed
      */
     private void handleUiIntent(boolean useLocal) {
-        if (useLocal && !TextUtils.isEmpty(mLyricsText.getText())) {
-            // we already have lyrics loaded, skip trying to get it from elsewhere
+        if (!useLocal) {
+            // reload request means user is not satisfied with cached lyrics as well
+            startLookup(true);
+            return;
+        }
+
+        if (!TextUtils.isEmpty(mLyricsText.getText()) || mSwitcher.getDisplayedChild() == 1) {
+            // we already have lyrics loaded or know there are none, skip trying to get it from elsewhere
             return;
         }
 
+        // network lookup runs in parallel with local sources, local lyrics win if they're present
+        if (mLookup == null) {
+            startLookup(false);
+        }
+
         // check if this is an answer from tag plugin
-        if (useLocal && TextUtils.equals(getIntent().getStringExtra(EXTRA_PARAM_P2P), P2P_READ_TAG)) {
+        boolean tagAnswered = TextUtils.equals(getIntent().getStringExtra(EXTRA_PARAM_P2P), P2P_READ_TAG);
+        if (tagAnswered) {
             String[] fields = getIntent().getStringArrayExtra(EXTRA_PARAM_P2P_VAL);
             if (fields != null && fields.length > 0 && !TextUtils.isEmpty(fields[0])) {
                 // start activity with retrieved lyrics
-                String lyrics = getIntent().getStringArrayExtra(EXTRA_PARAM_P2P_VAL)[0];
-                showFetchedLyrics(lyrics);
+                showLocalLyrics(fields[0]);
                 return;
             }
         }
 
-        // try to load from *.lrc file nearby
-        if (useLocal && loadFromFile()) {
+        // try to load from the file tag, unless Tag Editor did it already, and *.lrc file nearby
+        if (mLocalLookup == null) {
+            startLocalLookup(!tagAnswered);
+        }
+    }
+
+    /**
+     * @return true if lyrics tag of the requested media file can be read without Tag Editor plugin
+     */
+    private boolean canReadTag() {
+        if (!havePermissions(this, WRITE_EXTERNAL_STORAGE)) {
+            return false;
+        }
+
+        Uri fileUri = getIntent().getParcelableExtra(EXTRA_PARAM_URI);
+        if (fileUri == null || fileUri.getPath() == null) {
+            return false;
+        }
+
+        return EmbeddedLyricsReader.isSupported(new File(fileUri.getPath()));
+    }
+
+    /**
+     * Start looking for lyrics in the local sources. Operates asynchronously, lyrics are shown
+     * only if found, otherwise network lookup answer is awaited. Network answer without lyrics
+     * is held until this completes, so "not found" is never shown before local lyrics.
+     *
+     * @param readTag true if lyrics tag should be read, false if only *.lrc file is needed
+     */
+    private void startLocalLookup(boolean readTag) {
+        // used didn't write any *.lrc file, skip loading
+        // better, should we ask user for it in a dialog?
+        if (!havePermissions(this, WRITE_EXTERNAL_STORAGE)) {
+            return;
+        }
+
+        Uri fileUri = getIntent().getParcelableExtra(EXTRA_PARAM_URI);
+        if (fileUri == null || fileUri.getPath() == null) {
+            // wrong intent passed?
             return;
         }
 
-        // we didn't receive lyrics from tag plugin, try to retrieve it via lyrics engine
-        new LyricsFetcher().execute(getIntent());
+        File media = new File(fileUri.getPath());
+        LyricsEngine local = new LocalLyricsEngine(media, readTag && EmbeddedLyricsReader.isSupported(media));
+        LyricsLookup lookup = LyricsLookup.start(local, null, null, LOCAL_LOOKUP_TIMEOUT, null);
+        mLocalLookup = lookup;
+        mLocalPending = true;
+        lookup.observe(result -> {
+            if (lookup != mLocalLookup) {
+                return;
+            }
+            mLocalPending = false;
+
+            if (result.isFound()) {
+                showLocalLyrics(result.lyrics);
+            } else if (mHeldNetworkResult != null) {
+                // network had nothing either
+                showNetworkResult(mHeldNetworkResult);
+            }
+            mHeldNetworkResult = null;
+        });
+    }
+
+    /**
+     * Show lyrics retrieved from local source, network lookup is not needed anymore
+     *
+     * @param lyrics lyrics from tag or file
+     */
+    private void showLocalLyrics(String lyrics) {
+        if (mLookup != null) {
+            mLookup.release();
+            mLookup = null;
+        }
+
+        showFetchedLyrics(lyrics);
     }
 
     /**
@@ -287,84 +557,81 @@ public class LyricsShowActivity extends DialogActivity {
     }
 
     /**
-     * Retrieves companion name for lyrics file from media passed
-     *
-     * @param mediaFile - original media file that the lyrics was requested for
-     * @return string representing name with extension for lyrics companion file
+     * Initialize UI elements with handlers and action listeners
      */
-    @NonNull
-    private static String lyricsForFile(File mediaFile) {
-        String mfName = mediaFile.getName();
-        return mfName.indexOf(".") > 0
-                ? mfName.substring(0, mfName.lastIndexOf(".")) + ".lrc"
-                : mfName + ".lrc";
+    private void setupUI() {
+        mWriteButton.setOnClickListener(new SelectWriteAction());
+        mOkButton.setOnClickListener(v -> finish());
     }
 
     /**
-     * Try to load lyrics tag from companion *.lrc file nearby
+     * Start external lyrics lookup (using network). Operates asynchronously, notifies dialog when finishes.
+     * On no result (no such lyrics, couldn't fetch etc.) shows toast about this, on success updates dialog text.
+     * <p/>
+     * If the same song is already being looked up, e.g. speculatively before Tag Editor round trip or by the
+     * previous instance of this activity, that lookup is joined instead.
      *
-     * @return true if lyrics was loaded from file, false otherwise
+     * @param bypassCache true if cached lyrics should not be used
      */
-    private boolean loadFromFile() {
-        // used didn't write any *.lrc file, skip loading
-        // better, should we ask user for it in a dialog?
-        if (!PluginUtils.havePermissions(this, WRITE_EXTERNAL_STORAGE)) {
-            return false;
+    private void startLookup(boolean bypassCache) {
+        mHeldNetworkResult = null;
+        String title = getIntent().getStringExtra(EXTRA_PARAM_SONG_TITLE);
+        String artist = getIntent().getStringExtra(EXTRA_PARAM_SONG_ARTIST);
+        LyricsEngine engine = bypassCache ? mEngine::refresh : mEngine;
+        LyricsLookup lookup = PendingLookups.join(bypassCache, engine, artist, title, LOOKUP_TIMEOUT);
+        if (mLookup != null) {
+            // superseded by this one, released after join so that repeated reload doesn't cancel itself
+            mLookup.release();
         }
 
-        Uri fileUri = getIntent().getParcelableExtra(EXTRA_PARAM_URI);
-        if (fileUri == null || fileUri.getPath() == null) {
-            // wrong intent passed?
-            return false;
-        }
+        observeLookup(lookup);
+    }
 
-        File media = new File(fileUri.getPath());
-        String lyricsFileName = lyricsForFile(media);
-        File lyricsFile = new File(media.getParentFile(), lyricsFileName);
-        if (!lyricsFile.exists()) {
-            return false;
+    private void observeLookup(LyricsLookup lookup) {
+        mLookup = lookup;
+        mLookupCallback = result -> onLookupCompleted(lookup, result);
+        lookup.observe(mLookupCallback);
+    }
+
+    private void onLookupCompleted(LyricsLookup lookup, LyricsResult result) {
+        if (lookup != mLookup) {
+            // superseded by another lookup or by local lyrics
+            return;
         }
+        mLookup = null;
+        lookup.release();
 
-        try {
-            String lyricsText = new String(PluginUtils.readFully(new FileInputStream(lyricsFile)), "UTF-8");
-            showFetchedLyrics(lyricsText);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Failed to read lyrics text from file!", e);
-            return false;
+        if (!result.isFound() && mLocalPending) {
+            // local sources may still have lyrics, don't tell user there are none yet
+            mHeldNetworkResult = result;
+            return;
         }
-        return true;
-    }
 
-    /**
-     * Initialize UI elements with handlers and action listeners
-     */
-    private void setupUI() {
-        mWriteButton.setOnClickListener(new SelectWriteAction());
-        mOkButton.setOnClickListener(v -> finish());
+        showNetworkResult(result);
     }
 
     /**
-     * External lyrics fetcher (using network). Operates asynchronously, notifies dialog when finishes.
-     * On no result (no such lyrics, couldn't fetch etc.) shows toast about this, on success updates dialog text.
+     * Show result of network lookup, with a toast explaining why there are no lyrics if there are none
+     *
+     * @param result completed network lookup result
      */
-    private class LyricsFetcher extends AsyncTask<Intent, Void, String> {
-
-        @Override
-        protected String doInBackground(Intent... params) {
-            String title = getIntent().getStringExtra(EXTRA_PARAM_SONG_TITLE);
-            String artist = getIntent().getStringExtra(EXTRA_PARAM_SONG_ARTIST);
-            return mEngine.getLyrics(artist, title);
-        }
-
-        @Override
-        protected void onPostExecute(String lyrics) {
-            if (TextUtils.isEmpty(lyrics)) {
+    private void showNetworkResult(LyricsResult result) {
+        switch (result.status) {
+            case FOUND:
+                break;
+            case NETWORK_ERROR:
+            case TIMED_OUT:
+                Toast.makeText(this, R.string.lyrics_network_error, Toast.LENGTH_SHORT).show();
+                break;
+            case RATE_LIMITED:
+                Toast.makeText(this, R.string.lyrics_rate_limited, Toast.LENGTH_SHORT).show();
+                break;
+            default:
                 // no lyrics - show excuse
-                Toast.makeText(LyricsShowActivity.this, R.string.lyrics_not_found, Toast.LENGTH_SHORT).show();
-            }
-
-            showFetchedLyrics(lyrics);
+                Toast.makeText(this, R.string.lyrics_not_found, Toast.LENGTH_SHORT).show();
         }
+
+        showFetchedLyrics(result.lyrics);
     }
 
     /**
@@ -403,98 +670,115 @@ public class LyricsShowActivity extends DialogActivity {
             return;
         }
 
-        String lrcFilename = lyricsForFile(mediaFile);
-        File lrcTarget = new File(mediaFile.getParent(), lrcFilename);
-        byte[] data = mLyricsText.getText().toString().getBytes(Charset.forName("UTF-8"));
-        if (isSafNeeded(mediaFile, this)) {
-            if (mPrefs.contains(PREF_SDCARD_URI)) {
-                // we already got the permission!
-                writeThroughSaf(data, mediaFile, lrcTarget.getName());
-                return;
-            }
-
+        if (isSafNeeded(mediaFile, this) && !mPrefs.contains(PREF_SDCARD_URI)) {
             // request SAF permissions in handler
             mSafHandler.handleFile(mediaFile);
-        } else {
-            writeThroughFile(data, lrcTarget);
+            return;
         }
+
+        String lyrics = mLyricsText.getText().toString();
+        LrcExporter exporter = new LrcExporter(this);
+        FILE_WRITE_EXECUTOR.submit(() -> {
+            try {
+                exporter.export(mediaFile, lyrics);
+                runOnUiThread(() -> Toast.makeText(this, R.string.file_written_successfully, Toast.LENGTH_SHORT).show());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write lyrics file for " + mediaFile, e);
+                String error = getString(R.string.error_writing_file) + e.getLocalizedMessage();
+                runOnUiThread(() -> Toast.makeText(this, error, Toast.LENGTH_LONG).show());
+            }
+        });
     }
 
     /**
-     * Write to *.lrc file through file-based API
-     *
-     * @param data     - data to write
-     * @param target   - target file for writing metadata into
+     * Write cached lyrics of all library tracks to their *.lrc files, in background
      */
-    private void writeThroughFile(byte[] data, File target) {
-        try {
-            FileOutputStream fos = new FileOutputStream(target);
-            fos.write(data);
-            fos.close();
+    private void exportLibrary() {
+        LrcExportService.start(this);
+        Toast.makeText(this, R.string.export_lrc_started, Toast.LENGTH_SHORT).show();
+    }
 
-            Toast.makeText(this, R.string.file_written_successfully, Toast.LENGTH_SHORT).show();
-        } catch (Exception e) {
-            Toast.makeText(this, getString(R.string.error_writing_file) + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-            Log.e(LOG_TAG, "Failed to write to file descriptor provided by SAF!", e);
-        }
+    /**
+     * Write lookup statistics to file, in background
+     */
+    private void dumpStats() {
+        Context appCtx = getApplicationContext();
+        FILE_WRITE_EXECUTOR.submit(() -> {
+            String summary;
+            try {
+                File dump = LookupStats.getInstance().dump(appCtx);
+                summary = appCtx.getString(R.string.dump_stats_done, dump.getPath());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Couldn't write lookup statistics", e);
+                summary = appCtx.getString(R.string.error_writing_file) + e.getLocalizedMessage();
+            }
+
+            String message = summary;
+            MAIN_HANDLER.post(() -> Toast.makeText(appCtx, message, Toast.LENGTH_LONG).show());
+        });
     }
 
     /**
-     * Write lyrics to *.lrc file through SAF framework - the only way to do it in Android > 4.4 when working with SD card
+     * @return media file lyrics are requested for, if its lyrics tag can be written without Tag Editor plugin
      */
-    private void writeThroughSaf(byte[] data, File original, String name) {
-        DocumentFile originalRef;
-        if (mPrefs.contains(PREF_SDCARD_URI)) {
-            // no sorcery can allow you to gain URI to the document representing file you've been provided with
-            // you have to find it again now using Document API
-
-            // /storage/volume/Music/some.mp3 will become [storage, volume, music, some.mp3]
-            List<String> pathSegments = new ArrayList<>(Arrays.asList(original.getAbsolutePath().split("/")));
-            Uri allowedSdRoot = Uri.parse(mPrefs.getString(PREF_SDCARD_URI, ""));
-            originalRef = findInDocumentTree(DocumentFile.fromTreeUri(this, allowedSdRoot), pathSegments);
-        } else {
-            // user will click the button again
-            return;
+    private File writableTagFile() {
+        if (!havePermissions(this, WRITE_EXTERNAL_STORAGE)) {
+            return null;
         }
 
-        if (originalRef == null || originalRef.getParentFile() == null) {
-            // nothing selected or invalid file?
-            Toast.makeText(this, R.string.saf_nothing_selected, Toast.LENGTH_LONG).show();
-            return;
+        Uri fileUri = getIntent().getParcelableExtra(EXTRA_PARAM_URI);
+        if (fileUri == null || fileUri.getPath() == null) {
+            return null;
         }
 
-        DocumentFile lrcFileRef = originalRef.getParentFile().createFile("image/*", name);
-        if (lrcFileRef == null) {
-            // couldn't create file?
-            Toast.makeText(this, R.string.saf_write_error, Toast.LENGTH_LONG).show();
+        File media = new File(fileUri.getPath());
+        if (!EmbeddedLyricsWriter.isSupported(media) || isSafNeeded(media, this)) {
+            return null;
+        }
+        return media;
+    }
+
+    /**
+     * Write to the song tag directly if possible, using Tag Editor Plugin otherwise
+     */
+    private void writeToFileTag() {
+        String lyrics = mLyricsText.getText().toString();
+        File media = writableTagFile();
+        if (media == null) {
+            writeThroughTagEditor(lyrics);
             return;
         }
 
-        try {
-            ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(lrcFileRef.getUri(), "rw");
-            if (pfd == null) {
-                // should not happen
-                Log.e(LOG_TAG, "SAF provided incorrect URI!" + lrcFileRef.getUri());
-                return;
+        FILE_WRITE_EXECUTOR.submit(() -> {
+            try {
+                boolean written = EmbeddedLyricsWriter.writeLyrics(media, lyrics);
+                runOnUiThread(() -> onTagWritten(written, "", lyrics));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to write lyrics tag to " + media, e);
+                runOnUiThread(() -> onTagWritten(false, e.getLocalizedMessage(), lyrics));
             }
+        });
+    }
 
-            FileOutputStream fos = new FileOutputStream(pfd.getFileDescriptor());
-            fos.write(data);
-            fos.close();
-
-            // rescan original file
+    private void onTagWritten(boolean success, String error, String lyrics) {
+        if (success) {
             Toast.makeText(this, R.string.file_written_successfully, Toast.LENGTH_SHORT).show();
-        } catch (Exception e) {
-            Toast.makeText(this, getString(R.string.saf_write_error) + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-            Log.e(LOG_TAG, "Failed to write to file descriptor provided by SAF!", e);
+            return;
         }
+
+        if (pluginInstalled(this, PLUGIN_TAG_EDIT_PKG)) {
+            // Tag Editor may know how to handle this file
+            writeThroughTagEditor(lyrics);
+            return;
+        }
+
+        Toast.makeText(this, getString(R.string.error_writing_file) + error, Toast.LENGTH_LONG).show();
     }
 
     /**
      * Write to the song tag using Tag Editor Plugin
      */
-    private void writeToFileTag() {
-        String lyrics = mLyricsText.getText().toString();
+    private void writeThroughTagEditor(String lyrics) {
         Intent request = new Intent(ACTION_LAUNCH_PLUGIN);
         request.setPackage(PLUGIN_TAG_EDIT_PKG);
         request.putExtra(EXTRA_PARAM_URI, (Uri) getIntent().getParcelableExtra(EXTRA_PARAM_URI));
@@ -516,8 +800,8 @@ public class LyricsShowActivity extends DialogActivity {
             List<String> actions = new ArrayList<>();
             actions.add(getString(R.string.write_to_lrc));
 
-            // if tag editor is installed, show `write to tag` button
-            if (pluginInstalled(LyricsShowActivity.this, PLUGIN_TAG_EDIT_PKG)) {
+            // if we can write tag ourselves or tag editor is installed, show `write to tag` button
+            if (writableTagFile() != null || pluginInstalled(LyricsShowActivity.this, PLUGIN_TAG_EDIT_PKG)) {
                 actions.add(getString(R.string.write_to_tag));
             }
 
@@ -525,7 +809,7 @@ public class LyricsShowActivity extends DialogActivity {
                     .setItems(actions.toArray(new CharSequence[0]), (dialog, which) -> {
                         switch (which) {
                             case 0: // to lyrics file
-                                if (!checkAndRequestPermissions(LyricsShowActivity.this, WRITE_EXTERNAL_STORAGE)) {
+                                if (!requestStoragePermission(PENDING_WRITE_LRC)) {
                                     return;
                                 }
 
@@ -0,0 +1,928 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact storage of many lyrics in a single append-only file, read through memory mapping.
+ * <p/>
+ * Lyrics are very repetitive, so they are stored in three layers:
+ * <ul>
+ *     <li>identical lyrics, e.g. of the same song on a single and on an album, are stored once and shared
+ *     by all songs that have them;</li>
+ *     <li>every distinct line of the lyrics is stored once, repeats of the chorus are just line references;</li>
+ *     <li>the result is deflated with a preset dictionary of lines common across the stored lyrics,
+ *     so even short lyrics compress well.</li>
+ * </ul>
+ * File is a log of records: dictionaries, lyrics blobs, entries pointing songs to blobs and removals.
+ * Index of songs to blob offsets is rebuilt from the log on open, reading lyrics is then a single read
+ * from the mapped file. Every record has a checksum, torn record at the end after a crash is cut off.
+ * <p/>
+ * Replaced and removed records stay in the log until it's compacted: live entries are rewritten into
+ * the new file, least recently used ones are dropped if there are too many, and dictionary is retrained
+ * from the current lyrics.
+ * <p/>
+ * Callers are interrupted on cancellation all the time, and interrupt during mapping closes the file
+ * along with its channel. Interrupt flag is cleared around mapping, and if the file was closed anyway,
+ * it's reopened on the next call.
+ *
+ * @author Kanedias
+ */
+public class LyricsStore {
+
+    private static final String TAG = LyricsStore.class.getSimpleName();
+
+    private static final int MAGIC = 0x4c595253; // LYRS
+    private static final int FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final byte RECORD_DICTIONARY = 1;
+    private static final byte RECORD_BLOB = 2;
+    private static final byte RECORD_ENTRY = 3;
+    private static final byte RECORD_REMOVAL = 4;
+
+    /**
+     * Type, payload length, CRC32 of payload
+     */
+    private static final int RECORD_HEADER_SIZE = 1 + 4 + 4;
+
+    /**
+     * Dictionary id, raw length, content hash
+     */
+    private static final int BLOB_HEADER_SIZE = 4 + 4 + 8;
+    private static final int DIGEST_SIZE = 20;
+    private static final int ENTRY_SIZE = RECORD_HEADER_SIZE + DIGEST_SIZE + 8 + 8;
+
+    /**
+     * Deflate can't look further back than 32 KiB anyway, lyrics themselves need some of it
+     */
+    private static final int MAX_DICTIONARY_SIZE = 16 * 1024;
+
+    /**
+     * Dictionary is trained on this many recently used lyrics
+     */
+    private static final int TRAINING_SAMPLE = 512;
+
+    /**
+     * Log is not compacted until dead records take at least this much
+     */
+    private static final long MIN_DEAD_SIZE = 64 * 1024;
+
+    private static final int BUILTIN_DICTIONARY_ID = 0;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Used before there's anything to train on. Most useful strings go last, they're closer to the data
+     */
+    private static final byte[] BUILTIN_DICTIONARY = (
+            "[Produced by ]\n[Interlude]\n[Refrain]\n[Hook]\n[Post-Chorus]\n[Pre-Chorus]\n[Bridge]\n[Outro]\n[Intro]\n"
+            + "every time\ntonight\nforever\nnever\nnothing\nsomething\nsomebody\nanother\ngonna\nwanna\n"
+            + "don't know\ndon't want\nI can't\nI'm not\nI'll be\nI've been\nyou're the\nwe're gonna\n"
+            + "in the night\non my mind\nall the time\nin my heart\nout of my\nback to the\n"
+            + "Oh, oh, oh\nYeah, yeah, yeah\nNa-na-na\nLa-la-la\nOoh-ooh\nbaby\nlove you\n"
+            + "[Verse 3]\n[Verse 2]\n[Verse 1]\n[Chorus]\n").getBytes(Charset.forName("UTF-8"));
+
+    private final File mFile;
+    private final long mMaxSize;
+
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mMap;
+    private long mLength;
+    private boolean mLoaded;
+
+    /**
+     * Song key digest -> stored entry, in access order, eldest first
+     */
+    private LinkedHashMap<String, Ref> mIndex = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Content hash -> blob with these lyrics
+     */
+    private Map<Long, Blob> mBlobs = new HashMap<>();
+
+    private Map<Integer, byte[]> mDictionaries = new HashMap<>();
+    private int mDictionaryId = BUILTIN_DICTIONARY_ID;
+
+    private long mLiveSize;
+
+    /**
+     * Stored lyrics along with time of storing
+     */
+    public static class Stored {
+
+        public final String lyrics;
+        public final long storedAt;
+
+        public Stored(String lyrics, long storedAt) {
+            this.lyrics = lyrics;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private static class Blob {
+
+        private final long offset;
+        private final int size;
+        private final int rawLength;
+        private final long hash;
+        private int refs;
+
+        private Blob(long offset, int size, int rawLength, long hash) {
+            this.offset = offset;
+            this.size = size;
+            this.rawLength = rawLength;
+            this.hash = hash;
+        }
+    }
+
+    private static class Ref {
+
+        private final Blob blob;
+        private final long storedAt;
+
+        private Ref(Blob blob, long storedAt) {
+            this.blob = blob;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * @param file    file to keep lyrics in
+     * @param maxSize size of live data to keep, least recently used lyrics are dropped above it
+     */
+    public LyricsStore(File file, long maxSize) {
+        this.mFile = file;
+        this.mMaxSize = maxSize;
+    }
+
+    /**
+     * @param digest digest of the song key
+     * @return stored lyrics, or null if there are none or they couldn't be read
+     */
+    public synchronized Stored get(String digest) {
+        if (!load()) {
+            return null;
+        }
+
+        Ref ref = mIndex.get(digest); // this also moves entry to the tail of LRU order
+        if (ref == null) {
+            return null;
+        }
+
+        try {
+            return new Stored(readBlob(mMap, ref.blob.offset), ref.storedAt);
+        } catch (ClosedChannelException e) {
+            // interrupted while mapping, lyrics are intact and file is reopened on the next call
+            Log.w(TAG, "Store file was closed by interrupt while reading " + digest);
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read lyrics " + digest + ", dropping them", e);
+            remove(digest);
+            return null;
+        }
+    }
+
+    /**
+     * @param digest digest of the song key
+     * @return true if there are lyrics for this song, LRU order is not affected
+     */
+    public synchronized boolean contains(String digest) {
+        return load() && mIndex.containsKey(digest);
+    }
+
+    /**
+     * Store lyrics, replacing previous ones if they exist
+     *
+     * @param digest   digest of the song key
+     * @param storedAt time of retrieval of the lyrics
+     * @param lyrics   lyrics text
+     */
+    public void put(String digest, long storedAt, String lyrics) {
+        putAll(Collections.singletonMap(digest, new Stored(lyrics, storedAt)));
+    }
+
+    /**
+     * Store many lyrics at once, with a single sync of the file
+     *
+     * @param entries digests of the song keys to lyrics, in the order of use, eldest first
+     */
+    public synchronized void putAll(Map<String, Stored> entries) {
+        if (!load()) {
+            return;
+        }
+
+        List<String> digests = new ArrayList<>(entries.size());
+        List<Ref> refs = new ArrayList<>(entries.size());
+        Map<Long, Blob> appended = new HashMap<>();
+        try {
+            long length = mLength;
+            for (Map.Entry<String, Stored> e : entries.entrySet()) {
+                Stored stored = e.getValue();
+                byte[] raw = stored.lyrics.getBytes(Charset.forName("UTF-8"));
+                long hash = contentHash(raw);
+
+                // same lyrics are already there, e.g. for the same song from another album
+                Blob blob = appended.get(hash);
+                if (blob == null) {
+                    blob = mBlobs.get(hash);
+                }
+                if (blob == null || blob.rawLength != raw.length) {
+                    blob = appendBlob(mRaf, length, stored.lyrics, hash, mDictionaryId, dictionary(mDictionaryId));
+                    length += blob.size;
+                    appended.put(hash, blob);
+                }
+
+                length += appendRecord(mRaf, length, RECORD_ENTRY, entryPayload(e.getKey(), stored.storedAt, blob.offset));
+                digests.add(e.getKey());
+                refs.add(new Ref(blob, stored.storedAt));
+            }
+            mRaf.getFD().sync();
+            mLength = length;
+        } catch (IOException e) {
+            // partially appended records are overwritten by the next put or cut off on next open
+            Log.w(TAG, "Couldn't store lyrics of " + entries.size() + " songs", e);
+            return;
+        }
+
+        for (Blob blob : appended.values()) {
+            mBlobs.put(blob.hash, blob);
+            mLiveSize += blob.size;
+        }
+        for (int i = 0; i < digests.size(); ++i) {
+            Ref ref = refs.get(i);
+            ref.blob.refs++;
+            mLiveSize += ENTRY_SIZE;
+            release(mIndex.put(digests.get(i), ref));
+        }
+
+        compactIfNeeded();
+    }
+
+    /**
+     * Forget stored lyrics
+     *
+     * @param digest digest of the song key
+     */
+    public synchronized void remove(String digest) {
+        if (!load() || !mIndex.containsKey(digest)) {
+            return;
+        }
+
+        try {
+            long length = mLength + appendRecord(mRaf, mLength, RECORD_REMOVAL, hexToBytes(digest));
+            mRaf.getFD().sync();
+            mLength = length;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't record removal of " + digest, e);
+        }
+
+        release(mIndex.remove(digest));
+        compactIfNeeded();
+    }
+
+    /**
+     * @return size of the store file, in bytes
+     */
+    public synchronized long fileSize() {
+        return mLength;
+    }
+
+    private void release(Ref ref) {
+        if (ref == null) {
+            return;
+        }
+
+        mLiveSize -= ENTRY_SIZE;
+        if (--ref.blob.refs == 0) {
+            mLiveSize -= ref.blob.size;
+            if (mBlobs.get(ref.blob.hash) == ref.blob) {
+                mBlobs.remove(ref.blob.hash);
+            }
+        }
+    }
+
+    /**
+     * Open the file and rebuild index from the log
+     *
+     * @return true if store is usable
+     */
+    private boolean load() {
+        if (mLoaded) {
+            return mRaf != null && ensureOpen();
+        }
+        mLoaded = true;
+
+        File dir = mFile.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            Log.w(TAG, "Couldn't create directory for " + mFile);
+            return false;
+        }
+
+        // leftover from interrupted compaction
+        //noinspection ResultOfMethodCallIgnored
+        new File(mFile.getPath() + TEMP_SUFFIX).delete();
+
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            if (mRaf.length() < FILE_HEADER_SIZE || !readHeader()) {
+                // new or written by another version of the app, start anew
+                mRaf.setLength(0);
+                writeHeader(mRaf);
+                mLength = FILE_HEADER_SIZE;
+                return true;
+            }
+
+            scan();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't open lyrics store " + mFile, e);
+            closeQuietly(mRaf);
+            mRaf = null;
+            if (e instanceof ClosedChannelException) {
+                // interrupted while mapping, file is fine, try again next time
+                mLoaded = false;
+                mIndex.clear();
+                mBlobs.clear();
+                mDictionaries.clear();
+                mDictionaryId = BUILTIN_DICTIONARY_ID;
+                mLiveSize = 0;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reopen the file if it was closed by interrupt of some caller. Index is still valid,
+     * the file itself is not changed by closing.
+     *
+     * @return true if file is open
+     */
+    private boolean ensureOpen() {
+        if (mRaf.getChannel().isOpen()) {
+            return true;
+        }
+
+        Log.w(TAG, "Store file was closed by interrupt, reopening " + mFile);
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mMap = null; // remapped on next read
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't reopen lyrics store " + mFile, e);
+            mRaf = null;
+            return false;
+        }
+    }
+
+    /**
+     * Map the file for reading with interrupt flag cleared, as interrupt during mapping closes the file
+     */
+    private static MappedByteBuffer mapReadOnly(RandomAccessFile raf, long size) throws IOException {
+        boolean interrupted = Thread.interrupted();
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean readHeader() throws IOException {
+        mRaf.seek(0);
+        return mRaf.readInt() == MAGIC && mRaf.readInt() == FORMAT_VERSION;
+    }
+
+    private static void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(FORMAT_VERSION);
+    }
+
+    private void scan() throws IOException {
+        long fileLength = mRaf.length();
+        mMap = mapReadOnly(mRaf, fileLength);
+
+        Map<Long, Blob> blobsByOffset = new HashMap<>();
+        long pos = FILE_HEADER_SIZE;
+        while (pos + RECORD_HEADER_SIZE <= fileLength) {
+            byte type = mMap.get((int) pos);
+            int length = mMap.getInt((int) pos + 1);
+            if (length < 0 || pos + RECORD_HEADER_SIZE + length > fileLength) {
+                break;
+            }
+
+            ByteBuffer payload = slice(mMap, pos + RECORD_HEADER_SIZE, length);
+            if (crcOf(payload.duplicate()) != mMap.getInt((int) pos + 5)) {
+                break;
+            }
+
+            int size = RECORD_HEADER_SIZE + length;
+            switch (type) {
+                case RECORD_DICTIONARY: {
+                    int id = payload.getInt();
+                    byte[] dictionary = new byte[payload.remaining()];
+                    payload.get(dictionary);
+                    mDictionaries.put(id, dictionary);
+                    mDictionaryId = Math.max(mDictionaryId, id);
+                    break;
+                }
+                case RECORD_BLOB: {
+                    payload.getInt(); // dictionary id
+                    int rawLength = payload.getInt();
+                    Blob blob = new Blob(pos, size, rawLength, payload.getLong());
+                    mBlobs.put(blob.hash, blob);
+                    blobsByOffset.put(pos, blob);
+                    mLiveSize += size;
+                    break;
+                }
+                case RECORD_ENTRY: {
+                    String digest = bytesToHex(payload, DIGEST_SIZE);
+                    long storedAt = payload.getLong();
+                    Blob blob = blobsByOffset.get(payload.getLong());
+                    if (blob != null) {
+                        blob.refs++;
+                        release(mIndex.put(digest, new Ref(blob, storedAt)));
+                        mLiveSize += ENTRY_SIZE;
+                    }
+                    break;
+                }
+                case RECORD_REMOVAL:
+                    release(mIndex.remove(bytesToHex(payload, DIGEST_SIZE)));
+                    break;
+                default:
+                    // unknown record, written by newer version? Skip it
+                    break;
+            }
+            pos += size;
+        }
+
+        for (Blob blob : blobsByOffset.values()) {
+            if (blob.refs == 0 && mBlobs.get(blob.hash) == blob) {
+                // appended, but entry pointing to it was not
+                mBlobs.remove(blob.hash);
+                mLiveSize -= blob.size;
+            }
+        }
+
+        mLength = pos;
+        if (pos < fileLength) {
+            Log.w(TAG, "Cutting off " + (fileLength - pos) + " bytes of torn records from " + mFile);
+            mRaf.setLength(pos);
+        }
+    }
+
+    private void compactIfNeeded() {
+        long dead = mLength - FILE_HEADER_SIZE - mLiveSize;
+        if (mLiveSize > mMaxSize || (dead > MIN_DEAD_SIZE && dead > mLiveSize)) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the log with live entries only, dropping least recently used ones to fit in size.
+     * New index is built on the side and replaces the current one only when the new file is in place,
+     * so failed compaction leaves everything as it was.
+     */
+    private void compact() {
+        // drop eldest, leaving some room so compaction doesn't happen on every put
+        List<Map.Entry<String, Ref>> kept = new ArrayList<>(mIndex.entrySet());
+        Map<Blob, Integer> droppedRefs = new HashMap<>();
+        long projected = mLiveSize;
+        int dropped = 0;
+        while (projected > mMaxSize * 3 / 4 && dropped < kept.size()) {
+            Blob blob = kept.get(dropped++).getValue().blob;
+            Integer refs = droppedRefs.get(blob);
+            refs = refs == null ? 1 : refs + 1;
+            droppedRefs.put(blob, refs);
+
+            projected -= ENTRY_SIZE;
+            if (refs == blob.refs) {
+                projected -= blob.size;
+            }
+        }
+        kept = kept.subList(dropped, kept.size());
+
+        int dictionaryId = mDictionaryId + 1;
+        byte[] dictionary = trainDictionary(kept);
+
+        File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(temp, "rw");
+            raf.setLength(0);
+            writeHeader(raf);
+            long length = FILE_HEADER_SIZE;
+
+            ByteArrayOutputStream dictPayload = new ByteArrayOutputStream();
+            writeInt(dictPayload, dictionaryId);
+            dictPayload.write(dictionary, 0, dictionary.length);
+            length += appendRecord(raf, length, RECORD_DICTIONARY, dictPayload.toByteArray());
+
+            // rewrite in LRU order, so order survives reopening
+            LinkedHashMap<String, Ref> index = new LinkedHashMap<>(kept.size() * 2, 0.75f, true);
+            Map<Long, Blob> blobs = new HashMap<>();
+            Map<Blob, Blob> rewritten = new HashMap<>();
+            long liveSize = 0;
+            for (Map.Entry<String, Ref> e : kept) {
+                Ref ref = e.getValue();
+                Blob blob = rewritten.get(ref.blob);
+                if (blob == null) {
+                    String lyrics = readBlob(mMap, ref.blob.offset);
+                    long hash = contentHash(lyrics.getBytes(Charset.forName("UTF-8")));
+                    blob = appendBlob(raf, length, lyrics, hash, dictionaryId, dictionary);
+                    length += blob.size;
+                    liveSize += blob.size;
+                    blobs.put(hash, blob);
+                    rewritten.put(ref.blob, blob);
+                }
+
+                length += appendRecord(raf, length, RECORD_ENTRY, entryPayload(e.getKey(), ref.storedAt, blob.offset));
+                liveSize += ENTRY_SIZE;
+                blob.refs++;
+                index.put(e.getKey(), new Ref(blob, ref.storedAt));
+            }
+            raf.getFD().sync();
+            raf.close();
+            raf = null;
+
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + temp + " to " + mFile);
+            }
+
+            Log.i(TAG, "Compacted " + mFile + " from " + mLength + " to " + length + " bytes, "
+                    + index.size() + " songs, " + dropped + " evicted");
+            mLength = length;
+            mIndex = index;
+            mBlobs = blobs;
+            mLiveSize = liveSize;
+            mDictionaries = new HashMap<>();
+            mDictionaries.put(dictionaryId, dictionary);
+            mDictionaryId = dictionaryId;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't compact " + mFile, e);
+            closeQuietly(raf);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+
+        // old file is unlinked now, switch to the new one
+        closeQuietly(mRaf);
+        mMap = null; // remapped on next read
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't reopen " + mFile + " after compaction", e);
+            mRaf = null;
+        }
+    }
+
+    /**
+     * Build dictionary from lines repeating across recently used lyrics
+     *
+     * @param entries entries to train on, eldest first
+     */
+    private byte[] trainDictionary(List<Map.Entry<String, Ref>> entries) {
+        Map<String, Integer> occurrences = new HashMap<>();
+        Map<Blob, Boolean> seen = new HashMap<>();
+        for (int i = entries.size() - 1; i >= 0; --i) {
+            Ref ref = entries.get(i).getValue();
+            if (seen.size() >= TRAINING_SAMPLE) {
+                break;
+            }
+            if (seen.put(ref.blob, Boolean.TRUE) != null) {
+                continue;
+            }
+
+            try {
+                for (String line : distinctLines(readBlob(mMap, ref.blob.offset))) {
+                    Integer count = occurrences.get(line);
+                    occurrences.put(line, count == null ? 1 : count + 1);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't read lyrics for dictionary training", e);
+            }
+        }
+
+        List<Map.Entry<String, Integer>> shared = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : occurrences.entrySet()) {
+            if (e.getValue() > 1 && !e.getKey().isEmpty()) {
+                shared.add(e);
+            }
+        }
+
+        // most valuable first: lines that repeat often and are long
+        Collections.sort(shared, (e1, e2) -> {
+            long v1 = (long) e1.getValue() * e1.getKey().length();
+            long v2 = (long) e2.getValue() * e2.getKey().length();
+            return v1 > v2 ? -1 : (v1 == v2 ? 0 : 1);
+        });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BUILTIN_DICTIONARY, 0, BUILTIN_DICTIONARY.length);
+        List<byte[]> picked = new ArrayList<>();
+        int size = BUILTIN_DICTIONARY.length;
+        for (Map.Entry<String, Integer> e : shared) {
+            byte[] line = (e.getKey() + "\n").getBytes(Charset.forName("UTF-8"));
+            if (size + line.length > MAX_DICTIONARY_SIZE) {
+                continue;
+            }
+            picked.add(line);
+            size += line.length;
+        }
+
+        // most valuable go last, closest to the data
+        Collections.reverse(picked);
+        for (byte[] line : picked) {
+            out.write(line, 0, line.length);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] dictionary(int id) throws IOException {
+        if (id == BUILTIN_DICTIONARY_ID) {
+            return BUILTIN_DICTIONARY;
+        }
+
+        byte[] dictionary = mDictionaries.get(id);
+        if (dictionary == null) {
+            throw new IOException("Missing dictionary " + id);
+        }
+        return dictionary;
+    }
+
+    private static Blob appendBlob(RandomAccessFile raf, long at, String lyrics, long hash,
+                                   int dictionaryId, byte[] dictionary) throws IOException {
+        byte[] interned = internLines(lyrics);
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(interned.length / 2 + BLOB_HEADER_SIZE);
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(interned);
+            deflater.finish();
+
+            writeInt(payload, dictionaryId);
+            writeInt(payload, lyrics.getBytes(Charset.forName("UTF-8")).length);
+            writeLong(payload, hash);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int compressed = deflater.deflate(buffer);
+                payload.write(buffer, 0, compressed);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        int size = appendRecord(raf, at, RECORD_BLOB, payload.toByteArray());
+        return new Blob(at, size, lyrics.getBytes(Charset.forName("UTF-8")).length, hash);
+    }
+
+    private String readBlob(MappedByteBuffer map, long offset) throws IOException {
+        if (map == mMap && (map == null || map.capacity() < mLength)) {
+            // appended to since last read
+            remap();
+            map = mMap;
+        }
+
+        int length = map.getInt((int) offset + 1);
+        ByteBuffer payload = slice(map, offset + RECORD_HEADER_SIZE, length);
+        int dictionaryId = payload.getInt();
+        payload.getInt(); // raw length
+        payload.getLong(); // content hash
+
+        byte[] compressed = new byte[payload.remaining()];
+        payload.get(compressed);
+
+        // raw deflate doesn't ask for dictionary, it must be set before inflating
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(dictionary(dictionaryId));
+            inflater.setInput(compressed);
+            ByteArrayOutputStream interned = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated lyrics blob at " + offset);
+                }
+                interned.write(buffer, 0, inflated);
+            }
+            return joinLines(interned.toByteArray());
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted lyrics blob at " + offset, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Map the whole file again, after it was appended to
+     */
+    private void remap() throws IOException {
+        mMap = mapReadOnly(mRaf, mLength);
+    }
+
+    /**
+     * Encode lyrics as a table of distinct lines followed by sequence of line numbers
+     */
+    private static byte[] internLines(String lyrics) {
+        String[] lines = lyrics.split("\n", -1);
+        Map<String, Integer> numbers = new HashMap<>();
+        List<String> distinct = new ArrayList<>();
+        int[] sequence = new int[lines.length];
+        for (int i = 0; i < lines.length; ++i) {
+            Integer number = numbers.get(lines[i]);
+            if (number == null) {
+                number = distinct.size();
+                numbers.put(lines[i], number);
+                distinct.add(lines[i]);
+            }
+            sequence[i] = number;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(lyrics.length());
+        writeVarInt(out, distinct.size());
+        for (String line : distinct) {
+            byte[] bytes = line.getBytes(Charset.forName("UTF-8"));
+            writeVarInt(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        writeVarInt(out, sequence.length);
+        for (int number : sequence) {
+            writeVarInt(out, number);
+        }
+        return out.toByteArray();
+    }
+
+    private static String joinLines(byte[] interned) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(interned);
+        try {
+            String[] distinct = new String[readVarInt(in)];
+            for (int i = 0; i < distinct.length; ++i) {
+                byte[] bytes = new byte[readVarInt(in)];
+                in.get(bytes);
+                distinct[i] = new String(bytes, Charset.forName("UTF-8"));
+            }
+
+            int count = readVarInt(in);
+            StringBuilder lyrics = new StringBuilder(interned.length * 2);
+            for (int i = 0; i < count; ++i) {
+                if (i > 0) {
+                    lyrics.append('\n');
+                }
+                lyrics.append(distinct[readVarInt(in)]);
+            }
+            return lyrics.toString();
+        } catch (RuntimeException e) {
+            // buffer underflow, index out of bounds
+            throw new IOException("Malformed lyrics blob", e);
+        }
+    }
+
+    private static Set<String> distinctLines(String lyrics) {
+        return new HashSet<>(Arrays.asList(lyrics.split("\n")));
+    }
+
+    private static byte[] entryPayload(String digest, long storedAt, long blobOffset) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(DIGEST_SIZE + 16);
+        byte[] key = hexToBytes(digest);
+        out.write(key, 0, key.length);
+        writeLong(out, storedAt);
+        writeLong(out, blobOffset);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return size of the appended record
+     */
+    private static int appendRecord(RandomAccessFile raf, long at, byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_SIZE + payload.length);
+        record.write(type);
+        writeInt(record, payload.length);
+        writeInt(record, crcOf(ByteBuffer.wrap(payload)));
+        record.write(payload, 0, payload.length);
+
+        raf.seek(at);
+        raf.write(record.toByteArray());
+        return record.size();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) offset + length);
+        return slice.slice();
+    }
+
+    private static int crcOf(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[4096];
+        while (data.hasRemaining()) {
+            int chunk = Math.min(buffer.length, data.remaining());
+            data.get(buffer, 0, chunk);
+            crc.update(buffer, 0, chunk);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return first 8 bytes of SHA-1 of the lyrics, enough to tell them apart in one store
+     */
+    private static long contentHash(byte[] raw) {
+        try {
+            byte[] sha1 = MessageDigest.getInstance("SHA-1").digest(raw);
+            return ByteBuffer.wrap(sha1).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String bytesToHex(ByteBuffer buffer, int length) {
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; ++i) {
+            int b = buffer.get() & 0xFF;
+            hex[i * 2] = HEX_DIGITS[b >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[b & 0x0F];
+        }
+        return new String(hex);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf == null) {
+            return;
+        }
+
+        try {
+            raf.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
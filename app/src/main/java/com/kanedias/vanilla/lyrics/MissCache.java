@@ -0,0 +1,329 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of songs lyrics providers confirmed to have no lyrics for: instrumentals, podcasts, obscure releases.
+ * <p/>
+ * Songs are remembered in a Bloom filter, so the whole cache takes a fixed few dozen kilobytes and is checked
+ * in memory after it's loaded once. Filter may give false positives, about 1% when it's full, in which case
+ * song is wrongly considered hopeless until the miss expires or user explicitly reloads it.
+ * <p/>
+ * Bloom filter can't forget single entries, so misses expire by generations: filter is split in two, new misses
+ * go to the current one and the previous one is dropped as the current one gets old. Miss is remembered for
+ * half to full TTL, which is shorter than that of lyrics cache, as lyrics for the new songs do get added.
+ * <p/>
+ * File is read and written on a background thread only, so the cache can be checked from the main thread.
+ * Until it's loaded, songs are just not known to be hopeless, new misses are saved in batches.
+ *
+ * @author Kanedias
+ */
+public class MissCache {
+
+    private static final String TAG = MissCache.class.getSimpleName();
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Size of one generation, in bits. 16 KiB fits about 13000 misses with 1% false positive rate
+     */
+    static final int FILTER_BITS = 1 << 17;
+
+    /**
+     * Optimal for the 1% false positive rate
+     */
+    static final int FILTER_HASHES = 7;
+
+    private static final long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000; // 7 days
+
+    /**
+     * Misses come in bursts during library sweep, save them together
+     */
+    private static final long SAVE_DELAY = 5_000;
+
+    /**
+     * Loads and saves, one at a time, so save never overtakes the load
+     */
+    private static final ScheduledExecutorService FILE_IO = Executors.newSingleThreadScheduledExecutor();
+
+    private static MissCache sInstance;
+
+    /**
+     * Source of the current time, so tests can move it
+     */
+    interface Clock {
+        long now();
+    }
+
+    private final File mFile;
+    private final long mGenerationSpan;
+    private final Clock mClock;
+
+    private long[] mCurrent = new long[FILTER_BITS / 64];
+    private long[] mPrevious = new long[FILTER_BITS / 64];
+    private long mCurrentStart;
+    private boolean mLoadStarted;
+    private boolean mLoaded;
+    private boolean mSaveScheduled;
+
+    public MissCache(File file, long ttl) {
+        this(file, ttl, System::currentTimeMillis);
+    }
+
+    MissCache(File file, long ttl, Clock clock) {
+        this.mFile = file;
+        this.mGenerationSpan = ttl / 2;
+        this.mClock = clock;
+        this.mCurrentStart = clock.now();
+    }
+
+    public static synchronized MissCache getInstance(Context ctx) {
+        if (sInstance == null) {
+            File file = new File(ctx.getApplicationContext().getCacheDir(), "misses.bloom");
+            sInstance = new MissCache(file, DEFAULT_TTL);
+            sInstance.startLoading();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Check if song is known to have no lyrics
+     *
+     * @param key song to check
+     * @return true if lyrics providers recently had no lyrics for the song, or, rarely, by mistake
+     */
+    public synchronized boolean contains(SongKey key) {
+        startLoading();
+        rotate();
+
+        int[] hashes = hashesOf(key);
+        return contains(mCurrent, hashes) || contains(mPrevious, hashes);
+    }
+
+    /**
+     * Remember that the song has no lyrics
+     *
+     * @param key song providers had no lyrics for
+     */
+    public synchronized void add(SongKey key) {
+        startLoading();
+        rotate();
+
+        int[] hashes = hashesOf(key);
+        if (contains(mCurrent, hashes)) {
+            // nothing changes
+            return;
+        }
+
+        for (int bit : hashes) {
+            mCurrent[bit >>> 6] |= 1L << bit;
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Misses of the previous generation are forgotten when the current one changes. Blocks on disk I/O
+     * until the cache is loaded, so must not be called on the main thread.
+     *
+     * @return start time of the current generation
+     */
+    public long generation() {
+        load();
+        synchronized (this) {
+            rotate();
+            return mCurrentStart;
+        }
+    }
+
+    private static boolean contains(long[] filter, int[] hashes) {
+        for (int bit : hashes) {
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Derive filter bit positions from the song key digest, using double hashing
+     */
+    static int[] hashesOf(SongKey key) {
+        String digest = key.digest();
+        int h1 = (int) Long.parseLong(digest.substring(0, 8), 16);
+        // odd step walks through all the bits of power-of-two sized filter without repeating
+        int h2 = (int) Long.parseLong(digest.substring(8, 16), 16) | 1;
+
+        int[] bits = new int[FILTER_HASHES];
+        for (int i = 0; i < FILTER_HASHES; ++i) {
+            bits[i] = (h1 + i * h2) & (FILTER_BITS - 1);
+        }
+        return bits;
+    }
+
+    /**
+     * Start new generation if the current one is too old, dropping the previous one
+     */
+    private void rotate() {
+        long now = mClock.now();
+        long age = now - mCurrentStart;
+        if (age >= 0 && age < mGenerationSpan) {
+            return;
+        }
+
+        mPrevious = age >= 0 && age < 2 * mGenerationSpan ? mCurrent : new long[FILTER_BITS / 64];
+        mCurrent = new long[FILTER_BITS / 64];
+        mCurrentStart = now;
+        scheduleSave();
+    }
+
+    private void startLoading() {
+        if (mLoadStarted) {
+            return;
+        }
+        mLoadStarted = true;
+        FILE_IO.execute(this::load);
+    }
+
+    /**
+     * Read filters from the file, merging misses added before that. Blocks on disk I/O,
+     * so must not be called on the main thread.
+     */
+    void load() {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            mLoadStarted = true;
+        }
+
+        long start = 0;
+        long[] current = null;
+        long[] previous = null;
+        DataInputStream dis = null;
+        try {
+            if (mFile.exists()) {
+                dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+                if (dis.readInt() == FORMAT_VERSION && dis.readInt() == FILTER_BITS) {
+                    start = dis.readLong();
+                    current = readFilter(dis);
+                    previous = readFilter(dis);
+                }
+                // otherwise written by another version of the app, start anew
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read misses from " + mFile + ", starting anew", e);
+            current = null;
+        } finally {
+            closeQuietly(dis);
+        }
+
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+
+            if (current == null) {
+                return;
+            }
+
+            // misses added meanwhile are newer, they go into the loaded current generation
+            for (int i = 0; i < current.length; ++i) {
+                current[i] |= mCurrent[i];
+                previous[i] |= mPrevious[i];
+            }
+            mCurrentStart = start;
+            mCurrent = current;
+            mPrevious = previous;
+        }
+    }
+
+    private static long[] readFilter(DataInputStream dis) throws IOException {
+        long[] filter = new long[FILTER_BITS / 64];
+        for (int i = 0; i < filter.length; ++i) {
+            filter[i] = dis.readLong();
+        }
+        return filter;
+    }
+
+    private void scheduleSave() {
+        if (mSaveScheduled) {
+            return;
+        }
+        mSaveScheduled = true;
+        FILE_IO.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write filters to the file. Filters are copied under the lock and written without holding it,
+     * so checks don't wait for disk.
+     */
+    void save() {
+        long start;
+        long[] current;
+        long[] previous;
+        synchronized (this) {
+            mSaveScheduled = false;
+            start = mCurrentStart;
+            current = mCurrent.clone();
+            previous = mPrevious.clone();
+        }
+
+        File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeInt(FILTER_BITS);
+            dos.writeLong(start);
+            for (long word : current) {
+                dos.writeLong(word);
+            }
+            for (long word : previous) {
+                dos.writeLong(word);
+            }
+            dos.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + temp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            // filter stays in memory, misses are just forgotten on restart
+            Log.w(TAG, "Couldn't persist misses to " + mFile, e);
+            closeQuietly(fos);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Lyrics engine that answers from the imported lyrics database, asking the wrapped cached engine
+ * only for songs that are not there.
+ * <p/>
+ * Database lookup takes microseconds and never touches the network, so on devices with imported
+ * dump most songs don't cost any traffic, and network providers are just a fallback.
+ * <p/>
+ * Database sits in front of the cache: its answers are not copied into the cache, where they would push out
+ * lyrics that came from network, and songs network providers had no lyrics for are still found here.
+ *
+ * @see LyricsDatabase
+ * @see CachingEngine
+ *
+ * @author Kanedias
+ */
+public class OfflineLyricsEngine implements LyricsEngine {
+
+    private static final String TAG = OfflineLyricsEngine.class.getSimpleName();
+
+    private final LyricsDatabase mDatabase;
+    private final CachingEngine mFallback;
+    private final LookupStats mStats = LookupStats.getInstance();
+
+    public OfflineLyricsEngine(LyricsDatabase database, CachingEngine fallback) {
+        this.mDatabase = database;
+        this.mFallback = fallback;
+    }
+
+    @Override
+    public LyricsResult getLyrics(String artistName, String songTitle) {
+        long started = System.nanoTime();
+        try {
+            String lyrics = mDatabase.find(SongKey.of(artistName, songTitle));
+            mStats.recordPhase("offline/find", started);
+            if (lyrics != null) {
+                mStats.count("offline/hit");
+                return LyricsResult.found(lyrics);
+            }
+        } catch (IOException e) {
+            // broken or replaced database, network still may have them
+            Log.w(TAG, "Couldn't read lyrics database", e);
+        }
+
+        mStats.count("offline/miss");
+        return mFallback.getLyrics(artistName, songTitle);
+    }
+
+    /**
+     * Check if the song has no lyrics anywhere: not in the database and network providers
+     * recently had nothing for it. This is cheap, use it to skip hopeless songs before even starting a lookup.
+     *
+     * @param artistName band or artist name
+     * @param songTitle  full song title
+     * @return true if the song is known to have no lyrics
+     */
+    public boolean isKnownMiss(String artistName, String songTitle) {
+        if (!mFallback.isKnownMiss(artistName, songTitle)) {
+            return false;
+        }
+
+        try {
+            return !mDatabase.contains(SongKey.of(artistName, songTitle));
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read lyrics database", e);
+            return true;
+        }
+    }
+
+    /**
+     * Bypass the database and the cache and retrieve lyrics from network providers, updating cached entry.
+     * This is what user asks for with explicit reload.
+     *
+     * @param artistName band or artist name to search for
+     * @param songTitle  full song title to search for
+     * @return result containing song lyrics if available or the reason why they are not
+     */
+    public LyricsResult refresh(String artistName, String songTitle) {
+        return mFallback.refresh(artistName, songTitle);
+    }
+}
@@ -0,0 +1,165 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide registry of lookups in flight, so there's never more than one lookup for the same song.
+ * <p/>
+ * Callers asking for the song that is already being looked up are attached to the running lookup instead
+ * of starting a new one. Results of finished lookups are retained for a short while, so that callers
+ * arriving just after completion, e.g. activity recreated after Tag Editor round trip or on resume,
+ * get them without going to network again. Explicit reload never gets a retained result, it evicts them instead.
+ * <p/>
+ * Lookups are shared, so callers must {@link LyricsLookup#release() release} them instead of cancelling.
+ *
+ * @author Kanedias
+ */
+public class PendingLookups {
+
+    /**
+     * Nobody is going to ask for old songs again, keep just a few of the latest
+     */
+    private static final int MAX_PENDING = 8;
+
+    /**
+     * Time completed lookup result stays available for joining
+     */
+    private static final long RESULT_RETENTION = 30_000;
+
+    private static final Map<Flight, LyricsLookup> PENDING = new LinkedHashMap<Flight, LyricsLookup>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Flight, LyricsLookup> eldest) {
+            if (size() > MAX_PENDING) {
+                if (!eldest.getValue().hasSubscribers()) {
+                    // started speculatively and never claimed
+                    eldest.getValue().cancel();
+                }
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private PendingLookups() {
+    }
+
+    /**
+     * Start interactive lookup for the song unless it's already in flight. Doesn't subscribe to the result,
+     * use this for lookups started before anyone is ready to consume them.
+     *
+     * @param refresh    true if lookup bypasses the cache, such lookups are not mixed with regular ones
+     * @param engine     engine to use if the lookup has to be started
+     * @param artistName band or artist name to search for
+     * @param songTitle  full song title to search for
+     * @param timeoutMs  overall time limit for the lookup, in milliseconds
+     * @return lookup for the song, either started or already running
+     */
+    public static LyricsLookup start(boolean refresh, LyricsEngine engine,
+                                     String artistName, String songTitle, long timeoutMs) {
+        return start(refresh, engine, artistName, songTitle, timeoutMs, LookupScheduler.Priority.INTERACTIVE, null);
+    }
+
+    /**
+     * Start lookup for the song unless it's already in flight. If it is, but with lower priority,
+     * it's promoted to the requested one.
+     *
+     * @param priority scheduler lane to run the lookup in
+     * @param tag      tag to cancel lookups by, can be null
+     * @see #start(boolean, LyricsEngine, String, String, long)
+     */
+    public static synchronized LyricsLookup start(boolean refresh, LyricsEngine engine,
+                                                  String artistName, String songTitle, long timeoutMs,
+                                                  LookupScheduler.Priority priority, String tag) {
+        SongKey song = SongKey.of(artistName, songTitle);
+        Flight flight = new Flight(song, refresh);
+        LyricsLookup existing = PENDING.remove(flight);
+        if (refresh) {
+            // user explicitly asked for fresh lyrics, retained results are exactly what needs replacing
+            Flight regularFlight = new Flight(song, false);
+            LyricsLookup regular = PENDING.get(regularFlight);
+            if (regular != null && regular.isDone()) {
+                PENDING.remove(regularFlight);
+            }
+        }
+
+        if (existing != null && (refresh ? !existing.isDone() : isReusable(existing))) {
+            // re-insert to mark as most recent
+            PENDING.put(flight, existing);
+            LookupScheduler.getInstance().promote(existing, priority);
+            return existing;
+        }
+
+        LyricsLookup lookup = LyricsLookup.start(engine, artistName, songTitle, timeoutMs, priority, tag);
+        PENDING.put(flight, lookup);
+        return lookup;
+    }
+
+    /**
+     * Attach to the lookup for the song that is in flight or start a new one.
+     * Caller must {@link LyricsLookup#release() release} returned lookup when it's not interested anymore.
+     *
+     * @see #start(boolean, LyricsEngine, String, String, long)
+     */
+    public static LyricsLookup join(boolean refresh, LyricsEngine engine,
+                                    String artistName, String songTitle, long timeoutMs) {
+        return join(refresh, engine, artistName, songTitle, timeoutMs, LookupScheduler.Priority.INTERACTIVE, null);
+    }
+
+    /**
+     * Attach to the lookup for the song that is in flight or start a new one in the requested lane.
+     *
+     * @see #start(boolean, LyricsEngine, String, String, long, LookupScheduler.Priority, String)
+     * @see #join(boolean, LyricsEngine, String, String, long)
+     */
+    public static synchronized LyricsLookup join(boolean refresh, LyricsEngine engine,
+                                                 String artistName, String songTitle, long timeoutMs,
+                                                 LookupScheduler.Priority priority, String tag) {
+        LyricsLookup lookup = start(refresh, engine, artistName, songTitle, timeoutMs, priority, tag);
+        lookup.retain();
+        return lookup;
+    }
+
+    private static boolean isReusable(LyricsLookup lookup) {
+        LyricsResult result = lookup.result();
+        if (result == null) {
+            // still in flight
+            return true;
+        }
+
+        // network errors and timeouts deserve another try
+        boolean definite = result.isFound() || result.status == LyricsResult.Status.NOT_FOUND;
+        return definite && lookup.millisSinceCompleted() < RESULT_RETENTION;
+    }
+
+    /**
+     * Key of the lookup in flight
+     */
+    private static final class Flight {
+
+        private final SongKey mSong;
+        private final boolean mRefresh;
+
+        private Flight(SongKey song, boolean refresh) {
+            this.mSong = song;
+            this.mRefresh = refresh;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Flight)) {
+                return false;
+            }
+            Flight other = (Flight) o;
+            return mRefresh == other.mRefresh && mSong.equals(other.mSong);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mSong.hashCode() + (mRefresh ? 1 : 0);
+        }
+    }
+}
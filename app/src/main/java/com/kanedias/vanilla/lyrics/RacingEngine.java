@@ -0,0 +1,130 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Composite lyrics engine that asks several engines at once and returns the first successful answer.
+ * <p/>
+ * In racing mode all engines are queried simultaneously. In hedged mode engines are started one by one,
+ * next engine is started only when previous ones didn't answer within hedge delay or failed to find
+ * anything. Once the answer is found, lookups in all other engines are cancelled, closing their connections.
+ * <p/>
+ * Engines are expected to be ordered by preference: if several of them answer at the same time,
+ * it's not specified which answer wins. If none of them succeeds, failure of the most preferred one
+ * is reported.
+ *
+ * @author Kanedias
+ */
+public class RacingEngine implements LyricsEngine {
+
+    private static final ExecutorService RACE_EXECUTOR = Executors.newCachedThreadPool();
+
+    private final List<LyricsEngine> mEngines;
+    private final long mHedgeDelay;
+
+    /**
+     * Create engine that races all the engines at once
+     *
+     * @param engines engines to query
+     */
+    public RacingEngine(LyricsEngine... engines) {
+        this(0, engines);
+    }
+
+    /**
+     * Create engine that starts next engine only if all previous ones are slower than hedge delay
+     *
+     * @param hedgeDelayMs time to wait before starting next engine in milliseconds,
+     *                     0 to start all engines at once
+     * @param engines      engines to query, in order of preference
+     */
+    public RacingEngine(long hedgeDelayMs, LyricsEngine... engines) {
+        this.mEngines = new ArrayList<>(Arrays.asList(engines));
+        this.mHedgeDelay = hedgeDelayMs;
+    }
+
+    @Override
+    public LyricsResult getLyrics(String artistName, String songTitle) {
+        if (mEngines.size() == 1) {
+            // nothing to race with
+            return mEngines.get(0).getLyrics(artistName, songTitle);
+        }
+
+        CompletionService<Integer> race = new ExecutorCompletionService<>(RACE_EXECUTOR);
+        List<LyricsLookup> running = new ArrayList<>(mEngines.size());
+        LyricsResult[] failures = new LyricsResult[mEngines.size()];
+        try {
+            do {
+                startEngine(race, running, artistName, songTitle);
+            } while (mHedgeDelay <= 0 && running.size() < mEngines.size());
+
+            int pending = running.size();
+            while (pending > 0) {
+                Future<Integer> finished;
+                if (running.size() < mEngines.size()) {
+                    // hedged mode, give already running engines a chance to answer
+                    finished = race.poll(mHedgeDelay, TimeUnit.MILLISECONDS);
+                } else {
+                    finished = race.take();
+                }
+
+                if (finished != null) {
+                    pending--;
+                    int engineIdx = finished.get();
+                    LyricsResult result = running.get(engineIdx).await();
+                    if (result.isFound()) {
+                        return result;
+                    }
+                    failures[engineIdx] = result;
+                }
+
+                // started engines are too slow or failed, add next one to the race
+                if (running.size() < mEngines.size()) {
+                    startEngine(race, running, artistName, songTitle);
+                    pending++;
+                }
+            }
+
+            // every engine failed, report the most relevant failure
+            for (LyricsResult failure : failures) {
+                if (failure != null) {
+                    return failure;
+                }
+            }
+            return LyricsResult.notFound();
+        } catch (InterruptedException e) {
+            // we're cancelled ourselves
+            Thread.currentThread().interrupt();
+            return LyricsResult.failed(LyricsResult.Status.CANCELLED);
+        } catch (ExecutionException e) {
+            // lookups catch everything engines throw, should never happen
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // release connections of the losers
+            for (LyricsLookup engineCall : running) {
+                engineCall.cancel();
+            }
+        }
+    }
+
+    private void startEngine(CompletionService<Integer> race, List<LyricsLookup> running,
+                             String artistName, String songTitle) {
+        int engineIdx = running.size();
+        LyricsEngine engine = mEngines.get(engineIdx);
+        LyricsLookup engineCall = LyricsLookup.forkCurrent();
+        running.add(engineCall);
+        race.submit(() -> {
+            engineCall.call(engine, artistName, songTitle);
+            return engineIdx;
+        });
+    }
+}
@@ -0,0 +1,170 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of lyrics sidecar files, i.e. lyrics lying near the media files, built per directory.
+ * <p/>
+ * Sidecar for <code>Song.mp3</code> is <code>Song.lrc</code> or <code>Song.txt</code> in the same directory or in its
+ * <code>Lyrics</code> subdirectory, with any letter case. Directory is listed once and its index is reused while
+ * modification time of the directory (and of the subdirectory) stays the same, which is just a stat call instead
+ * of probing every name variant on slow SD card.
+ * <p/>
+ * Lookups do file system access, so they should never be made on the main thread.
+ *
+ * @author Kanedias
+ */
+public class SidecarIndex {
+
+    private static final String LYRICS_SUBDIR = "lyrics";
+
+    /**
+     * Sidecar extensions, more preferred first
+     */
+    private static final String[] EXTENSIONS = {".lrc", ".txt"};
+
+    private static final int MAX_DIRS = 32;
+
+    private static SidecarIndex sInstance;
+
+    private final Map<String, DirIndex> mDirs = new LinkedHashMap<String, DirIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirIndex> eldest) {
+            return size() > MAX_DIRS;
+        }
+    };
+
+    public static synchronized SidecarIndex getInstance() {
+        if (sInstance == null) {
+            sInstance = new SidecarIndex();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Find lyrics sidecar file for the media file
+     *
+     * @param media media file to find lyrics for
+     * @return sidecar file or null if there's none
+     */
+    public File find(File media) {
+        File dir = media.getParentFile();
+        if (dir == null) {
+            return null;
+        }
+
+        DirIndex index = indexOf(dir);
+        return index.sidecars.get(baseName(media.getName()));
+    }
+
+    /**
+     * Forget everything known about the directory, e.g. after writing a sidecar there
+     *
+     * @param dir directory to forget
+     */
+    public synchronized void invalidate(File dir) {
+        mDirs.remove(dir.getAbsolutePath());
+    }
+
+    private DirIndex indexOf(File dir) {
+        String path = dir.getAbsolutePath();
+        DirIndex cached;
+        synchronized (this) {
+            cached = mDirs.get(path);
+        }
+
+        if (cached != null && cached.isFresh()) {
+            return cached;
+        }
+
+        // list outside of the lock, it may take a while and other directories shouldn't wait
+        DirIndex rebuilt = build(dir);
+        synchronized (this) {
+            mDirs.put(path, rebuilt);
+        }
+        return rebuilt;
+    }
+
+    private static DirIndex build(File dir) {
+        // take modification times before listing, so changes made during the listing invalidate the index
+        long dirModified = dir.lastModified();
+        File subdir = null;
+        long subdirModified = 0;
+
+        Map<String, File> sidecars = new HashMap<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                // check name first, stat of every file in a big directory is not cheap
+                if (LYRICS_SUBDIR.equals(file.getName().toLowerCase(Locale.ROOT)) && file.isDirectory()) {
+                    subdir = file;
+                    subdirModified = file.lastModified();
+                }
+            }
+        }
+
+        // subdirectory first so that sidecars right near the media override it
+        if (subdir != null) {
+            addSidecars(subdir.listFiles(), sidecars);
+        }
+        addSidecars(files, sidecars);
+
+        return new DirIndex(dir, dirModified, subdir, subdirModified, sidecars);
+    }
+
+    private static void addSidecars(File[] files, Map<String, File> sidecars) {
+        if (files == null) {
+            return;
+        }
+
+        // less preferred extensions first so that more preferred override them
+        for (int i = EXTENSIONS.length - 1; i >= 0; --i) {
+            for (File file : files) {
+                String name = file.getName().toLowerCase(Locale.ROOT);
+                if (name.endsWith(EXTENSIONS[i]) && file.isFile()) {
+                    sidecars.put(name.substring(0, name.length() - EXTENSIONS[i].length()), file);
+                }
+            }
+        }
+    }
+
+    private static String baseName(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.indexOf(".") > 0 ? name.substring(0, name.lastIndexOf(".")) : name;
+    }
+
+    /**
+     * Sidecars of one directory
+     */
+    private static class DirIndex {
+
+        private final File dir;
+        private final long dirModified;
+        private final File subdir;
+        private final long subdirModified;
+
+        /**
+         * Lowercase base name of the media file -> its sidecar
+         */
+        private final Map<String, File> sidecars;
+
+        private DirIndex(File dir, long dirModified, File subdir, long subdirModified, Map<String, File> sidecars) {
+            this.dir = dir;
+            this.dirModified = dirModified;
+            this.subdir = subdir;
+            this.subdirModified = subdirModified;
+            this.sidecars = sidecars;
+        }
+
+        /**
+         * @return true if neither the directory nor lyrics subdirectory changed since the index was built
+         */
+        private boolean isFresh() {
+            return dir.lastModified() == dirModified && (subdir == null || subdir.lastModified() == subdirModified);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.Locale;
+
+/**
+ * Normalized identity of a song, used as a key for everything that remembers lookups:
+ * caches, in-flight requests and so on.
+ * <p/>
+ * Tag values of the same song differ wildly between releases - case, diacritics, punctuation,
+ * double spaces. Normalization folds all of these so "AC/DC - Back In Black" and
+ * "ac dc - back in black " map to the same key.
+ *
+ * @author Kanedias
+ */
+public final class SongKey {
+
+    private final String mNormalized;
+
+    private SongKey(String normalized) {
+        this.mNormalized = normalized;
+    }
+
+    /**
+     * Create key for the song
+     *
+     * @param artistName band or artist name, may be null
+     * @param songTitle  song title, may be null
+     * @return normalized key for this artist and title pair
+     */
+    public static SongKey of(String artistName, String songTitle) {
+        return new SongKey(normalize(artistName) + '\n' + normalize(songTitle));
+    }
+
+    private static String normalize(String input) {
+        if (input == null) {
+            return "";
+        }
+
+        // decompose accented characters so diacritics become separate marks we can drop
+        String decomposed = Normalizer.normalize(input, Normalizer.Form.NFKD).toLowerCase(Locale.US);
+        StringBuilder builder = new StringBuilder(decomposed.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < decomposed.length(); ++i) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+
+            if (!Character.isLetterOrDigit(c)) {
+                // punctuation and whitespace are both just separators
+                pendingSpace = builder.length() > 0;
+                continue;
+            }
+
+            if (pendingSpace) {
+                builder.append(' ');
+                pendingSpace = false;
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return hex-encoded SHA-1 of the normalized key, safe to be used as a file name
+     */
+    public String digest() {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] hash = sha1.digest(mNormalized.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is mandatory for every JVM and Android implementation
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return mNormalized.equals(((SongKey) o).mNormalized);
+    }
+
+    @Override
+    public int hashCode() {
+        return mNormalized.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mNormalized.replace('\n', '/');
+    }
+}
@@ -0,0 +1,235 @@
+package com.kanedias.vanilla.lyrics;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent memo of lyrics page paths found by provider search, so that refreshing lyrics of the song
+ * that was found once doesn't need to search for it again.
+ * <p/>
+ * Page locations change much less often than lyrics on them, so paths are kept longer than lyrics in
+ * {@link LyricsCache}. Memo is a journal file with a line per update, compacted when it grows too much
+ * compared to the live entries.
+ *
+ * @author Kanedias
+ */
+public class SongPathMemo {
+
+    private static final String TAG = SongPathMemo.class.getSimpleName();
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String REMOVED = "-";
+
+    /**
+     * Paths are short, that's under a megabyte
+     */
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static final long DEFAULT_TTL = 180L * 24 * 60 * 60 * 1000; // 180 days
+
+    private static SongPathMemo sInstance;
+
+    private final File mFile;
+    private final long mTtl;
+
+    /**
+     * Song key digest -> path with time it was resolved, eldest first
+     */
+    private final Map<String, ResolvedPath> mEntries = new LinkedHashMap<String, ResolvedPath>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ResolvedPath> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private int mJournalLines;
+    private boolean mLoaded;
+
+    public SongPathMemo(File file, long ttl) {
+        this.mFile = file;
+        this.mTtl = ttl;
+    }
+
+    public static synchronized SongPathMemo getInstance(Context ctx) {
+        if (sInstance == null) {
+            File file = new File(ctx.getApplicationContext().getCacheDir(), "song-paths.journal");
+            sInstance = new SongPathMemo(file, DEFAULT_TTL);
+        }
+        return sInstance;
+    }
+
+    private static class ResolvedPath {
+
+        private final String path;
+        private final long resolvedAt;
+
+        private ResolvedPath(String path, long resolvedAt) {
+            this.path = path;
+            this.resolvedAt = resolvedAt;
+        }
+    }
+
+    /**
+     * @param key song to get path of
+     * @return path found by search for this song, or null if song wasn't searched for recently
+     */
+    public synchronized String get(SongKey key) {
+        load();
+
+        ResolvedPath entry = mEntries.get(key.digest());
+        if (entry == null || System.currentTimeMillis() - entry.resolvedAt > mTtl) {
+            return null;
+        }
+        return entry.path;
+    }
+
+    /**
+     * Remember path found by search for the song
+     *
+     * @param key  song that was searched for
+     * @param path path of the song page
+     */
+    public synchronized void put(SongKey key, String path) {
+        load();
+
+        ResolvedPath previous = mEntries.get(key.digest());
+        if (previous != null && previous.path.equals(path)) {
+            return;
+        }
+
+        ResolvedPath entry = new ResolvedPath(path, System.currentTimeMillis());
+        mEntries.put(key.digest(), entry);
+        append(key.digest(), entry);
+    }
+
+    /**
+     * Forget the path, e.g. if page was moved
+     *
+     * @param key song to forget path of
+     */
+    public synchronized void remove(SongKey key) {
+        load();
+
+        if (mEntries.remove(key.digest()) != null) {
+            append(key.digest(), new ResolvedPath(REMOVED, System.currentTimeMillis()));
+        }
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), Charset.forName("UTF-8")));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                mJournalLines++;
+
+                // digest, resolution time, path
+                String[] parts = line.split("\t", 3);
+                if (parts.length < 3) {
+                    // torn write at the end
+                    continue;
+                }
+
+                if (parts[2].equals(REMOVED)) {
+                    mEntries.remove(parts[0]);
+                } else {
+                    mEntries.put(parts[0], new ResolvedPath(parts[2], Long.parseLong(parts[1])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Couldn't read song paths from " + mFile + ", some are lost", e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private void append(String digest, ResolvedPath entry) {
+        if (mJournalLines > 2 * mEntries.size() + 100) {
+            compact();
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(mFile, true), Charset.forName("UTF-8"));
+            writer.write(digest + "\t" + entry.resolvedAt + "\t" + entry.path + "\n");
+            writer.close();
+            writer = null;
+            mJournalLines++;
+        } catch (IOException e) {
+            // memo is only an optimization, song will be searched for again
+            Log.w(TAG, "Couldn't append song path to " + mFile, e);
+        } finally {
+            closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Rewrite the journal with live entries only
+     */
+    private void compact() {
+        File temp = new File(mFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(temp);
+            Writer writer = new OutputStreamWriter(fos, Charset.forName("UTF-8"));
+            long now = System.currentTimeMillis();
+            int lines = 0;
+            for (Map.Entry<String, ResolvedPath> e : mEntries.entrySet()) {
+                if (now - e.getValue().resolvedAt > mTtl) {
+                    continue;
+                }
+
+                writer.write(e.getKey() + "\t" + e.getValue().resolvedAt + "\t" + e.getValue().path + "\n");
+                lines++;
+            }
+            writer.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!temp.renameTo(mFile)) {
+                throw new IOException("Couldn't rename " + temp + " to " + mFile);
+            }
+            mJournalLines = lines;
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't compact song paths in " + mFile, e);
+            closeQuietly(fos);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c == null) {
+            return;
+        }
+
+        try {
+            c.close();
+        } catch (IOException ignored) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.kanedias.vanilla.lyrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.kanedias.vanilla.lyrics.MediaFixtures.audio;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.concat;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.flac;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.id3Header;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.id3Tag;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.syltFrame;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.textFrame;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.unsynchronize;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.usltFrame;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link EmbeddedLyricsReader} on generated ID3v2.3, ID3v2.4 and FLAC files
+ *
+ * @author Kanedias
+ */
+public class EmbeddedLyricsReaderTest {
+
+    private static final String LYRICS = "First line\nSecond line, déjà vu\n\nЧетвёртая строка\n";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private int mFiles;
+
+    @Test
+    public void id3v23Uslt() throws IOException {
+        File mp3 = mp3(concat(
+                id3Tag(3, 0, 256, textFrame(3, "TIT2", "Song"), usltFrame(3, LYRICS)),
+                audio(2048)));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(mp3));
+    }
+
+    @Test
+    public void id3v24Uslt() throws IOException {
+        File mp3 = mp3(concat(
+                id3Tag(4, 0, 0, textFrame(4, "TIT2", "Song"), usltFrame(4, LYRICS)),
+                audio(2048)));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(mp3));
+    }
+
+    @Test
+    public void id3v24SyltConvertedToLrc() throws IOException {
+        byte[] sylt = syltFrame(new String[]{"First line", "\nSecond line"}, new int[]{1500, 62_250});
+        File mp3 = mp3(concat(id3Tag(4, 0, 64, sylt), audio(512)));
+        assertEquals("[00:01.50]First line\n[01:02.25]Second line", EmbeddedLyricsReader.readLyrics(mp3));
+    }
+
+    @Test
+    public void usltPreferredOverSylt() throws IOException {
+        byte[] sylt = syltFrame(new String[]{"Synced"}, new int[]{0});
+        File mp3 = mp3(concat(id3Tag(4, 0, 64, sylt, usltFrame(4, LYRICS)), audio(512)));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(mp3));
+    }
+
+    @Test
+    public void id3v23UnsynchronizedTag() throws IOException {
+        // U+00FF is 0x00 0xFF in UTF-16, so the frame needs unsynchronization
+        String lyrics = "Ÿes, ÿes\nsecond line";
+        byte[] frames = unsynchronize(concat(textFrame(3, "TIT2", "Song"), usltFrame(3, lyrics)));
+        File mp3 = mp3(concat(id3Header(3, 0x80, frames.length), frames, audio(512)));
+        assertEquals(lyrics, EmbeddedLyricsReader.readLyrics(mp3));
+    }
+
+    @Test
+    public void id3WithoutLyrics() throws IOException {
+        File mp3 = mp3(concat(id3Tag(3, 0, 128, textFrame(3, "TIT2", "Song")), audio(512)));
+        assertNull(EmbeddedLyricsReader.readLyrics(mp3));
+    }
+
+    @Test
+    public void flacVorbisComment() throws IOException {
+        File flac = flacFile(flac(new String[]{"TITLE=Song", "ARTIST=Artist", "LYRICS=" + LYRICS}, 128, audio(2048)));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(flac));
+
+        File unsynced = flacFile(flac(new String[]{"TITLE=Song", "unsyncedlyrics=" + LYRICS}, 0, audio(2048)));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(unsynced));
+    }
+
+    @Test
+    public void flacWithoutLyrics() throws IOException {
+        assertNull(EmbeddedLyricsReader.readLyrics(flacFile(flac(new String[]{"TITLE=Song"}, 128, audio(512)))));
+        assertNull(EmbeddedLyricsReader.readLyrics(flacFile(flac(null, 0, audio(512)))));
+    }
+
+    @Test
+    public void flacWithId3Prepended() throws IOException {
+        byte[] flac = flac(new String[]{"LYRICS=" + LYRICS}, 0, audio(512));
+        File file = flacFile(concat(id3Tag(3, 0, 32, textFrame(3, "TIT2", "Song")), flac));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(file));
+    }
+
+    @Test
+    public void corruptedOrUnknownFiles() throws IOException {
+        // file is cut in the middle of the lyrics frame
+        byte[] frame = usltFrame(4, LYRICS);
+        byte[] truncated = concat(id3Header(4, 0, 100_000), Arrays.copyOf(frame, frame.length - 10));
+        assertNull(EmbeddedLyricsReader.readLyrics(mp3(truncated)));
+
+        assertNull(EmbeddedLyricsReader.readLyrics(mp3(audio(512))));
+
+        assertTrue(EmbeddedLyricsReader.isSupported(new File("song.FLAC")));
+        assertFalse(EmbeddedLyricsReader.isSupported(new File("song.wav")));
+    }
+
+    private File mp3(byte[] content) throws IOException {
+        return media(".mp3", content);
+    }
+
+    private File flacFile(byte[] content) throws IOException {
+        return media(".flac", content);
+    }
+
+    private File media(String extension, byte[] content) throws IOException {
+        return MediaFixtures.write(new File(mTemp.getRoot(), "song" + (++mFiles) + extension), content);
+    }
+}
@@ -0,0 +1,173 @@
+package com.kanedias.vanilla.lyrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.kanedias.vanilla.lyrics.MediaFixtures.ISO_8859_1;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.audio;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.concat;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.flac;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.id3Header;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.id3Tag;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.textFrame;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.unsynchronize;
+import static com.kanedias.vanilla.lyrics.MediaFixtures.usltFrame;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link EmbeddedLyricsWriter}: lyrics written into generated ID3v2.3, ID3v2.4 and FLAC files
+ * are read back by {@link EmbeddedLyricsReader}, other metadata and audio data stay intact
+ *
+ * @author Kanedias
+ */
+public class EmbeddedLyricsWriterTest {
+
+    private static final String OLD_LYRICS = "Old lyrics\nthat are replaced\n";
+    private static final String LYRICS = "New lyrics\nSecond line, déjà vu\n\nЧетвёртая строка\n";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private int mFiles;
+
+    @Test
+    public void id3v23InPlace() throws IOException {
+        byte[] audio = audio(4096);
+        byte[] tag = id3Tag(3, 0, 2048, textFrame(3, "TIT2", "Song"), usltFrame(3, OLD_LYRICS), textFrame(3, "TPE1", "Artist"));
+        File mp3 = media(".mp3", concat(tag, audio));
+
+        assertTrue(EmbeddedLyricsWriter.writeLyrics(mp3, LYRICS));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(mp3));
+
+        // padding was enough, audio didn't move
+        byte[] written = contents(mp3);
+        assertEquals(tag.length + audio.length, written.length);
+        assertArrayEquals(audio, Arrays.copyOfRange(written, tag.length, written.length));
+        assertContains(written, "TIT2");
+        assertContains(written, "TPE1");
+    }
+
+    @Test
+    public void id3v24Rewrite() throws IOException {
+        byte[] audio = audio(4096);
+        byte[] tag = id3Tag(4, 0, 0, textFrame(4, "TIT2", "Song"), usltFrame(4, OLD_LYRICS));
+        File mp3 = media(".mp3", concat(tag, audio));
+
+        assertTrue(EmbeddedLyricsWriter.writeLyrics(mp3, LYRICS));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(mp3));
+
+        // no padding, file is rewritten with the new tag
+        byte[] written = contents(mp3);
+        assertTrue(written.length > tag.length + audio.length);
+        assertArrayEquals(audio, Arrays.copyOfRange(written, written.length - audio.length, written.length));
+        assertContains(written, "TIT2");
+
+        // new tag got padding, so the next write is in place
+        assertTrue(EmbeddedLyricsWriter.writeLyrics(mp3, OLD_LYRICS));
+        assertEquals(OLD_LYRICS, EmbeddedLyricsReader.readLyrics(mp3));
+        assertEquals(written.length, mp3.length());
+    }
+
+    @Test
+    public void mp3WithoutTag() throws IOException {
+        byte[] audio = audio(4096);
+        File mp3 = media(".mp3", audio);
+
+        assertTrue(EmbeddedLyricsWriter.writeLyrics(mp3, LYRICS));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(mp3));
+
+        byte[] written = contents(mp3);
+        assertArrayEquals(audio, Arrays.copyOfRange(written, written.length - audio.length, written.length));
+    }
+
+    @Test
+    public void unsynchronizedTagsLeftToTagEditor() throws IOException {
+        for (int version = 3; version <= 4; ++version) {
+            byte[] frames = unsynchronize(concat(textFrame(version, "TIT2", "Song"), usltFrame(version, "Ÿes\n")));
+            byte[] original = concat(id3Header(version, 0x80, frames.length + 1024), frames, new byte[1024], audio(512));
+            File mp3 = media(".mp3", original);
+
+            assertFalse(EmbeddedLyricsWriter.writeLyrics(mp3, LYRICS));
+            assertArrayEquals(original, contents(mp3));
+        }
+    }
+
+    @Test
+    public void flacInPlace() throws IOException {
+        byte[] audio = audio(4096);
+        byte[] original = flac(new String[]{"TITLE=Song", "LYRICS=" + OLD_LYRICS, "ARTIST=Artist"}, 2048, audio);
+        File flac = media(".flac", original);
+
+        assertTrue(EmbeddedLyricsWriter.writeLyrics(flac, LYRICS));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(flac));
+
+        byte[] written = contents(flac);
+        assertEquals(original.length, written.length);
+        assertArrayEquals(audio, Arrays.copyOfRange(written, written.length - audio.length, written.length));
+        assertContains(written, "TITLE=Song");
+        assertContains(written, "ARTIST=Artist");
+        assertFalse(new String(written, ISO_8859_1).contains("Old lyrics"));
+    }
+
+    @Test
+    public void flacRewrite() throws IOException {
+        byte[] audio = audio(4096);
+        byte[] original = flac(new String[]{"TITLE=Song"}, 0, audio);
+        File flac = media(".flac", original);
+
+        assertTrue(EmbeddedLyricsWriter.writeLyrics(flac, LYRICS));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(flac));
+
+        byte[] written = contents(flac);
+        assertTrue(written.length > original.length);
+        assertArrayEquals(audio, Arrays.copyOfRange(written, written.length - audio.length, written.length));
+        assertContains(written, "TITLE=Song");
+
+        // without any comment block at all
+        File bare = media(".flac", flac(null, 0, audio));
+        assertTrue(EmbeddedLyricsWriter.writeLyrics(bare, LYRICS));
+        assertEquals(LYRICS, EmbeddedLyricsReader.readLyrics(bare));
+    }
+
+    @Test
+    public void unsupportedFormats() throws IOException {
+        assertFalse(EmbeddedLyricsWriter.isSupported(new File("song.ogg")));
+        assertTrue(EmbeddedLyricsWriter.isSupported(new File("song.MP3")));
+
+        byte[] original = concat("OggS".getBytes(ISO_8859_1), audio(512));
+        File ogg = media(".ogg", original);
+        assertFalse(EmbeddedLyricsWriter.writeLyrics(ogg, LYRICS));
+        assertArrayEquals(original, contents(ogg));
+    }
+
+    private File media(String extension, byte[] content) throws IOException {
+        return MediaFixtures.write(new File(mTemp.getRoot(), "song" + (++mFiles) + extension), content);
+    }
+
+    private static byte[] contents(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += fis.read(content, read, content.length - read);
+            }
+        } finally {
+            fis.close();
+        }
+        return content;
+    }
+
+    private static void assertContains(byte[] data, String text) {
+        assertTrue("No " + text + " in the file", new String(data, ISO_8859_1).contains(text));
+    }
+}
@@ -0,0 +1,96 @@
+package com.kanedias.vanilla.lyrics;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link LatencyHistogram}: bucket boundaries, relative error and percentiles
+ *
+ * @author Kanedias
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 0; value < 32; ++value) {
+            assertEquals(value, LatencyHistogram.highestValueAt(value));
+            histogram.record(value);
+            assertEquals(1, histogram.countAt(value));
+        }
+    }
+
+    @Test
+    public void bucketsAreNarrow() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int bucket = 1; bucket < histogram.bucketCount(); ++bucket) {
+            long lowest = LatencyHistogram.highestValueAt(bucket - 1) + 1;
+            long highest = LatencyHistogram.highestValueAt(bucket);
+            assertTrue("Bucket " + bucket + " is empty", highest >= lowest);
+            if (lowest > 32) {
+                // bucket width is within 1/16 of any value in it
+                assertTrue("Bucket " + bucket + " is too wide", (highest - lowest + 1) * 16 <= lowest);
+            }
+        }
+    }
+
+    @Test
+    public void valuesLandInTheirBuckets() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; ++i) {
+            // spread values over all magnitudes
+            long value = random.nextLong() >>> (28 + random.nextInt(36));
+
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+
+            int bucket = 0;
+            while (histogram.countAt(bucket) == 0) {
+                ++bucket;
+            }
+            assertTrue(value + " is above bucket " + bucket, value <= LatencyHistogram.highestValueAt(bucket));
+            assertTrue(value + " is below bucket " + bucket, bucket == 0 || value > LatencyHistogram.highestValueAt(bucket - 1));
+        }
+    }
+
+    @Test
+    public void statistics() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0, histogram.mean());
+
+        for (int value = 1; value <= 1000; ++value) {
+            histogram.record(value);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500, histogram.mean());
+        assertEquals(1000, histogram.max());
+
+        assertWithin(500, histogram.percentile(50));
+        assertWithin(990, histogram.percentile(99));
+        assertEquals(1000, histogram.percentile(100));
+        assertEquals(1, histogram.percentile(0));
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.countAt(0));
+        assertEquals(0, histogram.max());
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.countAt(histogram.bucketCount() - 1));
+        assertEquals(LatencyHistogram.highestValueAt(histogram.bucketCount() - 1), histogram.max());
+        assertEquals(2, histogram.count());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        // percentile is the upper bound of the bucket, so it's never below the real value
+        assertTrue(actual + " is not close to " + expected, actual >= expected && actual - expected <= expected / 16);
+    }
+}
@@ -0,0 +1,204 @@
+package com.kanedias.vanilla.lyrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link LyricsDatabase}: import of ZIP dumps and lookup of songs in them
+ *
+ * @author Kanedias
+ */
+public class LyricsDatabaseTest {
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private LyricsDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDatabase = new LyricsDatabase(new File(mTemp.getRoot(), "lyrics.db"));
+    }
+
+    @Test
+    public void emptyBeforeImport() throws IOException {
+        assertEquals(0, mDatabase.size());
+        assertNull(mDatabase.find(SongKey.of("Artist", "Title")));
+        assertFalse(mDatabase.contains(SongKey.of("Artist", "Title")));
+    }
+
+    @Test
+    public void importAndFind() throws IOException {
+        String tagged = "[ar: Tagged Artist]\n[ti: Tagged Song]\n[00:01.00]First line\n[00:02.00]Second line\n";
+        String named = "Lyrics identified by file name\n";
+        Dump dump = new Dump()
+                .add("collection/", null)
+                .add("collection/0001.lrc", tagged)
+                .add("collection/Named Artist - Named Song.txt", named)
+                .add("collection/readme.md", "Not lyrics, no tags and no artist in the name")
+                .add("collection/Empty Artist - Empty Song.lrc", "  \n");
+
+        assertEquals(2, mDatabase.importDump(dump.stream()));
+        assertEquals(2, mDatabase.size());
+
+        assertEquals(tagged, mDatabase.find(SongKey.of("Tagged Artist", "Tagged Song")));
+        assertEquals(named, mDatabase.find(SongKey.of("Named Artist", "Named Song")));
+        // keys are normalized, so are lookups
+        assertEquals(named, mDatabase.find(SongKey.of("named artist", "Named  Song")));
+        assertTrue(mDatabase.contains(SongKey.of("Tagged Artist", "Tagged Song")));
+
+        assertNull(mDatabase.find(SongKey.of("Empty Artist", "Empty Song")));
+        assertNull(mDatabase.find(SongKey.of("Tagged Artist", "Another Song")));
+        assertFalse(mDatabase.contains(SongKey.of("Unknown", "Song")));
+    }
+
+    @Test
+    public void manySongs() throws IOException {
+        Dump dump = new Dump();
+        for (int i = 0; i < 5000; ++i) {
+            dump.add("Artist " + (i % 97) + " - Song " + i + ".lrc", LyricsStoreTest.lyrics(i));
+        }
+        assertEquals(5000, mDatabase.importDump(dump.stream()));
+
+        // index is sorted and searched correctly all over it
+        for (int i = 0; i < 5000; ++i) {
+            assertEquals(LyricsStoreTest.lyrics(i), mDatabase.find(SongKey.of("Artist " + (i % 97), "Song " + i)));
+        }
+        for (int i = 5000; i < 6000; ++i) {
+            assertNull(mDatabase.find(SongKey.of("Artist " + (i % 97), "Song " + i)));
+        }
+    }
+
+    @Test
+    public void firstDuplicateWins() throws IOException {
+        Dump dump = new Dump();
+        for (int i = 0; i < 100; ++i) {
+            dump.add("Artist - Song " + i + ".lrc", "Filler " + i);
+        }
+        dump.add("Artist - Duplicate.lrc", "First version");
+        dump.add("other/Artist - Duplicate.lrc", "Second version");
+        dump.add("0001.lrc", "[ar:Artist]\n[ti:Duplicate]\nThird version, by tags");
+        for (int i = 100; i < 200; ++i) {
+            dump.add("Artist - Song " + i + ".lrc", "Filler " + i);
+        }
+
+        // every file is imported, lookup has to pick the right one
+        assertEquals(203, mDatabase.importDump(dump.stream()));
+        assertEquals("First version", mDatabase.find(SongKey.of("Artist", "Duplicate")));
+        assertEquals("Filler 0", mDatabase.find(SongKey.of("Artist", "Song 0")));
+        assertEquals("Filler 199", mDatabase.find(SongKey.of("Artist", "Song 199")));
+    }
+
+    @Test
+    public void reimportReplacesDatabase() throws IOException {
+        mDatabase.importDump(new Dump().add("Old - Song.lrc", "Old lyrics").stream());
+        assertEquals("Old lyrics", mDatabase.find(SongKey.of("Old", "Song")));
+
+        mDatabase.importDump(new Dump().add("New - Song.lrc", "New lyrics").stream());
+        assertNull(mDatabase.find(SongKey.of("Old", "Song")));
+        assertEquals("New lyrics", mDatabase.find(SongKey.of("New", "Song")));
+
+        // and it's there for the next process too
+        LyricsDatabase reopened = new LyricsDatabase(new File(mTemp.getRoot(), "lyrics.db"));
+        assertEquals(1, reopened.size());
+        assertEquals("New lyrics", reopened.find(SongKey.of("New", "Song")));
+    }
+
+    @Test
+    public void brokenDumpKeepsPreviousDatabase() throws IOException {
+        mDatabase.importDump(new Dump().add("Old - Song.lrc", "Old lyrics").stream());
+
+        byte[] zip = new Dump().add("New - Song.lrc", LyricsStoreTest.lyrics(1)).bytes();
+        byte[] truncated = new byte[zip.length / 2];
+        System.arraycopy(zip, 0, truncated, 0, truncated.length);
+        try {
+            mDatabase.importDump(new ByteArrayInputStream(truncated));
+        } catch (IOException expected) {
+            // truncated archive
+        }
+
+        assertEquals("Old lyrics", mDatabase.find(SongKey.of("Old", "Song")));
+        assertFalse(new File(mTemp.getRoot(), "lyrics.db.tmp").exists());
+    }
+
+    @Test
+    public void legacyFileNames() throws IOException {
+        // archivers on Windows write names in DOS code page, without UTF-8 flag
+        Charset cp437 = Charset.forName("CP437");
+        Dump dump = new Dump(cp437).add("Mötley Crüe - Home Sweet Home.lrc", "Lyrics in legacy archive");
+        byte[] zip = dump.bytes();
+
+        try {
+            mDatabase.importDump(new ByteArrayInputStream(zip));
+            fail("Name is not UTF-8, import must fail");
+        } catch (LyricsDatabase.MalformedNameException expected) {
+            // retried with legacy charset below
+        }
+        assertFalse(new File(mTemp.getRoot(), "lyrics.db.tmp").exists());
+
+        assertEquals(1, mDatabase.importDump(new ByteArrayInputStream(zip), cp437));
+        assertEquals("Lyrics in legacy archive", mDatabase.find(SongKey.of("Mötley Crüe", "Home Sweet Home")));
+    }
+
+    /**
+     * ZIP archive of lyrics files, built in memory
+     */
+    private static class Dump {
+
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final ZipOutputStream mZip;
+
+        Dump() {
+            this(Charset.forName("UTF-8"));
+        }
+
+        /**
+         * @param names charset of file names, archive is marked as UTF-8 only if it's UTF-8
+         */
+        Dump(Charset names) {
+            mZip = new ZipOutputStream(mBytes, names);
+        }
+
+        /**
+         * @param name file name, directory if it ends with slash
+         * @param text file content, null for directories
+         */
+        Dump add(String name, String text) {
+            try {
+                mZip.putNextEntry(new ZipEntry(name));
+                if (text != null) {
+                    mZip.write(text.getBytes(Charset.forName("UTF-8")));
+                }
+                mZip.closeEntry();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return this;
+        }
+
+        byte[] bytes() throws IOException {
+            mZip.close();
+            return mBytes.toByteArray();
+        }
+
+        ByteArrayInputStream stream() throws IOException {
+            return new ByteArrayInputStream(bytes());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.kanedias.vanilla.lyrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link LyricsStore}: lyrics survive reopening, compaction and crash in the middle of append
+ *
+ * @author Kanedias
+ */
+public class LyricsStoreTest {
+
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mTemp.getRoot(), "lyrics.store");
+    }
+
+    @Test
+    public void roundTrip() {
+        LyricsStore store = new LyricsStore(mFile, MAX_SIZE);
+        Map<String, String> songs = new LinkedHashMap<>();
+        for (int i = 0; i < 50; ++i) {
+            songs.put(digest(i), lyrics(i));
+        }
+        // same lyrics for another song, e.g. from the single, are stored once
+        songs.put(digest(1000), lyrics(7));
+        // non-ASCII text and lines repeated inside the lyrics
+        songs.put(digest(1001), "Привет, мир\n\nПривет, мир\nこんにちは\nПривет, мир\n");
+
+        long storedAt = 1_500_000_000_000L;
+        for (Map.Entry<String, String> song : songs.entrySet()) {
+            store.put(song.getKey(), storedAt, song.getValue());
+        }
+        assertSongs(store, songs, storedAt);
+
+        // index is rebuilt from the log on open
+        LyricsStore reopened = new LyricsStore(mFile, MAX_SIZE);
+        assertSongs(reopened, songs, storedAt);
+
+        reopened.put(digest(3), storedAt + 1, "Replaced lyrics");
+        reopened.remove(digest(4));
+        assertEquals("Replaced lyrics", reopened.get(digest(3)).lyrics);
+        assertNull(reopened.get(digest(4)));
+
+        LyricsStore again = new LyricsStore(mFile, MAX_SIZE);
+        LyricsStore.Stored replaced = again.get(digest(3));
+        assertNotNull(replaced);
+        assertEquals("Replaced lyrics", replaced.lyrics);
+        assertEquals(storedAt + 1, replaced.storedAt);
+        assertNull(again.get(digest(4)));
+        assertFalse(again.contains(digest(4)));
+        assertEquals(songs.get(digest(5)), again.get(digest(5)).lyrics);
+    }
+
+    @Test
+    public void putAllStoresEverything() {
+        LyricsStore store = new LyricsStore(mFile, MAX_SIZE);
+        Map<String, LyricsStore.Stored> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 20; ++i) {
+            batch.put(digest(i), new LyricsStore.Stored(lyrics(i), i));
+        }
+        store.putAll(batch);
+
+        LyricsStore reopened = new LyricsStore(mFile, MAX_SIZE);
+        for (int i = 0; i < 20; ++i) {
+            LyricsStore.Stored stored = reopened.get(digest(i));
+            assertNotNull(stored);
+            assertEquals(lyrics(i), stored.lyrics);
+            assertEquals(i, stored.storedAt);
+        }
+    }
+
+    @Test
+    public void compactionDropsLeastRecentlyUsed() {
+        long maxSize = 64 * 1024;
+        LyricsStore store = new LyricsStore(mFile, maxSize);
+        for (int i = 0; i < 400; ++i) {
+            store.put(digest(i), i, lyrics(i));
+            // keep the first song in use all the time
+            assertNotNull(store.get(digest(0)));
+        }
+
+        // live data is kept within the limit, dead records are compacted away
+        assertTrue("Store grew to " + store.fileSize(), store.fileSize() < 3 * maxSize);
+        assertEquals(lyrics(0), store.get(digest(0)).lyrics);
+        assertEquals(lyrics(399), store.get(digest(399)).lyrics);
+        assertNull(store.get(digest(1)));
+
+        // compacted file is readable on its own
+        LyricsStore reopened = new LyricsStore(mFile, maxSize);
+        assertEquals(lyrics(0), reopened.get(digest(0)).lyrics);
+        assertEquals(lyrics(399), reopened.get(digest(399)).lyrics);
+        assertEquals(398, reopened.get(digest(398)).storedAt);
+        assertNull(reopened.get(digest(1)));
+    }
+
+    @Test
+    public void compactionFailureKeepsEverything() throws IOException {
+        long maxSize = 64 * 1024;
+        // temporary file of compaction can't be created, non-empty directory is in the way
+        File blocker = new File(mFile.getPath() + ".tmp");
+        assertTrue(blocker.mkdir());
+        assertTrue(new File(blocker, "file").createNewFile());
+
+        LyricsStore store = new LyricsStore(mFile, maxSize);
+        for (int i = 0; i < 300; ++i) {
+            store.put(digest(i), i, lyrics(i));
+        }
+        for (int i = 0; i < 300; ++i) {
+            assertEquals(lyrics(i), store.get(digest(i)).lyrics);
+        }
+
+        LyricsStore reopened = new LyricsStore(mFile, maxSize);
+        for (int i = 0; i < 300; ++i) {
+            assertEquals(lyrics(i), reopened.get(digest(i)).lyrics);
+        }
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws IOException {
+        LyricsStore store = new LyricsStore(mFile, MAX_SIZE);
+        store.put(digest(1), 1, lyrics(1));
+        store.put(digest(2), 2, lyrics(2));
+        long intact = store.fileSize();
+        store.put(digest(3), 3, lyrics(3));
+
+        // crash in the middle of the last append
+        RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        LyricsStore reopened = new LyricsStore(mFile, MAX_SIZE);
+        assertEquals(lyrics(1), reopened.get(digest(1)).lyrics);
+        assertEquals(lyrics(2), reopened.get(digest(2)).lyrics);
+        assertNull(reopened.get(digest(3)));
+
+        // garbage after the last complete record
+        raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(intact);
+        raf.seek(intact);
+        raf.write(new byte[]{3, 0, 0, 0, 44, 1, 2, 3, 4, 5, 6, 7});
+        raf.close();
+
+        reopened = new LyricsStore(mFile, MAX_SIZE);
+        assertEquals(lyrics(2), reopened.get(digest(2)).lyrics);
+        assertEquals(intact, reopened.fileSize());
+
+        // new records go where the torn one was
+        reopened.put(digest(4), 4, lyrics(4));
+        LyricsStore again = new LyricsStore(mFile, MAX_SIZE);
+        assertEquals(lyrics(1), again.get(digest(1)).lyrics);
+        assertEquals(lyrics(2), again.get(digest(2)).lyrics);
+        assertEquals(lyrics(4), again.get(digest(4)).lyrics);
+    }
+
+    private static void assertSongs(LyricsStore store, Map<String, String> songs, long storedAt) {
+        for (Map.Entry<String, String> song : songs.entrySet()) {
+            assertTrue(store.contains(song.getKey()));
+            LyricsStore.Stored stored = store.get(song.getKey());
+            assertNotNull(stored);
+            assertEquals(song.getValue(), stored.lyrics);
+            assertEquals(storedAt, stored.storedAt);
+        }
+    }
+
+    private static String digest(int song) {
+        return SongKey.of("Artist", "Song " + song).digest();
+    }
+
+    /**
+     * Lyrics-like text: verses of random words with a repeated chorus
+     */
+    static String lyrics(int seed) {
+        Random random = new Random(seed);
+        String[] words = {"love", "night", "baby", "heart", "fire", "rain", "dance", "dream", "road", "home",
+                "light", "time", "soul", "burn", "fall", "stay", "run", "sky", "cold", "gold"};
+
+        StringBuilder chorus = new StringBuilder("[Chorus]\n");
+        for (int line = 0; line < 4; ++line) {
+            chorus.append(line(random, words)).append('\n');
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (int verse = 1; verse <= 3; ++verse) {
+            text.append("[Verse ").append(verse).append("]\n");
+            for (int line = 0; line < 8; ++line) {
+                text.append(line(random, words)).append('\n');
+            }
+            text.append('\n').append(chorus).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String line(Random random, String[] words) {
+        StringBuilder line = new StringBuilder();
+        int length = 4 + random.nextInt(6);
+        for (int i = 0; i < length; ++i) {
+            if (i > 0) {
+                line.append(' ');
+            }
+            line.append(words[random.nextInt(words.length)]);
+        }
+        line.append(' ').append(random.nextInt(1000));
+        return line.toString();
+    }
+}
@@ -0,0 +1,190 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Builders of minimal media files with lyrics tags, for reader and writer tests.
+ * Audio data is just random bytes, only metadata matters.
+ *
+ * @author Kanedias
+ */
+class MediaFixtures {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final Charset UTF_16 = Charset.forName("UTF-16");
+    static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private MediaFixtures() {
+    }
+
+    /**
+     * @return fake audio frames, starting with MPEG frame sync
+     */
+    static byte[] audio(int length) {
+        byte[] audio = new byte[length];
+        new Random(length).nextBytes(audio);
+        audio[0] = (byte) 0xFF;
+        audio[1] = (byte) 0xFB;
+        return audio;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    static File write(File file, byte[] content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write(content);
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    // ---------------------------------------- ID3v2 ----------------------------------------
+
+    /**
+     * @param version major version, 3 or 4
+     * @param flags   tag header flags
+     * @param padding zero bytes after frames
+     * @param frames  complete frames, see {@link #frame(int, String, byte[])}
+     */
+    static byte[] id3Tag(int version, int flags, int padding, byte[]... frames) {
+        byte[] body = concat(concat(frames), new byte[padding]);
+        return concat(id3Header(version, flags, body.length), body);
+    }
+
+    static byte[] id3Header(int version, int flags, int size) {
+        return concat("ID3".getBytes(ISO_8859_1), new byte[]{(byte) version, 0, (byte) flags}, synchsafe(size));
+    }
+
+    static byte[] frame(int version, String id, byte[] body) {
+        ByteBuffer header = ByteBuffer.allocate(10);
+        header.put(id.getBytes(ISO_8859_1));
+        if (version == 4) {
+            header.put(synchsafe(body.length));
+        } else {
+            header.putInt(body.length);
+        }
+        header.putShort((short) 0);
+        return concat(header.array(), body);
+    }
+
+    static byte[] textFrame(int version, String id, String text) {
+        return frame(version, id, concat(new byte[]{0}, text.getBytes(ISO_8859_1)));
+    }
+
+    /**
+     * USLT frame as taggers write it: UTF-16 for ID3v2.3, UTF-8 for ID3v2.4
+     */
+    static byte[] usltFrame(int version, String lyrics) {
+        byte[] body = version == 4
+                ? concat(new byte[]{3}, "eng".getBytes(ISO_8859_1), new byte[]{0}, lyrics.getBytes(UTF_8))
+                : concat(new byte[]{1}, "eng".getBytes(ISO_8859_1), new byte[]{0, 0}, lyrics.getBytes(UTF_16));
+        return frame(version, "USLT", body);
+    }
+
+    /**
+     * SYLT frame, UTF-8, timestamps in milliseconds
+     */
+    static byte[] syltFrame(String[] lines, int[] millis) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(3); // UTF-8
+        body.write('e');
+        body.write('n');
+        body.write('g');
+        body.write(2); // absolute milliseconds
+        body.write(1); // lyrics
+        body.write(0); // empty descriptor
+        for (int i = 0; i < lines.length; ++i) {
+            byte[] text = lines[i].getBytes(UTF_8);
+            body.write(text, 0, text.length);
+            body.write(0);
+            byte[] timestamp = ByteBuffer.allocate(4).putInt(millis[i]).array();
+            body.write(timestamp, 0, 4);
+        }
+        return frame(4, "SYLT", body.toByteArray());
+    }
+
+    /**
+     * Apply ID3 unsynchronization scheme: zero byte is inserted after every 0xFF
+     */
+    static byte[] unsynchronize(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte b : data) {
+            out.write(b);
+            if (b == (byte) 0xFF) {
+                out.write(0);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static byte[] synchsafe(int value) {
+        return new byte[]{
+                (byte) ((value >> 21) & 0x7F),
+                (byte) ((value >> 14) & 0x7F),
+                (byte) ((value >> 7) & 0x7F),
+                (byte) (value & 0x7F)
+        };
+    }
+
+    // ---------------------------------------- FLAC ----------------------------------------
+
+    /**
+     * @param fields  Vorbis comment fields, like "TITLE=Song", no comment block if null
+     * @param padding size of padding block, no padding block if 0
+     */
+    static byte[] flac(String[] fields, int padding, byte[] audio) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] marker = "fLaC".getBytes(ISO_8859_1);
+        out.write(marker, 0, marker.length);
+
+        byte[] streamInfo = new byte[34];
+        writeBlock(out, 0, streamInfo, fields == null && padding == 0);
+        if (fields != null) {
+            writeBlock(out, EmbeddedLyricsReader.FLAC_VORBIS_COMMENT, vorbisComment(fields), padding == 0);
+        }
+        if (padding > 0) {
+            writeBlock(out, 1, new byte[padding], true);
+        }
+        out.write(audio, 0, audio.length);
+        return out.toByteArray();
+    }
+
+    private static void writeBlock(ByteArrayOutputStream out, int type, byte[] content, boolean last) {
+        byte[] header = ByteBuffer.allocate(4).putInt(content.length).array();
+        header[0] = (byte) (type | (last ? 0x80 : 0));
+        out.write(header, 0, 4);
+        out.write(content, 0, content.length);
+    }
+
+    static byte[] vorbisComment(String... fields) {
+        byte[] vendor = "fixture".getBytes(UTF_8);
+        int size = 4 + vendor.length + 4;
+        for (String field : fields) {
+            size += 4 + field.getBytes(UTF_8).length;
+        }
+
+        ByteBuffer comment = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        comment.putInt(vendor.length).put(vendor);
+        comment.putInt(fields.length);
+        for (String field : fields) {
+            byte[] bytes = field.getBytes(UTF_8);
+            comment.putInt(bytes.length).put(bytes);
+        }
+        return comment.array();
+    }
+}
@@ -0,0 +1,131 @@
+package com.kanedias.vanilla.lyrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link MissCache}: distribution of filter probes, false positive rate, persistence and expiry
+ *
+ * @author Kanedias
+ */
+public class MissCacheTest {
+
+    private static final long TTL = 7L * 24 * 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mTemp.getRoot(), "misses.bloom");
+    }
+
+    @Test
+    public void probesAreDistinct() {
+        for (int i = 0; i < 20000; ++i) {
+            int[] probes = MissCache.hashesOf(SongKey.of("Artist " + i, "Song " + i));
+            assertEquals(MissCache.FILTER_HASHES, probes.length);
+
+            Set<Integer> distinct = new HashSet<>();
+            for (int bit : probes) {
+                assertTrue(bit >= 0 && bit < MissCache.FILTER_BITS);
+                distinct.add(bit);
+            }
+            // odd step never lands on the same bit twice within one key
+            assertEquals("Probes of song " + i + " collide", MissCache.FILTER_HASHES, distinct.size());
+        }
+    }
+
+    @Test
+    public void probesSpreadEvenly() {
+        int regions = 64;
+        int keys = 20000;
+        int[] hits = new int[regions];
+        for (int i = 0; i < keys; ++i) {
+            for (int bit : MissCache.hashesOf(SongKey.of("Artist", "Song " + i))) {
+                hits[bit / (MissCache.FILTER_BITS / regions)]++;
+            }
+        }
+
+        double expected = (double) keys * MissCache.FILTER_HASHES / regions;
+        for (int region = 0; region < regions; ++region) {
+            double deviation = Math.abs(hits[region] - expected) / expected;
+            assertTrue("Region " + region + " got " + hits[region] + " probes, expected about " + (int) expected,
+                    deviation < 0.1);
+        }
+    }
+
+    @Test
+    public void falsePositiveRateAtCapacity() {
+        MissCache misses = new MissCache(mFile, TTL);
+        misses.load();
+        for (int i = 0; i < 13000; ++i) {
+            misses.add(SongKey.of("Missing Artist", "Song " + i));
+        }
+
+        for (int i = 0; i < 13000; ++i) {
+            assertTrue(misses.contains(SongKey.of("Missing Artist", "Song " + i)));
+        }
+
+        int falsePositives = 0;
+        int probes = 100000;
+        for (int i = 0; i < probes; ++i) {
+            if (misses.contains(SongKey.of("Other Artist", "Song " + i))) {
+                falsePositives++;
+            }
+        }
+        // designed for 1%
+        assertTrue("False positive rate is " + falsePositives * 100.0 / probes + "%", falsePositives < probes / 50);
+    }
+
+    @Test
+    public void missesSurviveRestart() {
+        MissCache misses = new MissCache(mFile, TTL);
+        misses.load();
+        misses.add(SongKey.of("Instrumental", "Track"));
+        misses.save();
+
+        MissCache reopened = new MissCache(mFile, TTL);
+        // added before the file is loaded, must not be lost on load
+        reopened.add(SongKey.of("Podcast", "Episode 1"));
+        reopened.load();
+        assertTrue(reopened.contains(SongKey.of("Instrumental", "Track")));
+        assertTrue(reopened.contains(SongKey.of("Podcast", "Episode 1")));
+        assertFalse(reopened.contains(SongKey.of("Artist", "Song")));
+    }
+
+    @Test
+    public void missesExpire() {
+        long[] now = {1_500_000_000_000L};
+        MissCache misses = new MissCache(mFile, TTL, () -> now[0]);
+        misses.load();
+        misses.add(SongKey.of("Instrumental", "Track"));
+        assertTrue(misses.contains(SongKey.of("Instrumental", "Track")));
+
+        // half TTL later the miss is in the previous generation, still remembered
+        now[0] += TTL / 2;
+        assertTrue(misses.contains(SongKey.of("Instrumental", "Track")));
+        misses.add(SongKey.of("Podcast", "Episode"));
+
+        // previous generation is dropped on the next rotation
+        now[0] += TTL / 2;
+        assertFalse(misses.contains(SongKey.of("Instrumental", "Track")));
+        assertTrue(misses.contains(SongKey.of("Podcast", "Episode")));
+
+        // after full TTL of inactivity both generations are dropped
+        now[0] += TTL;
+        assertFalse(misses.contains(SongKey.of("Podcast", "Episode")));
+    }
+}
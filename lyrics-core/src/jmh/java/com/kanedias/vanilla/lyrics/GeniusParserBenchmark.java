@@ -0,0 +1,88 @@
+package com.kanedias.vanilla.lyrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of parsing Genius answers, from text already in memory, so network doesn't blur the numbers.
+ * <p/>
+ * Search answers differ in where the first song hit is: right at the start or after
+ * several non-song hits, which is the worst case for the streaming reader. Run with {@code -prof gc}
+ * (enabled in build script) to see allocation per operation, {@link #lookup()} is the whole parsing
+ * part of one lookup.
+ *
+ * @author Kanedias
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GeniusParserBenchmark {
+
+    private static final String GENIUS_MAIN_URL = "https://genius.com";
+
+    @Param({"search-song-first.json", "search-song-last.json"})
+    public String searchFixture;
+
+    private String mSearchAnswer;
+    private String mLyricsPage;
+
+    @Setup
+    public void loadFixtures() throws IOException {
+        mSearchAnswer = readFixture(searchFixture);
+        mLyricsPage = readFixture("song-page.html");
+
+        // don't measure something that doesn't work
+        if (GeniusParser.findFirstSongPath(new StringReader(mSearchAnswer)) == null
+                || GeniusParser.extractLyrics(new StringReader(mLyricsPage), GENIUS_MAIN_URL) == null) {
+            throw new IllegalStateException("Fixtures are not parsed, check their format");
+        }
+    }
+
+    @Benchmark
+    public String searchAnswer() throws IOException {
+        return GeniusParser.findFirstSongPath(new StringReader(mSearchAnswer));
+    }
+
+    @Benchmark
+    public String lyricsPage() throws IOException {
+        return GeniusParser.extractLyrics(new StringReader(mLyricsPage), GENIUS_MAIN_URL);
+    }
+
+    @Benchmark
+    public String lookup() throws IOException {
+        String path = GeniusParser.findFirstSongPath(new StringReader(mSearchAnswer));
+        return path + GeniusParser.extractLyrics(new StringReader(mLyricsPage), GENIUS_MAIN_URL);
+    }
+
+    private static String readFixture(String name) throws IOException {
+        InputStream is = GeniusParserBenchmark.class.getResourceAsStream("/fixtures/" + name);
+        if (is == null) {
+            throw new IOException("No fixture " + name);
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), Charset.forName("UTF-8"));
+        } finally {
+            is.close();
+        }
+    }
+}
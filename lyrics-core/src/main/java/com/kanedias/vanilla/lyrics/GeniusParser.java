@@ -0,0 +1,188 @@
+package com.kanedias.vanilla.lyrics;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Parsers of Genius answers: search API response and song page.
+ * <p/>
+ * These are the CPU-heavy part of the lookup and don't depend on Android, so they live here
+ * to be benchmarked on desktop JVM. Transport, caching and scheduling stay in the app.
+ *
+ * @author Kanedias
+ */
+public class GeniusParser {
+
+    private static final StreamingHtmlExtractor LYRICS_EXTRACTOR = new StreamingHtmlExtractor("div", "lyrics", "p");
+
+    private GeniusParser() {
+    }
+
+    /**
+     * Pulls search answer from the stream until the first song hit is found. Everything else is skipped
+     * without materializing, the rest of the answer after the first song is not read at all.
+     * <p/>
+     * Expected answer structure is:
+     * <pre>
+     * { "meta": {...}, "response": { "hits": [ { "type": "song", "result": { "path": "/...", ... }, ... }, ... ] } }
+     * </pre>
+     *
+     * @param answer reader positioned at the start of the answer
+     * @return path of the first song page, null if there are no songs in the answer
+     * @throws com.google.gson.stream.MalformedJsonException if answer is not a valid JSON
+     * @throws IllegalStateException if answer has unexpected structure
+     */
+    public static String findFirstSongPath(Reader answer) throws IOException {
+        JsonReader reader = new JsonReader(answer);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("response")) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("hits") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String path = readSongHitPath(reader);
+                    if (path != null) {
+                        return path;
+                    }
+                }
+                return null; // no songs among hits
+            }
+            return null; // no hits at all
+        }
+        return null;
+    }
+
+    /**
+     * Extracts lyrics text from the song page. Only first paragraph of div.lyrics is needed,
+     * so DOM of the whole page is never built and the page is read only up to the end of lyrics.
+     *
+     * @param page    reader positioned at the start of the page
+     * @param baseUri address of the page, to resolve relative links against
+     * @return lyrics with line breaks preserved, null if page format is unknown
+     */
+    public static String extractLyrics(Reader page, String baseUri) throws IOException {
+        String lyricsHtml = extractLyricsHtml(page);
+        if (lyricsHtml == null) {
+            return null;
+        }
+        return lyricsToText(lyricsHtml, baseUri);
+    }
+
+    /**
+     * First step of {@link #extractLyrics(Reader, String)}: find lyrics markup in the page
+     *
+     * @param page reader positioned at the start of the page
+     * @return HTML of the lyrics paragraph, null if page format is unknown
+     */
+    public static String extractLyricsHtml(Reader page) throws IOException {
+        return LYRICS_EXTRACTOR.extract(page);
+    }
+
+    /**
+     * Second step of {@link #extractLyrics(Reader, String)}: convert lyrics markup to text
+     *
+     * @param lyricsHtml HTML of the lyrics paragraph
+     * @param baseUri    address of the page, to resolve relative links against
+     * @return lyrics with line breaks preserved, null if there's no paragraph in the markup
+     */
+    public static String lyricsToText(String lyricsHtml, String baseUri) {
+        Document fragment = Jsoup.parseBodyFragment(lyricsHtml, baseUri);
+        Element lyrics = fragment.select("p").first();
+        if (lyrics == null) {
+            return null;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Node curr : lyrics.childNodes()) {
+            if (curr instanceof Element && ((Element) curr).tagName().equals("br")) {
+                builder.append("\n");
+            } else if (curr instanceof Element) {
+                builder.append(((Element) curr).text());
+            } else if (curr instanceof TextNode) {
+                builder.append(((TextNode) curr).text());
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Reads one search hit object
+     *
+     * @return path of the song page if this hit is a song, null otherwise
+     */
+    private static String readSongHitPath(JsonReader reader) throws IOException {
+        String type = null;
+        String path = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "type":
+                    type = reader.nextString();
+                    if (!type.equals("song")) {
+                        // not a song, skip
+                        skipRemaining(reader);
+                        return null;
+                    }
+                    break;
+                case "result":
+                    path = readResultPath(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+
+            if (type != null && path != null) {
+                // that's all we need, don't read further
+                return path;
+            }
+        }
+        reader.endObject();
+        return null;
+    }
+
+    private static String readResultPath(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String path = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("path") && reader.peek() == JsonToken.STRING) {
+                path = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return path;
+    }
+
+    private static void skipRemaining(JsonReader reader) throws IOException {
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endObject();
+    }
+}
@@ -0,0 +1,377 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Locale;
+
+/**
+ * Streaming extractor of a single element from HTML page.
+ * <p/>
+ * Instead of building full DOM of the page this tokenizes the markup as it arrives and only
+ * remembers the HTML of the first target element found inside the container element, e.g.
+ * the first {@code p} inside {@code div.lyrics}. Reading stops as soon as the target element is closed,
+ * so the rest of the page is never even downloaded.
+ * <p/>
+ * This is not a full-blown HTML tokenizer, it only knows enough to not be fooled by
+ * comments, quoted attributes and contents of {@code script} and {@code style} elements.
+ *
+ * @author Kanedias
+ */
+public class StreamingHtmlExtractor {
+
+    private static final int EOF = -1;
+
+    private final String mContainerTag;
+    private final String mContainerClass;
+    private final String mTargetTag;
+
+    /**
+     * @param containerTag   tag name of the container element, e.g. "div"
+     * @param containerClass class the container must have, e.g. "lyrics"
+     * @param targetTag      tag name of the element to extract from container, e.g. "p"
+     */
+    public StreamingHtmlExtractor(String containerTag, String containerClass, String targetTag) {
+        this.mContainerTag = containerTag;
+        this.mContainerClass = containerClass;
+        this.mTargetTag = targetTag;
+    }
+
+    /**
+     * Scan the page until the target element is found and closed.
+     *
+     * @param reader page contents
+     * @return outer HTML of the target element or null if it is not present on the page
+     * @throws IOException on read errors
+     */
+    public String extract(Reader reader) throws IOException {
+        return new Scanner(reader).scan();
+    }
+
+    /**
+     * Scanning state for one page
+     */
+    private class Scanner {
+
+        private final Reader mReader;
+        private final char[] mBuffer = new char[8192];
+        private int mPos, mLimit;
+
+        /**
+         * Depth of container-named elements since the container was opened, 0 if outside container
+         */
+        private int mContainerDepth;
+
+        /**
+         * Depth of target-named elements since target was opened, 0 if not capturing
+         */
+        private int mTargetDepth;
+        private StringBuilder mCapture;
+
+        private Scanner(Reader reader) {
+            this.mReader = reader;
+        }
+
+        private String scan() throws IOException {
+            int c;
+            while ((c = read()) != EOF) {
+                if (c != '<') {
+                    capture((char) c);
+                    continue;
+                }
+
+                int next = peek();
+                if (next == '!') {
+                    skipDeclaration();
+                } else if (next == '/') {
+                    read();
+                    String name = readTagName();
+                    String raw = readUntilTagEnd();
+                    capture("</").capture(name).capture(raw);
+                    if (onEndTag(name)) {
+                        return mCapture.toString();
+                    }
+                } else if (isAsciiLetter(next)) {
+                    String name = readTagName();
+                    String raw = readUntilTagEnd();
+                    boolean selfClosing = raw.endsWith("/>");
+                    onStartTag(name, raw, selfClosing);
+                    if (!selfClosing && (name.equals("script") || name.equals("style"))) {
+                        skipRawText(name);
+                    }
+                } else {
+                    // stray less-than sign, just text
+                    capture('<');
+                }
+
+                if (mCapture == null && mContainerDepth < 0) {
+                    // container closed without target inside
+                    return null;
+                }
+            }
+
+            // page ended prematurely or there was no container at all
+            return null;
+        }
+
+        private void onStartTag(String name, String rawAttributes, boolean selfClosing) {
+            if (mTargetDepth > 0) {
+                capture('<').capture(name).capture(rawAttributes);
+                if (name.equals(mTargetTag) && !selfClosing) {
+                    mTargetDepth++;
+                }
+                return;
+            }
+
+            if (mContainerDepth > 0) {
+                if (name.equals(mTargetTag) && !selfClosing) {
+                    // found it, start capturing
+                    mTargetDepth = 1;
+                    mCapture = new StringBuilder(4096);
+                    capture('<').capture(name).capture(rawAttributes);
+                    return;
+                }
+
+                if (name.equals(mContainerTag) && !selfClosing) {
+                    mContainerDepth++;
+                }
+                return;
+            }
+
+            if (name.equals(mContainerTag) && !selfClosing && hasClass(rawAttributes, mContainerClass)) {
+                mContainerDepth = 1;
+            }
+        }
+
+        /**
+         * @return true if target element was closed by this tag
+         */
+        private boolean onEndTag(String name) {
+            if (mTargetDepth > 0) {
+                if (name.equals(mTargetTag)) {
+                    mTargetDepth--;
+                }
+                return mTargetDepth == 0;
+            }
+
+            if (mContainerDepth > 0 && name.equals(mContainerTag)) {
+                mContainerDepth--;
+                if (mContainerDepth == 0) {
+                    mContainerDepth = -1; // mark as closed
+                }
+            }
+            return false;
+        }
+
+        private Scanner capture(char c) {
+            if (mCapture != null) {
+                mCapture.append(c);
+            }
+            return this;
+        }
+
+        private Scanner capture(String s) {
+            if (mCapture != null) {
+                mCapture.append(s);
+            }
+            return this;
+        }
+
+        /**
+         * Comments, doctype, CDATA. Cursor is right after the less-than sign.
+         */
+        private void skipDeclaration() throws IOException {
+            StringBuilder raw = new StringBuilder("<");
+            raw.append((char) read()); // exclamation mark
+            if (peek() == '-') {
+                raw.append((char) read());
+                if (peek() == '-') {
+                    // proper comment, skip until -->
+                    raw.append((char) read());
+                    int dashes = 0;
+                    int c;
+                    while ((c = read()) != EOF) {
+                        raw.append((char) c);
+                        if (c == '>' && dashes >= 2) {
+                            break;
+                        }
+                        dashes = c == '-' ? dashes + 1 : 0;
+                    }
+                    capture(raw.toString());
+                    return;
+                }
+            }
+
+            int c;
+            while ((c = read()) != EOF) {
+                raw.append((char) c);
+                if (c == '>') {
+                    break;
+                }
+            }
+            capture(raw.toString());
+        }
+
+        /**
+         * Skip script or style contents up to and including closing tag.
+         */
+        private void skipRawText(String name) throws IOException {
+            String closing = "</" + name;
+            int matched = 0;
+            int c;
+            while ((c = read()) != EOF) {
+                capture((char) c);
+                if (Character.toLowerCase((char) c) == closing.charAt(matched)) {
+                    matched++;
+                    if (matched == closing.length()) {
+                        capture(readUntilTagEnd());
+                        return;
+                    }
+                } else {
+                    matched = Character.toLowerCase((char) c) == '<' ? 1 : 0;
+                }
+            }
+        }
+
+        private String readTagName() throws IOException {
+            StringBuilder name = new StringBuilder();
+            int c;
+            while ((c = peek()) != EOF && c != '>' && c != '/' && !Character.isWhitespace(c)) {
+                name.append((char) read());
+            }
+            return name.toString().toLowerCase(Locale.US);
+        }
+
+        /**
+         * Reads rest of the tag, honoring quoted attribute values.
+         *
+         * @return raw rest of the tag including closing greater-than sign
+         */
+        private String readUntilTagEnd() throws IOException {
+            StringBuilder raw = new StringBuilder();
+            int quote = 0;
+            int c;
+            while ((c = read()) != EOF) {
+                raw.append((char) c);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                    continue;
+                }
+
+                if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    break;
+                }
+            }
+            return raw.toString();
+        }
+
+        private int read() throws IOException {
+            if (mPos == mLimit && !fill()) {
+                return EOF;
+            }
+            return mBuffer[mPos++];
+        }
+
+        private int peek() throws IOException {
+            if (mPos == mLimit && !fill()) {
+                return EOF;
+            }
+            return mBuffer[mPos];
+        }
+
+        private boolean fill() throws IOException {
+            int read = mReader.read(mBuffer, 0, mBuffer.length);
+            if (read <= 0) {
+                return false;
+            }
+            mPos = 0;
+            mLimit = read;
+            return true;
+        }
+    }
+
+    /**
+     * Checks whether raw attributes of the tag contain the class
+     *
+     * @param rawAttributes raw attributes string, as in {@code  class="lyrics" id='x'>}
+     * @param className     class to search for
+     * @return true if class attribute is present and contains requested class
+     */
+    private static boolean hasClass(String rawAttributes, String className) {
+        String classes = attributeValue(rawAttributes, "class");
+        if (classes == null) {
+            return false;
+        }
+
+        for (String clazz : classes.split("\\s+")) {
+            if (clazz.equals(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String attributeValue(String raw, String attrName) {
+        int i = 0;
+        int len = raw.length();
+        while (i < len) {
+            // skip separators
+            while (i < len && (Character.isWhitespace(raw.charAt(i)) || raw.charAt(i) == '/')) {
+                i++;
+            }
+
+            // attribute name
+            int nameStart = i;
+            while (i < len && raw.charAt(i) != '=' && raw.charAt(i) != '>'
+                    && !Character.isWhitespace(raw.charAt(i))) {
+                i++;
+            }
+            String name = raw.substring(nameStart, i);
+            if (name.isEmpty()) {
+                return null;
+            }
+
+            while (i < len && Character.isWhitespace(raw.charAt(i))) {
+                i++;
+            }
+            if (i >= len || raw.charAt(i) != '=') {
+                // attribute without value
+                continue;
+            }
+            i++;
+            while (i < len && Character.isWhitespace(raw.charAt(i))) {
+                i++;
+            }
+
+            // attribute value
+            String value;
+            if (i < len && (raw.charAt(i) == '"' || raw.charAt(i) == '\'')) {
+                char quote = raw.charAt(i++);
+                int valueStart = i;
+                while (i < len && raw.charAt(i) != quote) {
+                    i++;
+                }
+                value = raw.substring(valueStart, Math.min(i, len));
+                i++;
+            } else {
+                int valueStart = i;
+                while (i < len && raw.charAt(i) != '>' && !Character.isWhitespace(raw.charAt(i))) {
+                    i++;
+                }
+                value = raw.substring(valueStart, i);
+            }
+
+            if (name.equalsIgnoreCase(attrName)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAsciiLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
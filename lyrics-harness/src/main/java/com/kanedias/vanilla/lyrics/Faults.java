@@ -0,0 +1,108 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Misbehavior the stand-in server injects into replayed answers.
+ * <p/>
+ * Stand-in speaks plain HTTP, as device would not trust its certificate anyway. Cost of TLS handshake is
+ * emulated instead: the first request on every new connection is delayed, so reusing connections
+ * pays off the same way it does with the real provider.
+ *
+ * @author Kanedias
+ */
+class Faults {
+
+    enum Fault {
+        NONE,
+
+        /**
+         * Answer 429 Too Many Requests
+         */
+        THROTTLED,
+
+        /**
+         * Answer 503 Service Unavailable
+         */
+        SERVER_ERROR,
+
+        /**
+         * Promise the full body, but close connection halfway through it
+         */
+        TRUNCATED
+    }
+
+    /**
+     * Delay before every answer, and random addition to it, in milliseconds
+     */
+    long latency;
+    long jitter;
+
+    /**
+     * Delay of the first answer on a new connection, in milliseconds
+     */
+    long handshakeDelay;
+
+    /**
+     * Limit of body transfer speed, in bytes per second, 0 for unlimited
+     */
+    int bandwidth;
+
+    /**
+     * Share of answers with the fault, from 0 to 1
+     */
+    double throttleRate;
+    double errorRate;
+    double truncateRate;
+
+    /**
+     * Value of Retry-After header in throttled answers, in seconds, negative to omit it
+     */
+    int retryAfter = -1;
+
+    private final Set<InetSocketAddress> mConnections = new HashSet<>();
+    private Random mRandom = new Random();
+
+    void setSeed(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    synchronized Fault pick() {
+        double roll = mRandom.nextDouble();
+        if (roll < throttleRate) {
+            return Fault.THROTTLED;
+        }
+        roll -= throttleRate;
+        if (roll < errorRate) {
+            return Fault.SERVER_ERROR;
+        }
+        roll -= errorRate;
+        if (roll < truncateRate) {
+            return Fault.TRUNCATED;
+        }
+        return Fault.NONE;
+    }
+
+    /**
+     * @param client address of the client connection
+     * @return milliseconds to wait before answering to this client
+     */
+    synchronized long delayFor(InetSocketAddress client) {
+        long delay = latency + (jitter > 0 ? (long) (mRandom.nextDouble() * jitter) : 0);
+        if (mConnections.add(client)) {
+            // new connection, the client would be doing TLS handshake now
+            delay += handshakeDelay;
+        }
+        return delay;
+    }
+
+    @Override
+    public String toString() {
+        return "latency " + latency + "+" + jitter + " ms, handshake " + handshakeDelay + " ms, "
+                + (bandwidth > 0 ? bandwidth + " B/s" : "unlimited bandwidth") + ", "
+                + "429 " + throttleRate + ", 503 " + errorRate + ", truncated " + truncateRate;
+    }
+}
@@ -0,0 +1,91 @@
+package com.kanedias.vanilla.lyrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * One recorded exchange with lyrics provider: request target and the answer to it.
+ * Request headers are not kept, so API token doesn't end up in recordings.
+ *
+ * @author Kanedias
+ */
+class Recording {
+
+    private static final int FORMAT_VERSION = 1;
+    static final String EXTENSION = ".rec";
+
+    /**
+     * Path with query, e.g. {@code /search?q=...}
+     */
+    final String target;
+    final int status;
+    final String contentType;
+    final byte[] body;
+
+    Recording(String target, int status, String contentType, byte[] body) {
+        this.target = target;
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+    }
+
+    /**
+     * @return true if this is an answer of search API, false if it's a song page
+     */
+    boolean isSearch() {
+        return isSearch(target);
+    }
+
+    static boolean isSearch(String target) {
+        return target.startsWith("/search");
+    }
+
+    static Recording read(File file) throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (dis.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unknown recording format in " + file);
+            }
+
+            String target = dis.readUTF();
+            int status = dis.readInt();
+            String contentType = dis.readUTF();
+            byte[] body = new byte[dis.readInt()];
+            dis.readFully(body);
+            return new Recording(target, status, contentType, body);
+        }
+    }
+
+    /**
+     * Save recording to the directory, overwriting previous recording of the same target
+     */
+    void write(File dir) throws IOException {
+        File file = new File(dir, fileName(target));
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            dos.writeInt(FORMAT_VERSION);
+            dos.writeUTF(target);
+            dos.writeInt(status);
+            dos.writeUTF(contentType);
+            dos.writeInt(body.length);
+            dos.write(body);
+        }
+    }
+
+    private static String fileName(String target) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(target.getBytes(StandardCharsets.UTF_8));
+            return String.format("%040x", new BigInteger(1, digest)) + EXTENSION;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-1 in this JVM", e);
+        }
+    }
+}
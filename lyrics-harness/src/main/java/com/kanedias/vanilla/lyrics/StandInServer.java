@@ -0,0 +1,271 @@
+package com.kanedias.vanilla.lyrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local HTTP server standing in for lyrics providers, so engines can be load-tested offline and in CI.
+ * <p/>
+ * In record mode it proxies requests to the real provider and saves every answer. Requests to
+ * {@code /search} go to the API, everything else is a song page. Authorization header of the client is passed
+ * through, but not recorded.
+ * <p/>
+ * In replay mode it answers from recordings, injecting {@link Faults}. Unknown searches are answered with one
+ * of the recorded search answers, picked by the query, so load driver can ask for any number of distinct songs
+ * while the answers stay real.
+ *
+ * @author Kanedias
+ */
+public class StandInServer implements HttpHandler {
+
+    private static final String GENIUS_API_URL = "https://api.genius.com";
+    private static final String GENIUS_MAIN_URL = "https://genius.com";
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int THREADS = 64;
+
+    /**
+     * Throttled body is written in slices this many times a second
+     */
+    private static final int BANDWIDTH_SLICES = 10;
+
+    private final File mDir;
+    private final boolean mRecording;
+    private final Faults mFaults;
+    private final String mApiUrl;
+    private final String mMainUrl;
+
+    private final Map<String, Recording> mRecordings = new ConcurrentHashMap<>();
+    private final List<Recording> mSearches = new ArrayList<>();
+    private final List<Recording> mPages = new ArrayList<>();
+
+    private final Map<String, AtomicInteger> mCounters = new ConcurrentHashMap<>();
+
+    private StandInServer(File dir, boolean recording, Faults faults, String apiUrl, String mainUrl) {
+        this.mDir = dir;
+        this.mRecording = recording;
+        this.mFaults = faults;
+        this.mApiUrl = apiUrl;
+        this.mMainUrl = mainUrl;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0 || !(args[0].equals("record") || args[0].equals("replay"))) {
+            usage();
+            return;
+        }
+
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                usage();
+                return;
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        Faults faults = new Faults();
+        faults.latency = Long.parseLong(option(options, "latency", "0"));
+        faults.jitter = Long.parseLong(option(options, "jitter", "0"));
+        faults.handshakeDelay = Long.parseLong(option(options, "handshake", "0"));
+        faults.bandwidth = Integer.parseInt(option(options, "bandwidth", "0"));
+        faults.throttleRate = Double.parseDouble(option(options, "throttle", "0"));
+        faults.errorRate = Double.parseDouble(option(options, "errors", "0"));
+        faults.truncateRate = Double.parseDouble(option(options, "truncate", "0"));
+        faults.retryAfter = Integer.parseInt(option(options, "retry-after", "-1"));
+        if (options.containsKey("seed")) {
+            faults.setSeed(Long.parseLong(options.get("seed")));
+        }
+
+        File dir = new File(option(options, "dir", "recordings"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create recordings directory " + dir);
+        }
+
+        boolean recording = args[0].equals("record");
+        StandInServer standIn = new StandInServer(dir, recording, faults,
+                option(options, "api", GENIUS_API_URL), option(options, "pages", GENIUS_MAIN_URL));
+        if (!recording) {
+            standIn.loadRecordings();
+        }
+
+        int port = Integer.parseInt(option(options, "port", String.valueOf(DEFAULT_PORT)));
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", standIn);
+        server.setExecutor(Executors.newFixedThreadPool(THREADS));
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("Served: " + standIn.mCounters)));
+        System.out.println((recording ? "Recording" : "Replaying") + " on port " + port + ", " + dir
+                + (recording ? "" : ", " + faults));
+    }
+
+    private static String option(Map<String, String> options, String name, String def) {
+        String value = options.get(name);
+        return value == null ? def : value;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: StandInServer record|replay [--port 8080] [--dir recordings]\n"
+                + "  record: [--api " + GENIUS_API_URL + "] [--pages " + GENIUS_MAIN_URL + "]\n"
+                + "  replay: [--latency ms] [--jitter ms] [--handshake ms] [--bandwidth bytes/s]\n"
+                + "          [--throttle share] [--retry-after sec] [--errors share] [--truncate share] [--seed n]");
+    }
+
+    private void loadRecordings() throws IOException {
+        File[] files = mDir.listFiles((d, name) -> name.endsWith(Recording.EXTENSION));
+        if (files == null || files.length == 0) {
+            throw new IOException("No recordings in " + mDir + ", record some first");
+        }
+
+        for (File file : files) {
+            Recording rec = Recording.read(file);
+            mRecordings.put(rec.target, rec);
+            if (rec.status != HttpURLConnection.HTTP_OK) {
+                // only good answers are used as fallback
+                continue;
+            }
+            (rec.isSearch() ? mSearches : mPages).add(rec);
+        }
+        System.out.println("Loaded " + mSearches.size() + " searches and " + mPages.size() + " pages");
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            String query = exchange.getRequestURI().getRawQuery();
+            String target = exchange.getRequestURI().getRawPath() + (query == null ? "" : "?" + query);
+            if (mRecording) {
+                Recording rec = record(target, exchange.getRequestHeaders().getFirst("Authorization"));
+                respond(exchange, rec, Faults.Fault.NONE);
+                return;
+            }
+
+            Thread.sleep(mFaults.delayFor(exchange.getRemoteAddress()));
+            respond(exchange, replay(target), mFaults.pick());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // client gave up, that's expected when it times out
+            count("broken");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Recording replay(String target) {
+        Recording rec = mRecordings.get(target);
+        if (rec != null) {
+            count("recorded");
+            return rec;
+        }
+
+        List<Recording> candidates = Recording.isSearch(target) ? mSearches : mPages;
+        if (candidates.isEmpty()) {
+            count("missing");
+            return new Recording(target, HttpURLConnection.HTTP_NOT_FOUND, "text/plain", new byte[0]);
+        }
+
+        count("fallback");
+        return candidates.get(Math.floorMod(target.hashCode(), candidates.size()));
+    }
+
+    private Recording record(String target, String auth) throws IOException {
+        String upstream = (Recording.isSearch(target) ? mApiUrl : mMainUrl) + target;
+        HttpURLConnection conn = (HttpURLConnection) new URL(upstream).openConnection();
+        if (auth != null) {
+            conn.setRequestProperty("Authorization", auth);
+        }
+
+        try {
+            int status = conn.getResponseCode();
+            InputStream body = status < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (body != null) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+
+            String contentType = conn.getContentType() == null ? "text/html" : conn.getContentType();
+            Recording rec = new Recording(target, status, contentType, bytes.toByteArray());
+            if (status != HttpURLConnection.HTTP_UNAUTHORIZED) {
+                // bad token is not worth replaying
+                rec.write(mDir);
+            }
+            count("recorded " + status);
+            return rec;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private void respond(HttpExchange exchange, Recording rec, Faults.Fault fault) throws IOException, InterruptedException {
+        switch (fault) {
+            case THROTTLED:
+                count("429");
+                if (mFaults.retryAfter >= 0) {
+                    exchange.getResponseHeaders().set("Retry-After", String.valueOf(mFaults.retryAfter));
+                }
+                exchange.sendResponseHeaders(429, -1);
+                return;
+            case SERVER_ERROR:
+                count("503");
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+                return;
+            default:
+                break;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", rec.contentType);
+        exchange.sendResponseHeaders(rec.status, rec.body.length == 0 ? -1 : rec.body.length);
+        if (rec.body.length == 0) {
+            return;
+        }
+
+        int length = rec.body.length;
+        if (fault == Faults.Fault.TRUNCATED) {
+            count("truncated");
+            length /= 2;
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        int slice = mFaults.bandwidth > 0 ? Math.max(1, mFaults.bandwidth / BANDWIDTH_SLICES) : length;
+        for (int offset = 0; offset < length; offset += slice) {
+            if (offset > 0) {
+                Thread.sleep(1000 / BANDWIDTH_SLICES);
+            }
+            out.write(rec.body, offset, Math.min(slice, length - offset));
+            out.flush();
+        }
+        // if answer is truncated, closing the exchange drops the connection, client sees premature end of body
+    }
+
+    private void count(String what) {
+        AtomicInteger counter = mCounters.get(what);
+        if (counter == null) {
+            mCounters.putIfAbsent(what, new AtomicInteger());
+            counter = mCounters.get(what);
+        }
+        counter.incrementAndGet();
+    }
+}